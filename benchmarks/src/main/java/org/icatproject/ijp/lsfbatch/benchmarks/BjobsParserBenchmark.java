@@ -0,0 +1,66 @@
+package org.icatproject.ijp.lsfbatch.benchmarks;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.icatproject.ijp.lsfbatch.Bjobs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the streaming Bjobs parser with the original regular-expression parser on "bjobs -aw" output of
+ * various sizes. Run with e.g. "java -jar target/benchmarks.jar BjobsParserBenchmark -prof gc" to see the
+ * allocation rates as well as the times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BjobsParserBenchmark {
+
+	private static final String[] STATUSES = { "PEND", "RUN", "DONE", "EXIT", "USUSP" };
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	@Param({ "10000", "100000", "1000000" })
+	public int lines;
+
+	private String output;
+
+	@Setup
+	public void setUp() {
+		StringBuilder sb = new StringBuilder(lines * 100);
+		sb.append("JOBID   USER     STAT  QUEUE      FROM_HOST          EXEC_HOST            JOB_NAME       SUBMIT_TIME\n");
+		for (int i = 0; i < lines; i++) {
+			sb.append(100000 + i).append("  scarf").append(i % 400).append(' ').append(STATUSES[i % STATUSES.length])
+					.append("  scarf      ui3.scarf.rl.ac.uk cn").append(i % 700).append(".scarf.rl.ac.uk test-batchfile ")
+					.append(MONTHS[i % 12]).append(' ').append(1 + i % 28).append(' ').append(i % 24).append(':')
+					.append(10 + i % 50).append('\n');
+		}
+		output = sb.toString();
+	}
+
+	@Benchmark
+	public Map<String, LegacyBjobsParser.Job> legacy() throws ParseException {
+		return LegacyBjobsParser.parse(output);
+	}
+
+	@Benchmark
+	public Bjobs streaming() throws InternalException {
+		return new Bjobs(new StringReader(output));
+	}
+
+}
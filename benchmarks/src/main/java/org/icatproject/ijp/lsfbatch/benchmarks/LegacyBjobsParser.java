@@ -0,0 +1,68 @@
+package org.icatproject.ijp.lsfbatch.benchmarks;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original regular-expression based bjobs parser, kept here as the baseline for BjobsParserBenchmark.
+ * It keeps only the job ids, statuses and submit times, as that is enough to make it do the same work.
+ */
+public class LegacyBjobsParser {
+
+	public static class Job {
+		String jobId;
+		String userId;
+		String status;
+		String queue;
+		String fromHost;
+		String execHost;
+		String jobName;
+		Date submitTime;
+	}
+
+	public static Map<String, Job> parse(String bJobsOutput) throws ParseException {
+
+		Pattern outputRowPattern = Pattern.compile("(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(.*)");
+		Pattern noOutputPattern = Pattern.compile("No.* job found");
+		DateFormat df = new SimpleDateFormat("yyyy MMM d HH:mm");
+
+		Map<String, Job> jobs = new HashMap<String, Job>();
+		Scanner scanner = new Scanner(bJobsOutput);
+		try {
+			while (scanner.hasNextLine()) {
+				String line = scanner.nextLine();
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				Matcher m = outputRowPattern.matcher(line);
+				if (!m.matches()) {
+					if (!noOutputPattern.matcher(line).matches()) {
+						throw new ParseException("Unable to parse line: " + line, 0);
+					}
+				} else if (!"JOBID".equals(m.group(1))) {
+					Job job = new Job();
+					job.jobId = m.group(1);
+					job.userId = m.group(2);
+					job.status = m.group(3);
+					job.queue = m.group(4);
+					job.fromHost = m.group(5);
+					job.execHost = m.group(6);
+					job.jobName = m.group(7);
+					job.submitTime = df.parse(Calendar.getInstance().get(Calendar.YEAR) + " " + m.group(8));
+					jobs.put(job.jobId, job);
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		return jobs;
+	}
+}
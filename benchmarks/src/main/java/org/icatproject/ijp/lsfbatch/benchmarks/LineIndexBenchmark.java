@@ -0,0 +1,96 @@
+package org.icatproject.ijp.lsfbatch.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.lsfbatch.LineIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the last 200 lines and lines from the middle of a job output file of the given size through its
+ * LineIndex, against counting newlines from the start of the file as would be needed without one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineIndexBenchmark {
+
+	@Param({ "10", "500" })
+	public int megabytes;
+
+	private Path dir;
+	private Path path;
+	private long lines;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lineindex");
+		path = dir.resolve("job.log");
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			for (long i = 0; Files.size(path) < megabytes * 1024L * 1024L;) {
+				for (int j = 0; j < 10000; j++, i++) {
+					writer.write("Step " + i + " of the simulation has converged\n");
+				}
+				writer.flush();
+			}
+		}
+		lines = LineIndex.update(path).getLines();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(LineIndex.getIndexFor(path));
+		Files.delete(path);
+		Files.delete(dir);
+	}
+
+	@Benchmark
+	public long[] indexedTail() throws IOException {
+		return LineIndex.update(path).find(-200L, -1L);
+	}
+
+	@Benchmark
+	public long[] indexedMiddle() throws IOException {
+		return LineIndex.update(path).find(lines / 2, 500L);
+	}
+
+	@Benchmark
+	public long scannedMiddle() throws IOException {
+		long target = lines / 2;
+		long newlines = 0L;
+		long offset = 0L;
+		try (InputStream in = Files.newInputStream(path)) {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '\n' && ++newlines == target) {
+						return offset + i + 1;
+					}
+				}
+				offset += n;
+			}
+		}
+		return offset;
+	}
+
+}
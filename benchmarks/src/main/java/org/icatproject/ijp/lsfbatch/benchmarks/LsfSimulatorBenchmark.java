@@ -0,0 +1,75 @@
+package org.icatproject.ijp.lsfbatch.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.icatproject.ijp.lsfbatch.Bjobs;
+import org.icatproject.ijp.lsfbatch.CommandResult;
+import org.icatproject.ijp.lsfbatch.LsfSimulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a poll cycle ("bjobs -u all" and parsing its output) and a submit/kill round trip against the LSF
+ * simulator holding many jobs, so that the cost of the service's own handling of large job populations can be
+ * seen without a cluster. Run with e.g. "java -jar target/benchmarks.jar LsfSimulatorBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LsfSimulatorBenchmark {
+
+	private static final int POOL_USERS = 400;
+
+	@Param({ "10000", "100000" })
+	public int jobs;
+
+	private LsfSimulator lsf;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		Path home = Files.createTempDirectory("lsfsim");
+		lsf = new LsfSimulator();
+		// Jobs stay pending for the whole run and killed jobs are forgotten at once, so the population is constant
+		lsf.configure(home, TimeUnit.DAYS.toMillis(1), 10000L, 1000, 0L);
+		for (int i = 0; i < jobs; i++) {
+			lsf.runAs(user(i), "bsub", "-J", "test-batchfile", "-q", "scarf", "batch.sh");
+		}
+	}
+
+	private static String user(int i) {
+		return "scarf" + (i % POOL_USERS);
+	}
+
+	@Benchmark
+	public Bjobs poll() throws InternalException {
+		CommandResult result = lsf.run("bjobs", "-aw", "-u", "all");
+		return new Bjobs(result.getStdout());
+	}
+
+	@Benchmark
+	public CommandResult submitAndKill() {
+		String user = user(next++);
+		String out = lsf.runAs(user, "bsub", "-J", "test-batchfile", "-q", "scarf", "batch.sh").getStdout();
+		String jobId = out.substring(out.indexOf('<') + 1, out.indexOf('>'));
+		return lsf.runAs(user, "bkill", jobId);
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.icatproject.ijp.lsfbatch.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.lsfbatch.OutputMover;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Harvest time against output size for each way that OutputMover can move a job output folder (holding a .log and
+ * an .err file of the given total size). Each invocation moves a freshly written folder, so the copies are measured
+ * with the source in the page cache, as it usually is just after a job has finished.
+ * By default the folders are made under java.io.tmpdir; set -Dharvest.dir to measure a particular file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OutputMoverBenchmark {
+
+	@Param({ "1", "64", "512" })
+	public int megabytes;
+
+	@Param({ "RENAME", "LINK", "COPY" })
+	public OutputMover.Method method;
+
+	private OutputMover mover = new OutputMover();
+	private Path base;
+	private Path source;
+	private Path target;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		String dir = System.getProperty("harvest.dir");
+		base = dir == null ? Files.createTempDirectory("harvest") : Files.createTempDirectory(Paths.get(dir), "harvest");
+		source = Files.createDirectory(base.resolve("pool"));
+		target = Files.createDirectory(base.resolve("glassfish")).resolve("job");
+		byte[] block = new byte[1024 * 1024];
+		try (OutputStream os = Files.newOutputStream(source.resolve("job.log"))) {
+			for (int i = 0; i < megabytes; i++) {
+				os.write(block);
+			}
+		}
+		Files.write(source.resolve("job.err"), new byte[0]);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException {
+		for (Path dir : new Path[] { source, target }) {
+			if (Files.isDirectory(dir)) {
+				for (File file : dir.toFile().listFiles()) {
+					Files.delete(file.toPath());
+				}
+				Files.delete(dir);
+			}
+		}
+		Files.delete(target.getParent());
+		Files.delete(base);
+	}
+
+	@Benchmark
+	public OutputMover.Result move() throws IOException {
+		return mover.move(source, target, method);
+	}
+
+}
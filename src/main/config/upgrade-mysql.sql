@@ -0,0 +1,20 @@
+-- Upgrade an LSFJOB table created by an earlier release of ijp.lsfbatch, which glassfish will not do
+-- (eclipselink only creates tables that do not exist). Run once, with glassfish stopped, before deploying.
+
+ALTER TABLE LSFJOB
+    ADD BATCHJOBID VARCHAR(255),
+    ADD FAMILY VARCHAR(255),
+    ADD PRIORITY INTEGER NOT NULL DEFAULT 0,
+    ADD HARVESTSTATE VARCHAR(255),
+    ADD HARVESTATTEMPTS INTEGER NOT NULL DEFAULT 0,
+    ADD HARVESTDUE DATETIME,
+    ADD HARVESTEDBYTES BIGINT NOT NULL DEFAULT 0;
+
+-- Jobs submitted before the submission queue was added were given their LSF job id as their own id
+UPDATE LSFJOB SET BATCHJOBID = ID WHERE BATCHUSERNAME IS NOT NULL AND BATCHJOBID IS NULL;
+
+CREATE INDEX LSFJOB_USERNAME_SUBMITDATE_ID ON LSFJOB (USERNAME, SUBMITDATE, ID);
+CREATE INDEX LSFJOB_BATCHUSERNAME_STATUS ON LSFJOB (BATCHUSERNAME, STATUS);
+CREATE INDEX LSFJOB_STATUS ON LSFJOB (STATUS);
+CREATE INDEX LSFJOB_BATCHJOBID ON LSFJOB (BATCHJOBID);
+CREATE INDEX LSFJOB_HARVESTSTATE_HARVESTDUE ON LSFJOB (HARVESTSTATE, HARVESTDUE);
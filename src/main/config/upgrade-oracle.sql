@@ -0,0 +1,22 @@
+-- Upgrade an LSFJOB table created by an earlier release of ijp.lsfbatch, which glassfish will not do
+-- (eclipselink only creates tables that do not exist). Run once, with glassfish stopped, before deploying.
+
+ALTER TABLE LSFJOB ADD (
+    BATCHJOBID VARCHAR2(255),
+    FAMILY VARCHAR2(255),
+    PRIORITY NUMBER(10) DEFAULT 0 NOT NULL,
+    HARVESTSTATE VARCHAR2(255),
+    HARVESTATTEMPTS NUMBER(10) DEFAULT 0 NOT NULL,
+    HARVESTDUE TIMESTAMP,
+    HARVESTEDBYTES NUMBER(19) DEFAULT 0 NOT NULL);
+
+-- Jobs submitted before the submission queue was added were given their LSF job id as their own id
+UPDATE LSFJOB SET BATCHJOBID = ID WHERE BATCHUSERNAME IS NOT NULL AND BATCHJOBID IS NULL;
+
+CREATE INDEX LSFJOB_USERNAME_SUBMITDATE_ID ON LSFJOB (USERNAME, SUBMITDATE, ID);
+CREATE INDEX LSFJOB_BATCHUSERNAME_STATUS ON LSFJOB (BATCHUSERNAME, STATUS);
+CREATE INDEX LSFJOB_STATUS ON LSFJOB (STATUS);
+CREATE INDEX LSFJOB_BATCHJOBID ON LSFJOB (BATCHJOBID);
+CREATE INDEX LSFJOB_HARVESTSTATE_HARVESTDUE ON LSFJOB (HARVESTSTATE, HARVESTDUE);
+
+COMMIT;
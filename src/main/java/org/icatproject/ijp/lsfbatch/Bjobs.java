@@ -1,17 +1,17 @@
 package org.icatproject.ijp.lsfbatch;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.icatproject.ijp.batch.exceptions.InternalException;
 import org.slf4j.Logger;
@@ -19,19 +19,63 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Parses and stores the output from a Platform LSF bjobs command.
- * Assumes one-job-per-line format, as delivered by "bjobs -w".
- * 
+ * Two output formats are understood: the one-job-per-line format delivered by "bjobs -w" (WIDE),
+ * and the delimited custom format requested by "bjobs -noheader -o" with DELIMITED_OUTPUT_FORMAT (DELIMITED).
+ * The latter is preferred where the LSF version supports it, as job names may then contain whitespace
+ * and start/finish times and exit codes are available too.
+ *
+ * The output is parsed a line at a time from a Reader (or CharSequence), splitting fields in place
+ * rather than by regular expression, so that very large outputs (e.g. from "bjobs -aw -u all")
+ * can be parsed without holding extra copies of them.
+ *
  * @author Brian Ritchie
  *
  */
 public class Bjobs {
-	
+
 	final static Logger logger = LoggerFactory.getLogger(Bjobs.class);
 
+	public enum Format {
+		WIDE, DELIMITED
+	}
+
+	public final static char DELIMITER = '^';
+
+	/**
+	 * The argument to pass to "bjobs -o" for the DELIMITED format. The job name is last, as it is the only field
+	 * that may itself contain the delimiter; everything after the last but one delimiter is taken as the name.
+	 */
+	public final static String DELIMITED_OUTPUT_FORMAT = "jobid user stat queue from_host exec_host submit_time start_time finish_time exit_code job_name delimiter='"
+			+ DELIMITER + "'";
+
+	private final static int DELIMITED_FIELDS = 11;
+
+	private final static int BUFFER_SIZE = 8192;
+
+	// A submit time up to this far in the future is put down to clock differences, not to the year changing
+	private final static long ROLLOVER_TOLERANCE_MILLIS = 24L * 60 * 60 * 1000;
+
+	// The status values that bjobs can report; parsed statuses share these instances
+	private final static String[] STATUS_CODES = { "PEND", "RUN", "DONE", "EXIT", "PSUSP", "USUSP", "SSUSP", "WAIT", "UNKWN", "ZOMBI" };
+
+	private final static String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
 	protected Map<String,Bjobs.Job> bJobs;
-	
+
+	// The time at which the output was produced, used to supply the year missing from times
+	private final Date now;
+
+	private Format format = Format.WIDE;
+
+	// Parse state, reused from line to line
+	private Calendar calendar;
+	private int[] tokenStarts = new int[16];
+	private int[] tokenEnds = new int[16];
+	private int[] fieldStarts = new int[DELIMITED_FIELDS];
+	private int[] fieldEnds = new int[DELIMITED_FIELDS];
+
 	public static class Job {
-		
+
 		protected String jobId;
 		protected String userId;
 		protected String status;
@@ -40,6 +84,9 @@ public class Bjobs {
 		protected String execHost;
 		protected String jobName;
 		protected Date submitTime;
+		protected Date startTime;
+		protected Date finishTime;
+		protected Integer exitCode;
 
 		public String getJobId() {
 			return jobId;
@@ -65,35 +112,212 @@ public class Bjobs {
 		public Date getSubmitTime() {
 			return submitTime;
 		}
+		/**
+		 * @return the start time, or null if not known (always null for the WIDE format)
+		 */
+		public Date getStartTime() {
+			return startTime;
+		}
+		/**
+		 * @return the finish time, or null if not known (always null for the WIDE format)
+		 */
+		public Date getFinishTime() {
+			return finishTime;
+		}
+		/**
+		 * @return the exit code, or null if not known (always null for the WIDE format)
+		 */
+		public Integer getExitCode() {
+			return exitCode;
+		}
 	}
-	
+
 	public Bjobs(){
-		
+
+		this( new Date() );
+	}
+
+	Bjobs(Date now){
+
 		bJobs = new HashMap<String, Bjobs.Job>();
+		this.now = now;
+	}
+
+	public Bjobs(CharSequence bJobsOutput) throws InternalException{
+
+		this( bJobsOutput, Format.WIDE );
+	}
+
+	public Bjobs(CharSequence bJobsOutput, Format format) throws InternalException{
+
+		this( new StringReader(bJobsOutput.toString()), format );
 	}
-	
-	public Bjobs(String bJobsOutput) throws InternalException{
-		
-		this();
+
+	public Bjobs(Reader bJobsOutput) throws InternalException{
+
+		this( bJobsOutput, Format.WIDE );
+	}
+
+	public Bjobs(Reader bJobsOutput, Format format) throws InternalException{
+
+		this( bJobsOutput, format, new Date() );
+	}
+
+	Bjobs(Reader bJobsOutput, Format format, Date now) throws InternalException{
+
+		this(now);
+		this.format = format;
 		parseBjobsOutput( bJobsOutput );
 	}
-	
+
+	/**
+	 * Build a bjobs command line (including finished jobs) that asks for the given output format.
+	 *
+	 * @param format the output format wanted
+	 * @param selection arguments selecting the jobs, e.g. "-u", user or a job id
+	 * @return the command line
+	 */
+	public static String[] command( Format format, String... selection ){
+
+		List<String> command = new ArrayList<String>();
+		command.add("bjobs");
+		if( format == Format.DELIMITED ){
+			command.addAll(Arrays.asList("-a", "-noheader", "-o", DELIMITED_OUTPUT_FORMAT));
+		} else {
+			command.add("-aw");
+		}
+		command.addAll(Arrays.asList(selection));
+		return command.toArray(new String[command.size()]);
+	}
+
+	/**
+	 * Run bjobs (locally, as the glassfish user) for the given user specification, which
+	 * may be a single user, a space-separated list of users or "all".
+	 *
+	 * @param executor the executor to run bjobs with
+	 * @param format the output format wanted
+	 * @param userSpec the argument to pass to bjobs -u
+	 * @return the parsed bjobs output
+	 * @throws InternalException if bjobs fails or its output cannot be parsed
+	 */
+	public static Bjobs run( CommandExecutor executor, Format format, String userSpec ) throws InternalException{
+
+		CommandResult sc = executor.run( command(format, "-u", userSpec) );
+		if (sc.isError()) {
+			// Astonishingly, "No job found" counts as an error!
+			if( ! ("No job found".equals(sc.getStderr().trim())) ){
+				throw new InternalException("Unable to query jobs via bjobs: " + sc.getStderr());
+			}
+		}
+		// In practice, bjobs output is unlikely to be empty; but may be "No jobs found" or similar
+		// (but that may be on stderr, see above)
+		return new Bjobs( sc.getStdout().trim(), format );
+	}
+
 	public Bjobs.Job getJob( String jobId ){
-		
+
 		return bJobs.get( jobId );
 	}
-	
+
 	public Set<String> getJobIds(){
-		
+
 		return bJobs.keySet();
 	}
-	
+
 	public Collection<Bjobs.Job> getJobs(){
 		return bJobs.values();
 	}
 
-	private void parseBjobsOutput(String bJobsOutput) throws InternalException {
-		
+	/**
+	 * Split the jobs by the user that owns them; useful when bjobs has been run for several users at once
+	 * (e.g. "bjobs -aw -u all").
+	 *
+	 * @return map from user id to the list of that user's jobs; users with no jobs have no entry
+	 */
+	public Map<String,List<Bjobs.Job>> getJobsByUser(){
+		Map<String,List<Bjobs.Job>> jobsByUser = new HashMap<String,List<Bjobs.Job>>();
+		for( Bjobs.Job job : bJobs.values() ){
+			List<Bjobs.Job> userJobs = jobsByUser.get(job.getUserId());
+			if( userJobs == null ){
+				userJobs = new ArrayList<Bjobs.Job>();
+				jobsByUser.put(job.getUserId(), userJobs);
+			}
+			userJobs.add(job);
+		}
+		return jobsByUser;
+	}
+
+	private void parseBjobsOutput(Reader reader) throws InternalException {
+
+		char[] buf = new char[BUFFER_SIZE];
+		int length = 0;
+		try {
+			int count;
+			while( (count = reader.read(buf, length, buf.length - length)) >= 0 ){
+				int scanFrom = length;
+				length += count;
+				int lineStart = 0;
+				for( int i = scanFrom; i < length; i++ ){
+					if( buf[i] == '\n' ){
+						parseLine( buf, lineStart, i );
+						lineStart = i + 1;
+					}
+				}
+				// Keep any partial line for the next read, growing the buffer if a single line fills it
+				length -= lineStart;
+				System.arraycopy(buf, lineStart, buf, 0, length);
+				if( length == buf.length ){
+					char[] bigger = new char[buf.length * 2];
+					System.arraycopy(buf, 0, bigger, 0, length);
+					buf = bigger;
+				}
+			}
+			parseLine( buf, 0, length );
+		} catch (IOException e) {
+			throw new InternalException("Bjobs: Unable to read bjobs output: " + e.getMessage() );
+		}
+	}
+
+	private void parseLine( char[] buf, int start, int end ) throws InternalException {
+
+		int tokens = tokenize( buf, start, end );
+
+		if( tokens == 0 ){
+			// Skip blank lines
+			return;
+		}
+		if( tokenEquals(buf, 0, "JOBID") ){
+			// Ignore header line
+			return;
+		}
+		// Watch out for "No job found" and "No unfinished job found"
+		if( tokens >= 3 && tokens <= 4 && tokenEquals(buf, 0, "No") && tokenEquals(buf, tokens - 2, "job") && tokenEquals(buf, tokens - 1, "found") ){
+			return;
+		}
+
+		Bjobs.Job job;
+		try {
+			if( format == Format.DELIMITED ){
+				job = parseDelimitedLine( buf, start, end );
+			} else {
+				job = parseWideLine( buf, start, end, tokens );
+			}
+		} catch (InternalException e) {
+			// One odd line (e.g. another user's job, with -u all) must not hide the jobs on the others
+			logger.warn(e.getMessage() + "; skipping the line");
+			return;
+		}
+		if( job == null ){
+			return;
+		}
+
+		// And add it to the map
+
+		bJobs.put( job.jobId, job);
+	}
+
+	private Bjobs.Job parseWideLine( char[] buf, int start, int end, int tokens ) throws InternalException {
+
 		// Expected output fields and example (using bjobs -aw)
 		// JOBID   USER     STAT  QUEUE     FROM_HOST           EXEC_HOST            JOB_NAME       SUBMIT_TIME
 		// 157356  scarf334 DONE  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:34
@@ -102,69 +326,281 @@ public class Bjobs {
 		// However, it transpires that this is appearing on stderr, not stdout!  Empty stdout should still be OK.
 		//
 		// Notes:
-		// - the submit time does not specify the year!  Resulting Dates will be in 1970; we set the current year from Calendar
-		// - we assume that the job name does not contain whitespace.
-		
-		Pattern outputRowPattern = Pattern.compile("(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s+(.*)");
-		Pattern noOutputPattern = Pattern.compile("No.* job found");
-		DateFormat df = new SimpleDateFormat("yyyy MMM d HH:mm");
-
-		Scanner scanner = new Scanner(bJobsOutput);
-		while( scanner.hasNextLine()){
-			String line = scanner.nextLine();
-			if( line.trim().length() == 0 ){
-				// Skip blank lines
-				continue;
-			}
-			Matcher m = outputRowPattern.matcher(line);
-			if( ! m.matches() ){
-				
-				// Watch out for "No job found" and "No unfinished job found"
-				
-				Matcher noJobsMatcher = noOutputPattern.matcher(line);
-				
-				if( ! noJobsMatcher.matches() ){
-					// Perhaps this is a little severe - could just write off this line?
-					scanner.close();
-					throw new InternalException("Bjobs: Unable to parse line: " + line );
-				}
-			} else {
-				String jobId = m.group(1);
-				if( jobId == null ){
-					
-					// Do we ever expect blank lines? How about the last line?
-					// Ignore this line.
-					
-				} else if( ! "JOBID".equals(jobId) ){  // Ignore header line
-					
-					// Construct a LsfJob from this line
-					
-					Bjobs.Job job = new Bjobs.Job();
-					job.jobId = jobId;
-					job.userId = m.group(2);
-					job.status = m.group(3);
-					job.queue = m.group(4);
-					job.fromHost = m.group(5);
-					job.execHost = m.group(6);
-					job.jobName = m.group(7);
-					
-					try {
-						// Add the current year!
-						String dateStr = Calendar.getInstance().get(Calendar.YEAR) + " " + m.group(8);
-						logger.debug("Bjobs.parseBjobs: date-string is now: '" + dateStr + "'");
-						job.submitTime = df.parse(dateStr);
-					} catch (ParseException e) {
-						scanner.close();
-						throw new InternalException("Bjobs: Unable to parse submit time: " + e.getMessage() );
-					}
-					
-					// And add it to the map
-					
-					bJobs.put( jobId, job);
-				}
+		// - the submit time does not specify the year!  We use the current year, or the previous one if that would
+		//   put the submit time in the future (a job submitted in December and seen in January)
+		// - the submit time is always the last three fields, so we work back from the end of the line;
+		//   EXEC_HOST is empty for jobs that have not started, so may be missing
+		// - when EXEC_HOST is missing, we assume that the job name does not contain whitespace.
+
+		if( tokens < 9 ){
+			throw new InternalException("Bjobs: Unable to parse line: " + new String(buf, start, end - start).trim() );
+		}
+
+		int dateToken = tokens - 3;
+		int nameToken = tokens == 9 ? 5 : 6;
+
+		Bjobs.Job job = new Bjobs.Job();
+		job.jobId = token(buf, 0);
+		job.userId = token(buf, 1);
+		job.status = status(buf, tokenStarts[2], tokenEnds[2]);
+		job.queue = token(buf, 3);
+		job.fromHost = token(buf, 4);
+		job.execHost = tokens == 9 ? "" : token(buf, 5);
+		job.jobName = new String(buf, tokenStarts[nameToken], tokenEnds[dateToken - 1] - tokenStarts[nameToken]);
+		job.submitTime = time(buf, dateToken, 3);
+		if( job.submitTime == null ){
+			throw new InternalException("Bjobs: Unable to parse submit time: "
+					+ new String(buf, tokenStarts[dateToken], tokenEnds[tokens - 1] - tokenStarts[dateToken]) );
+		}
+		return job;
+	}
+
+	/**
+	 * @return the job, or null if this is a header line
+	 */
+	private Bjobs.Job parseDelimitedLine( char[] buf, int start, int end ) throws InternalException {
+
+		// Fields as listed in DELIMITED_OUTPUT_FORMAT, e.g.
+		// 157356^scarf334^DONE^scarf^ui3.scarf.rl.ac.uk^cn223.scarf.rl.ac.uk^Aug  5 14:34^Aug  5 14:35^Aug  5 15:01 L^0^test batchfile
+		//
+		// Notes:
+		// - empty values are shown as "-"
+		// - times may or may not include seconds and the year (LSB_DISPLAY_YEAR), and may be followed
+		//   by a single letter flag; estimated times (flag "E") are ignored.
+		// - the job name is the rest of the line, so it may contain the delimiter
+
+		int fields = 0;
+		int fieldStart = start;
+		for( int i = start; i <= end && fields < DELIMITED_FIELDS; i++ ){
+			if( i == end || (buf[i] == DELIMITER && fields < DELIMITED_FIELDS - 1) ){
+				fieldStarts[fields] = fieldStart;
+				fieldEnds[fields++] = i;
+				fieldStart = i + 1;
+			}
+		}
+		if( fields != DELIMITED_FIELDS ){
+			throw new InternalException("Bjobs: Unable to parse line: " + new String(buf, start, end - start).trim() );
+		}
+		if( regionEquals(buf, fieldStarts[0], fieldEnds[0], "JOBID") ){
+			// Ignore header line, in case -noheader was not used
+			return null;
+		}
+
+		Bjobs.Job job = new Bjobs.Job();
+		job.jobId = field(buf, 0);
+		job.userId = field(buf, 1);
+		job.status = fieldStatus(buf, 2);
+		job.queue = field(buf, 3);
+		job.fromHost = field(buf, 4);
+		job.execHost = field(buf, 5);
+		if( job.execHost == null ){
+			job.execHost = "";
+		}
+		job.submitTime = fieldTime(buf, 6);
+		if( job.jobId == null || job.submitTime == null ){
+			throw new InternalException("Bjobs: Unable to parse line: " + new String(buf, start, end - start).trim() );
+		}
+		job.startTime = fieldTime(buf, 7);
+		job.finishTime = fieldTime(buf, 8);
+		job.jobName = field(buf, 10);
+		String exitCode = field(buf, 9);
+		if( exitCode != null ){
+			try {
+				job.exitCode = Integer.valueOf(exitCode);
+			} catch (NumberFormatException e) {
+				throw new InternalException("Bjobs: Unable to parse exit code: " + exitCode );
 			}
 		}
-		scanner.close();
+		return job;
+	}
+
+	// Returns the trimmed field, or null if it is empty or "-"
+	private String field( char[] buf, int field ){
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+		while( start < end && isSpace(buf[start]) ){
+			start++;
+		}
+		while( end > start && isSpace(buf[end - 1]) ){
+			end--;
+		}
+		if( start == end || (end - start == 1 && buf[start] == '-') ){
+			return null;
+		}
+		return new String(buf, start, end - start);
+	}
+
+	private String fieldStatus( char[] buf, int field ){
+		int tokens = tokenize( buf, fieldStarts[field], fieldEnds[field] );
+		return tokens == 1 ? status(buf, tokenStarts[0], tokenEnds[0]) : field(buf, field);
+	}
+
+	private Date fieldTime( char[] buf, int field ) throws InternalException {
+		int tokens = tokenize( buf, fieldStarts[field], fieldEnds[field] );
+		if( tokens == 0 || (tokens == 1 && tokenEquals(buf, 0, "-")) ){
+			return null;
+		}
+		if( tokenEquals(buf, tokens - 1, "E") ){
+			// An estimate, not a time
+			return null;
+		}
+		Date date = time(buf, 0, tokens);
+		if( date == null ){
+			throw new InternalException("Bjobs: Unable to parse time: "
+					+ new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field]).trim() );
+		}
+		return date;
+	}
+
+	/**
+	 * Split the given range of buf into whitespace-separated tokens.
+	 *
+	 * @return the number of tokens, whose bounds are in tokenStarts and tokenEnds
+	 */
+	private int tokenize( char[] buf, int start, int end ){
+		int tokens = 0;
+		int i = start;
+		while( i < end ){
+			while( i < end && isSpace(buf[i]) ){
+				i++;
+			}
+			if( i == end ){
+				break;
+			}
+			if( tokens == tokenStarts.length ){
+				tokenStarts = grow(tokenStarts);
+				tokenEnds = grow(tokenEnds);
+			}
+			tokenStarts[tokens] = i;
+			while( i < end && ! isSpace(buf[i]) ){
+				i++;
+			}
+			tokenEnds[tokens++] = i;
+		}
+		return tokens;
+	}
+
+	/**
+	 * Parse a time such as "Aug  5 14:34" or "Aug  5 14:34:02 2014 L" from tokens, supplying the year if it is missing.
+	 *
+	 * @return the time, or null if the tokens are not a time
+	 */
+	private Date time( char[] buf, int monthToken, int tokens ){
+
+		if( tokens < 3 ){
+			return null;
+		}
+		int month = -1;
+		for( int m = 0; m < MONTHS.length; m++ ){
+			if( tokenEquals(buf, monthToken, MONTHS[m]) ){
+				month = m;
+				break;
+			}
+		}
+		int day = number(buf, tokenStarts[monthToken + 1], tokenEnds[monthToken + 1]);
+
+		int timeStart = tokenStarts[monthToken + 2];
+		int timeEnd = tokenEnds[monthToken + 2];
+		int colon = indexOf(buf, ':', timeStart, timeEnd);
+		int secondsColon = indexOf(buf, ':', colon + 1, timeEnd);
+		int hour = number(buf, timeStart, colon);
+		int minute = number(buf, colon + 1, secondsColon);
+		int second = secondsColon == timeEnd ? 0 : number(buf, secondsColon + 1, timeEnd);
+
+		int year = -1;
+		if( tokens > 3 ){
+			year = number(buf, tokenStarts[monthToken + 3], tokenEnds[monthToken + 3]);
+			// Anything else should be a single letter flag
+			int expected = year < 0 ? 4 : 5;
+			if( tokens > expected || (tokens == expected && tokenEnds[monthToken + expected - 1] - tokenStarts[monthToken + expected - 1] != 1) ){
+				return null;
+			}
+		}
+
+		if( month < 0 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 ){
+			return null;
+		}
+
+		if( calendar == null ){
+			calendar = Calendar.getInstance();
+		}
+		if( year < 0 ){
+			calendar.setTime(now);
+			int thisYear = calendar.get(Calendar.YEAR);
+			calendar.clear();
+			calendar.set(thisYear, month, day, hour, minute, second);
+			if( calendar.getTimeInMillis() > now.getTime() + ROLLOVER_TOLERANCE_MILLIS ){
+				calendar.set(Calendar.YEAR, thisYear - 1);
+			}
+		} else {
+			calendar.clear();
+			calendar.set(year, month, day, hour, minute, second);
+		}
+		return calendar.getTime();
+	}
+
+	private String token( char[] buf, int token ){
+		return new String(buf, tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+	}
+
+	private String status( char[] buf, int start, int end ){
+		for( String code : STATUS_CODES ){
+			if( regionEquals(buf, start, end, code) ){
+				return code;
+			}
+		}
+		return new String(buf, start, end - start);
+	}
+
+	private boolean tokenEquals( char[] buf, int token, String value ){
+		return regionEquals( buf, tokenStarts[token], tokenEnds[token], value );
+	}
+
+	private static boolean regionEquals( char[] buf, int start, int end, String value ){
+		if( end - start != value.length() ){
+			return false;
+		}
+		for( int i = 0; i < value.length(); i++ ){
+			if( buf[start + i] != value.charAt(i) ){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns end if c is not found
+	private static int indexOf( char[] buf, char c, int start, int end ){
+		int i = start;
+		while( i < end && buf[i] != c ){
+			i++;
+		}
+		return i;
+	}
+
+	// Returns -1 if the chars are not a (non-empty) decimal number
+	private static int number( char[] buf, int start, int end ){
+		if( start >= end || end - start > 9 ){
+			return -1;
+		}
+		int value = 0;
+		for( int i = start; i < end; i++ ){
+			char c = buf[i];
+			if( c < '0' || c > '9' ){
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isSpace( char c ){
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private static int[] grow( int[] array ){
+		int[] bigger = new int[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
 	}
 
 }
@@ -0,0 +1,251 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs JobManagementBean.updateJobsFromBjobs() every lsf.pollInterval, never more than one cycle at a time.
+ *
+ * Each cycle is started by a single-action timer that is only created once the previous cycle has finished, so a
+ * slow cycle cannot be overlapped by the next, as it could be with a fixed schedule. Cycles are due on a fixed grid
+ * of times; if a cycle runs past the time the next was due, the next is run as soon as it finishes, and any further
+ * times that have also passed are skipped (and counted) rather than run back to back. The poller records how long
+ * cycles take, how late they start and how many have been skipped, which getStatus() returns.
+ *
+ * If the timer for the next cycle cannot be set, polling would stop for good; so the failure is logged, and
+ * checkScheduled() tries again every minute until it succeeds.
+ */
+@Singleton
+@Startup
+@DependsOn("JobManagementConfig")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BjobsPoller {
+
+	private final static Logger logger = LoggerFactory.getLogger(BjobsPoller.class);
+
+	@EJB
+	private JobManagementConfig config;
+
+	@EJB
+	private JobManagementBean jobManagementBean;
+
+	@Resource
+	TimerService timerService;
+
+	private long intervalMillis;
+
+	// When the cycle that is running, or is to run next, was due
+	private volatile long due;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	// Whether the timer for the next cycle has been set, guarded by scheduling with running, so that a retry by
+	// checkScheduled() cannot set a second timer
+	private boolean scheduled;
+	private final Object scheduling = new Object();
+
+	private final AtomicLong cycles = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private volatile long lastStart;
+	private volatile long lastDurationMillis;
+	private volatile long maxDurationMillis;
+	private volatile long lastLagMillis;
+	private volatile long maxLagMillis;
+
+	@PostConstruct
+	void init() {
+		init(config.getPollIntervalMillis(), System.currentTimeMillis());
+	}
+
+	void init(long intervalMillis, long now) {
+		this.intervalMillis = intervalMillis;
+		due = now + intervalMillis;
+		schedule(now);
+		logger.info("Polling bjobs every " + intervalMillis + "ms");
+	}
+
+	/**
+	 * Set the timer for the cycle that is due next. The timer is not persistent, as init() sets a new one whenever
+	 * the application starts. A failure is only logged, and left to checkScheduled() to try again.
+	 */
+	void schedule(long now) {
+		synchronized (scheduling) {
+			try {
+				timerService.createSingleActionTimer(Math.max(0L, due - now), new TimerConfig(null, false));
+				scheduled = true;
+			} catch (RuntimeException e) {
+				scheduled = false;
+				logger.error("Unable to set the timer for the next bjobs poll, will try again within a minute: "
+						+ e.getClass() + " reports " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Set the timer for the next cycle if that failed before, so that polling does not stop for good
+	 */
+	@Schedule(minute = "*", hour = "*", persistent = false)
+	public void checkScheduled() {
+		checkScheduled(System.currentTimeMillis());
+	}
+
+	void checkScheduled(long now) {
+		synchronized (scheduling) {
+			if (!scheduled && !running.get()) {
+				schedule(now);
+				if (scheduled) {
+					logger.info("Timer for the next bjobs poll set at last");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run a cycle, then set the timer for the next. It runs outside a transaction, so that the timer never has to
+	 * wait for one (updateJobsFromBjobs() starts its own).
+	 */
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void poll(Timer timer) {
+		long start = System.currentTimeMillis();
+		if (!startCycle(start)) {
+			return;
+		}
+		try {
+			jobManagementBean.updateJobsFromBjobs();
+		} catch (RuntimeException e) {
+			logger.error("bjobs poll failed: " + e.getClass() + " reports " + e.getMessage());
+		} finally {
+			endCycle(start, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return false, having counted it as skipped, if a cycle is already running
+	 */
+	boolean startCycle(long start) {
+		if (!running.compareAndSet(false, true)) {
+			// Only one timer is ever set, so this should not happen; but two cycles must never run at once
+			logger.warn("A bjobs poll is already running, so skipping this one");
+			skipped.incrementAndGet();
+			return false;
+		}
+		synchronized (scheduling) {
+			// The timer that started this cycle has gone
+			scheduled = false;
+		}
+		long lag = start - due;
+		lastStart = start;
+		lastLagMillis = lag;
+		maxLagMillis = Math.max(maxLagMillis, lag);
+		return true;
+	}
+
+	/**
+	 * Record a cycle that has finished, skip any cycles whose times have passed, and set the timer for the next
+	 */
+	void endCycle(long start, long end) {
+		long duration = end - start;
+		cycles.incrementAndGet();
+		lastDurationMillis = duration;
+		maxDurationMillis = Math.max(maxDurationMillis, duration);
+
+		long passed = passed(due, intervalMillis, end);
+		if (passed > 1) {
+			logger.warn("bjobs poll took " + duration + "ms, so skipping " + (passed - 1) + " cycles");
+			skipped.addAndGet(passed - 1);
+		}
+		// If behind, the next cycle is the last of those that have passed, and runs at once
+		due += Math.max(1L, passed) * intervalMillis;
+		synchronized (scheduling) {
+			running.set(false);
+			schedule(end);
+		}
+	}
+
+	/**
+	 * @return the number of times due after the given one that have passed by now
+	 */
+	static long passed(long due, long intervalMillis, long now) {
+		return now < due + intervalMillis ? 0L : (now - due) / intervalMillis;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public long getCycles() {
+		return cycles.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	public long getMaxDurationMillis() {
+		return maxDurationMillis;
+	}
+
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	/**
+	 * @return Json object holding the interval, the cycles run and skipped, whether a cycle is running, and the
+	 *         durations and lags (how late a cycle started) of the last cycle and the worst, all in milliseconds;
+	 *         and, as "queue", the jobs waiting for a pool user (in all and by family), the number of queued jobs
+	 *         since submitted, and their mean and longest waits in milliseconds; and, as "cache", the size of the
+	 *         job status cache and its hits, misses and evictions
+	 */
+	public String getStatus() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator gen = Json.createGenerator(baos);
+		gen.writeStartObject().write("interval", intervalMillis).write("cycles", cycles.get())
+				.write("skipped", skipped.get()).write("running", running.get()).write("lastStart", lastStart)
+				.write("lastDuration", lastDurationMillis).write("maxDuration", maxDurationMillis)
+				.write("lastLag", lastLagMillis).write("maxLag", maxLagMillis);
+		SubmissionQueue queue = SubmissionQueue.getInstance();
+		gen.writeStartObject("queue").write("queued", queue.size()).writeStartObject("families");
+		for (Map.Entry<String, Integer> entry : queue.getSizes().entrySet()) {
+			gen.write(entry.getKey(), entry.getValue());
+		}
+		gen.writeEnd().write("dispatched", queue.getDispatched()).write("meanWait", queue.getMeanWaitMillis())
+				.write("maxWait", queue.getMaxWaitMillis()).writeEnd();
+		JobStatusCache cache = JobStatusCache.getInstance();
+		gen.writeStartObject("cache").write("size", cache.size()).write("hits", cache.getHits())
+				.write("misses", cache.getMisses()).write("evictions", cache.getEvictions()).writeEnd();
+		gen.writeEnd().close();
+		return baos.toString();
+	}
+}
@@ -0,0 +1,55 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.InputStream;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+
+/**
+ * Runs the commands (bsub, bjobs, bkill and file handling) through which JobManagementBean drives LSF.
+ *
+ * SshExecutor runs them for real, locally or as a pool user via ssh; LsfSimulator emulates them in-process so that
+ * everything above it can be tested and load-tested without a cluster.
+ */
+public interface CommandExecutor {
+
+	/**
+	 * Run a command locally, as the glassfish user.
+	 *
+	 * @param command
+	 *            the command and its arguments
+	 * @return the completed command
+	 * @throws InternalException
+	 *             if the command could not be run at all
+	 */
+	CommandResult run(String... command) throws InternalException;
+
+	/**
+	 * Run a command as a pool user. As the command may be passed to a remote shell, any arguments that the shell
+	 * should not interpret must already be quoted.
+	 *
+	 * @param user
+	 *            the pool user
+	 * @param command
+	 *            the command and its arguments
+	 * @return the completed command
+	 * @throws InternalException
+	 *             if the command could not be run at all
+	 */
+	CommandResult runAs(String user, String... command) throws InternalException;
+
+	/**
+	 * Start a command as a pool user and stream its standard output, which is not collected in memory. Its standard
+	 * error is discarded and its exit value is not known; a command that fails just gives no (or less) output.
+	 * Closing the stream kills the command if it is still running, so it must always be closed.
+	 *
+	 * @param user
+	 *            the pool user
+	 * @param command
+	 *            the command and its arguments, quoted as for runAs()
+	 * @return the command's standard output
+	 * @throws InternalException
+	 *             if the command could not be started
+	 */
+	InputStream openAs(String user, String... command) throws InternalException;
+
+}
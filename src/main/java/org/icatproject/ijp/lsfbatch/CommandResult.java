@@ -0,0 +1,49 @@
+package org.icatproject.ijp.lsfbatch;
+
+import org.icatproject.utils.ShellCommand;
+
+/**
+ * The outcome of a command run by a CommandExecutor
+ */
+public class CommandResult {
+
+	private final int exitValue;
+	private final String stdout;
+	private final String stderr;
+
+	public CommandResult(int exitValue, String stdout, String stderr) {
+		this.exitValue = exitValue;
+		this.stdout = stdout;
+		this.stderr = stderr;
+	}
+
+	public CommandResult(ShellCommand sc) {
+		this(sc.getExitValue(), sc.getStdout(), sc.getStderr());
+	}
+
+	public boolean isError() {
+		return exitValue != 0;
+	}
+
+	public int getExitValue() {
+		return exitValue;
+	}
+
+	public String getStdout() {
+		return stdout;
+	}
+
+	public String getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * @return a description of the outcome, for error messages
+	 */
+	public String getMessage() {
+		if (!stderr.isEmpty()) {
+			return "Exit value " + exitValue + ": " + stderr;
+		}
+		return "Exit value " + exitValue;
+	}
+}
@@ -0,0 +1,13 @@
+package org.icatproject.ijp.lsfbatch;
+
+/**
+ * Where a finished job is in having its output moved from its pool user to the glassfish holding area
+ */
+public enum HarvestState {
+	/** The output is still to be moved (or a failed attempt is to be retried) */
+	PENDING,
+	/** The output has been moved */
+	DONE,
+	/** Every attempt to move the output failed; it has been left with the pool user */
+	FAILED
+}
@@ -0,0 +1,85 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.icatproject.ICAT;
+import org.icatproject.ICATService;
+import org.icatproject.IcatExceptionType;
+import org.icatproject.IcatException_Exception;
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.icatproject.ijp.batch.exceptions.SessionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up session usernames by calling ICAT.
+ *
+ * Creating an ICATService fetches and parses the WSDL, so the ICAT port for each icatUrl is created once and
+ * then shared. As the icatUrl comes from the caller, a port is only kept once an ICAT has answered through it, and
+ * only the MAX_PORTS most recently used are kept.
+ */
+public class IcatUserNameLookup implements UserNameCache.Lookup {
+
+	private final static Logger logger = LoggerFactory.getLogger(IcatUserNameLookup.class);
+
+	private final static QName qName = new QName("http://icatproject.org", "ICATService");
+
+	final static int MAX_PORTS = 16;
+
+	// In order of last use
+	private final Map<String, ICAT> ports = new LinkedHashMap<String, ICAT>(MAX_PORTS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ICAT> eldest) {
+			return size() > MAX_PORTS;
+		}
+	};
+
+	@Override
+	public String getUserName(String icatUrl, String sessionId) throws SessionException, ParameterException {
+		ICAT port = getPort(icatUrl);
+		try {
+			String userName = port.getUserName(sessionId);
+			keepPort(icatUrl, port);
+			return userName;
+		} catch (IcatException_Exception e) {
+			keepPort(icatUrl, port);
+			if (e.getFaultInfo().getType() == IcatExceptionType.SESSION) {
+				throw new SessionException("IcatException " + e.getFaultInfo().getType() + " " + e.getMessage());
+			} else {
+				throw new ParameterException("IcatException " + e.getFaultInfo().getType() + " " + e.getMessage());
+			}
+		}
+	}
+
+	private ICAT getPort(String icatUrl) throws ParameterException {
+		synchronized (ports) {
+			ICAT port = ports.get(icatUrl);
+			if (port != null) {
+				return port;
+			}
+		}
+		try {
+			ICATService service = new ICATService(new URL(new URL(icatUrl), "ICATService/ICAT?wsdl"), qName);
+			return service.getICATPort();
+		} catch (MalformedURLException e) {
+			throw new ParameterException("Bad URL " + e.getMessage());
+		}
+	}
+
+	private void keepPort(String icatUrl, ICAT port) {
+		synchronized (ports) {
+			// If another thread got there first, keep its port instead
+			if (!ports.containsKey(icatUrl)) {
+				ports.put(icatUrl, port);
+				logger.debug("Created ICAT port for " + icatUrl);
+			}
+		}
+	}
+}
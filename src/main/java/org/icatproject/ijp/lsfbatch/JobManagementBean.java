@@ -8,37 +8,53 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.PushbackInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
 import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
-import javax.xml.namespace.QName;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
-import org.icatproject.ICATService;
-import org.icatproject.IcatExceptionType;
-import org.icatproject.IcatException_Exception;
 import org.icatproject.ijp.batch.BatchJson;
 import org.icatproject.ijp.batch.JobStatus;
 import org.icatproject.ijp.batch.OutputType;
@@ -46,8 +62,7 @@ import org.icatproject.ijp.batch.exceptions.ForbiddenException;
 import org.icatproject.ijp.batch.exceptions.InternalException;
 import org.icatproject.ijp.batch.exceptions.ParameterException;
 import org.icatproject.ijp.batch.exceptions.SessionException;
-import org.icatproject.utils.CheckedProperties;
-import org.icatproject.utils.ShellCommand;
+import org.icatproject.ijp.lsfbatch.JobManagementConfig.PollMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,8 +73,14 @@ import org.slf4j.LoggerFactory;
 public class JobManagementBean {
 
 	private String defaultFamily;
-	private Map<String, List<String>> families = new HashMap<>();
+	private Map<String, List<String>> families;
 	private LsfUserPool lsfUserPool;
+	private JobStatusCache jobStatusCache;
+	private UserNameCache userNameCache;
+	private SubmissionQueue submissionQueue;
+	private CommandExecutor commandExecutor;
+	private OutputMover outputMover = new OutputMover();
+	private OutputCompressor outputCompressor = new OutputCompressor();
 
 	private Path jobOutputDir;
 
@@ -67,72 +88,83 @@ public class JobManagementBean {
 	private String lsfUserPoolBaseDir;
 	private String lsfUserOutputDir;
 	
+	private PollMode pollMode;
+	
+	private Bjobs.Format bjobsFormat;
+	
+	// How many pool users updateJobsFromBjobs() updates at once, and how long it may spend on them
+	private int pollThreads;
+	private long pollBudgetMillis;
+	
+	// Pool users whose update is in progress, so that a straggler from one cycle is not overlapped by the next
+	private final static Set<String> poolUsersInUpdate = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	// How many job outputs harvestJobOutputs() moves at once, how often it tries each, and whether it compresses them
+	private int harvestThreads;
+	private int harvestMaxAttempts;
+	private boolean compressOutput;
+	
+	// The delay before the first retry of a failed harvest, which doubles for each later one up to the maximum
+	private final static long HARVEST_RETRY_MILLIS = 30000L;
+	private final static long HARVEST_MAX_RETRY_MILLIS = 3600000L;
+	
+	// The most matches search() returns, and how long it may spend
+	private int searchMaxMatches;
+	private long searchTimeoutMillis;
+	
+	// The most lines of context search() returns around each match
+	private final static int MAX_SEARCH_CONTEXT = 10;
+	
+	// Jobs whose output is being moved
+	private final static Set<String> jobsInHarvest = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
 	private final static String chars = "abcdefghijklmnpqrstuvwxyz";
+	
+	// The statuses of jobs that have not finished, for the queries that must not touch finished jobs
+	final static List<JobStatus> UNFINISHED_STATUSES = Arrays.asList(JobStatus.Queued, JobStatus.Executing,
+			JobStatus.Held, JobStatus.Unknown);
+	
+	// The most jobs that list() returns at once when a limit is asked for
+	private final static int MAX_LIST_LIMIT = 1000;
+	
+	// Oracle, for one, will not accept more than 1000 items in an IN list
+	private final static int MAX_IN_LIST = 1000;
+	
+	// How long a queued job may be missing from the database before it is assumed that its submission failed
+	private final static long QUEUED_JOB_COMMIT_GRACE_MILLIS = 60000L;
+	
+	private final static Pattern jobNotFoundPattern = Pattern.compile("Job <(\\d+)> is not found");
 
-	private QName qName = new QName("http://icatproject.org", "ICATService");
 
+	@EJB
+	private JobManagementConfig config;
+
+	/**
+	 * Take the settings read from lsfbatch.properties by JobManagementConfig, which has also set up the pool users,
+	 * the caches and the submission queue; none of that is done again for each instance of this bean.
+	 */
 	@PostConstruct
 	void init() {
-
-		try {
-			CheckedProperties props = new CheckedProperties();
-			props.loadFromFile(Constants.PROPERTIES_FILEPATH);
-
-			String familiesList = props.getString("families.list");
-			for (String mnemonic : familiesList.split("\\s+")) {
-				if (defaultFamily == null) {
-					defaultFamily = mnemonic;
-				}
-				String key = "families." + mnemonic;
-				String[] members = props.getProperty(key).split("\\s+");
-				families.put(mnemonic, new ArrayList<>(Arrays.asList(members)));
-				logger.debug("Family " + mnemonic + " contains " + families.get(mnemonic));
-			}
-			if (defaultFamily == null) {
-				String msg = "No families defined";
-				logger.error(msg);
-				throw new IllegalStateException(msg);
-			}
-
-			lsfUserPool = LsfUserPool.getInstance();
-			for( String family : families.keySet() ){
-				for( String lsfUserId : families.get(family) ){
-					// See if any unfinished Jobs are assigned to this id
-					boolean isAssigned = false;
-					for (LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_BY_BATCHUSERNAME, LsfJob.class)
-							.setParameter("batchusername", lsfUserId).getResultList()) {
-						JobStatus status = job.getStatus();
-						if( status != null && ! isFinished(status) ){
-							isAssigned = true;
-						}
-					}
-					logger.debug("adding Lsf User: family '" + family + "', id '" + lsfUserId + "', assigned=" + isAssigned);
-					lsfUserPool.addLsfUser(family, lsfUserId, isAssigned);
-				}
-			}
-
-			jobOutputDir = props.getPath("jobOutputDir");
-			if (!jobOutputDir.toFile().exists()) {
-				String msg = "jobOutputDir " + jobOutputDir + "does not exist";
-				logger.error(msg);
-				throw new IllegalStateException(msg);
-			}
-			jobOutputDir = jobOutputDir.toAbsolutePath();
-
-			lsfDefaultQueue = props.getString("lsf.defaultQueue");
-			
-			// TODO lsfUserPoolBaseDir could be checked as a Path, but was refactored from a String constant and left as a String for now
-			
-			lsfUserPoolBaseDir = props.getString("lsf.userPoolBaseDir");
-			lsfUserOutputDir = props.getString("lsf.userOutputDir");
-			
-			logger.info("Set up lsfbatch with default family " + defaultFamily);
-		} catch (Exception e) {
-			String msg = e.getClass() + " reports " + e.getMessage();
-			logger.error(msg);
-			throw new IllegalStateException(msg);
-		}
-
+		defaultFamily = config.getDefaultFamily();
+		families = config.getFamilies();
+		lsfUserPool = LsfUserPool.getInstance();
+		jobStatusCache = JobStatusCache.getInstance();
+		userNameCache = UserNameCache.getInstance();
+		submissionQueue = SubmissionQueue.getInstance();
+		commandExecutor = config.getCommandExecutor();
+		jobOutputDir = config.getJobOutputDir();
+		lsfDefaultQueue = config.getLsfDefaultQueue();
+		lsfUserPoolBaseDir = config.getLsfUserPoolBaseDir();
+		lsfUserOutputDir = config.getLsfUserOutputDir();
+		pollMode = config.getPollMode();
+		bjobsFormat = config.getBjobsFormat();
+		pollThreads = config.getPollThreads();
+		pollBudgetMillis = config.getPollBudgetMillis();
+		harvestThreads = config.getHarvestThreads();
+		harvestMaxAttempts = config.getHarvestMaxAttempts();
+		compressOutput = config.isCompressOutput();
+		searchMaxMatches = config.getSearchMaxMatches();
+		searchTimeoutMillis = config.getSearchTimeoutMillis();
 	}
 
 	private final static Logger logger = LoggerFactory.getLogger(JobManagementBean.class);
@@ -141,113 +173,74 @@ public class JobManagementBean {
 	@PersistenceContext(unitName = "lsfbatch")
 	private EntityManager entityManager;
 
+	@Resource
+	private SessionContext sessionContext;
+
+	@Resource
+	private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
 	/**
-	 * updateJobsFromBjobs() is a scheduled method (every minute) to update the status of all known jobs for each LSF pool user.
-	 * For a particular pool user, if bjobs returns no jobs, or if all jobs are finished, the pool user is
-	 * released back to the pool (this may be a no-op as they may already be released).  At this point, any jobs with
-	 * an unfinished status will be assumed Completed (as they are no longer appearing in the bjobs output).
-	 * Additionally, if any job's status changes to Completed, the job's output is moved from the pool user account to the
-	 * glassfish holding area.  Jobs with status Cancelled require special care: bjobs will return a status of Completed
+	 * updateJobsFromBjobs() is run by BjobsPoller (every lsf.pollInterval, and never overlapping itself) to update the status
+	 * of all known jobs for each LSF pool user.
+	 * When a job is first seen to have finished, its slot on the pool user is released back to the pool.
+	 * For a particular pool user, if bjobs returns no jobs, any jobs with
+	 * an unfinished status will be assumed Completed (as they are no longer appearing in the bjobs output), and their slots released.
+	 * Additionally, if any job's status changes to Completed, the job's output is queued to be moved from the pool user account
+	 * to the glassfish holding area (see harvestJobOutputs()).  Jobs with status Cancelled require special care: bjobs will return a status of Completed
 	 * (mapped from EXIT), so we need to move their output if it hasn't been moved already.
-	 * As this is a scheduled method, any exceptions that may be raised from execution of bjobs, file moves or cleanups
+	 * Depending on lsf.pollMode, bjobs is either run once per pool user, or once per cycle for all users
+	 * (or for the explicit list of pool users), in which case the output is split by user here.
+	 * The jobs that may need updating are loaded for all the pool users with one query (see findJobsToPoll()), and
+	 * pool users that have none are not polled at all.
+	 * Each pool user is then updated (see updatePoolUser()) in its own transaction, up to lsf.pollThreads at once,
+	 * so that a failure or a slow home directory for one pool user does not hold up the others.
+	 * Pool users not reached within lsf.pollBudget are left until the next cycle.
+	 * Once the pool users have been updated, any queued jobs are dispatched to the pool users that have been released.
+	 * As this is run on a timer, any exceptions that may be raised from execution of bjobs, file moves or cleanups
 	 * will be caught and (merely) logged.
 	 */
-	@Schedule(minute = "*/1", hour = "*")
 	public void updateJobsFromBjobs() {
 		try {
 
-			// Need to run bjobs for *each* (active) user in the pool; glassfish user should be able to do this, no need for ssh
+			// Glassfish user should be able to run bjobs for any user, no need for ssh
 			
 			List<String> activePoolUsers = getActivePoolUsers();
 			logger.debug("Active pool users: " + activePoolUsers );
 			
-			for( String poolUserId : getActivePoolUsers() ){
+			// Pool users with no jobs that may need updating are left alone
+			Map<String, List<LsfJob>> polledByPoolUser = findJobsToPoll();
+			activePoolUsers.retainAll( polledByPoolUser.keySet() );
 			
-				ShellCommand sc = new ShellCommand("bjobs", "-aw", "-u", poolUserId );
-				if (sc.isError()) {
-					// Astonishingly, "No job found" counts as an error!
-					if( ! ("No job found".equals(sc.getStderr().trim())) ){
-						throw new InternalException("Unable to query jobs via bjobs: " + sc.getStderr());
-					}
-				}
-				String bJobsOutput = sc.getStdout().trim();
-				if (bJobsOutput.isEmpty()) {
-					// See if any jobs have completed without being noticed
-					// In practice, bjobs output is unlikely to be empty; but may be "No jobs found" or similar
-					// (but that may be on stderr, see above)
-					cleanUpJobs( poolUserId );
-					continue;
-				}
-	
-				Bjobs bJobs = new Bjobs( bJobsOutput );
-				Collection<Bjobs.Job> jobs = bJobs.getJobs();
-				if( jobs.size() == 0 ){
-					// No jobs found for this pool user, so see if we missed any becoming Completed
-					cleanUpJobs( poolUserId );
-					continue;
-				}
+			Map<String, Collection<Bjobs.Job>> jobsByPoolUser = new LinkedHashMap<String, Collection<Bjobs.Job>>();
+			if( activePoolUsers.isEmpty() ){
+				logger.debug("No pool user has jobs to update, so not running bjobs");
+			} else if( pollMode == PollMode.USER ){
 				
-				// Even if we do have some Bjobs, they might all be Completed,
-				// in which case we can free up this pool id
+				// One bjobs for *each* (active) user in the pool, run as part of the user's update
 				
-				// NOTE: we are only using cleanUpJobs() to set the status of unfound jobs (to Complete)
-				// once bjobs returns no jobs at all. It's possible that some may disappear before that
-				// (but hopefully this is unlikely).
+				for( String poolUserId : activePoolUsers ){
+					jobsByPoolUser.put( poolUserId, null );
+				}
 				
-				int uncompletedJobs = 0;
+			} else {
 				
-				for (Bjobs.Job bjob : bJobs.getJobs()) {
-					String id = bjob.getJobId();
-					JobStatus status = mapStatus(bjob.getStatus());
-					
-					if( ! isFinished(status) ){
-						uncompletedJobs++;
-					}
-					
-					// ExecHost not recorded in LsfJob at present
-					// String wn = bjob.getExecHost();
-					// String workerNode = wn != null ? wn.split("/")[0] : "";
-					
-					LsfJob job = entityManager.find(LsfJob.class, id);
-					if (job != null) {/* Log updates on portal jobs */
-						
-						JobStatus oldJobStatus = job.getStatus();
-						if (!oldJobStatus.equals(status) ) {
-							
-							if( ! JobStatus.Cancelled.equals(oldJobStatus) ){
-								logger.debug("Updating status of job '" + id + "' from '" + oldJobStatus
-										+ "' to '" + status + "'");
-								job.setStatus(status);
-							} else {
-								logger.debug("Job '" + id + "' is Cancelled, ignoring bjobs status (" + status + ")");
-							}
-							if( status.equals(JobStatus.Completed) ){
-								
-								// If the oldJobStatus is anything other than Cancelled (it can't be Completed here),
-								// we have probably spotted the job's completion for the first time, and should move
-								// the output to the glassfish job area.
-								// If the job has been Cancelled, we only want to move the output the first time
-								// that bjobs returns a status of Completed (mapped from EXIT).
-								// If the final output folder exists, assume we've already moved the output
-								
-								if( (! JobStatus.Cancelled.equals(oldJobStatus)) || (! finalOutputDirExists(job)) ){
-									// Job has 'just' finished, so copy job output to glassfish job area
-									logger.debug("Job '" + id + "' has (just) finished.");
-									moveJobOutput( job );
-								}
-							}
-						}
-					}
-				}
+				// A single bjobs for the whole pool, split by user here
 				
-				if( uncompletedJobs == 0 ){
-					
-					// TODO Restore pool user's files to a pristine state, in case a job has fiddled with them
-					
-					logger.debug("Userid " + poolUserId + " has no uncompleted jobs, so releasing it back to the pool");
-					lsfUserPool.freeUser(poolUserId);
+				String userSpec = pollMode == PollMode.ALL ? "all" : joined( activePoolUsers );
+				Map<String, List<Bjobs.Job>> jobsByUser = runBjobsFor( userSpec ).getJobsByUser();
+				for( String poolUserId : activePoolUsers ){
+					List<Bjobs.Job> jobs = jobsByUser.get( poolUserId );
+					if( jobs == null ){
+						jobs = Collections.emptyList();
+					}
+					jobsByPoolUser.put( poolUserId, jobs );
 				}
-			} // for activePoolUsers
+			}
+			updatePoolUsers( jobsByPoolUser, polledByPoolUser );
+			logger.debug(jobStatusCache.toString());
+			
+			dispatchQueuedJobs();
+			logger.debug(submissionQueue.toString());
 		} catch (Exception e) {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			e.printStackTrace(new PrintStream(baos));
@@ -256,6 +249,265 @@ public class JobManagementBean {
 		}
 	}
 	
+	/**
+	 * Update the given pool users in parallel, waiting until they have all been updated or the poll budget has been spent.
+	 * 
+	 * @param jobsByPoolUser the bjobs entries for each pool user, or null entries if bjobs is still to be run for them
+	 * @param polledByPoolUser the jobs of each pool user that may need updating
+	 * @throws InterruptedException
+	 */
+	private void updatePoolUsers( Map<String, Collection<Bjobs.Job>> jobsByPoolUser,
+			Map<String, List<LsfJob>> polledByPoolUser ) throws InterruptedException {
+		// The asynchronous calls must go through the container, not to this instance
+		JobManagementBean self = sessionContext.getBusinessObject(JobManagementBean.class);
+		Semaphore threads = new Semaphore(pollThreads);
+		long deadline = System.currentTimeMillis() + pollBudgetMillis;
+		List<String> skipped = new ArrayList<String>();
+		for( Map.Entry<String, Collection<Bjobs.Job>> entry : jobsByPoolUser.entrySet() ){
+			String poolUserId = entry.getKey();
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 || ! threads.tryAcquire(remaining, TimeUnit.MILLISECONDS) ){
+				skipped.add(poolUserId);
+				continue;
+			}
+			if( ! poolUsersInUpdate.add(poolUserId) ){
+				logger.warn("Pool user " + poolUserId + " is still being updated from an earlier cycle, so skipping it");
+				threads.release();
+				continue;
+			}
+			try {
+				self.updatePoolUser( poolUserId, entry.getValue(), polledByPoolUser.get(poolUserId), threads );
+			} catch (RuntimeException e) {
+				poolUsersInUpdate.remove(poolUserId);
+				threads.release();
+				throw e;
+			}
+		}
+		if( ! skipped.isEmpty() ){
+			logger.warn("Poll budget of " + pollBudgetMillis + "ms spent, so leaving pool users " + skipped + " until the next cycle");
+		}
+		if( ! threads.tryAcquire(pollThreads, Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) ){
+			logger.warn("Poll budget of " + pollBudgetMillis + "ms spent with some pool users still being updated: " + poolUsersInUpdate);
+		}
+	}
+	
+	/**
+	 * Update the jobs of a single pool user, running bjobs for it first if need be. This runs in its own transaction,
+	 * on a container thread; any exception is caught and (merely) logged.
+	 * It is only public so that updateJobsFromBjobs() can call it through the container.
+	 * 
+	 * @param poolUserId the pool user
+	 * @param jobs the bjobs entries for the pool user, or null to run bjobs for it here
+	 * @param polled the pool user's jobs that may need updating, as loaded for this cycle
+	 * @param threads the permit to release once the update is done
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void updatePoolUser( String poolUserId, Collection<Bjobs.Job> jobs, Collection<LsfJob> polled, Semaphore threads ) {
+		try {
+			if( jobs == null ){
+				jobs = runBjobsFor( poolUserId ).getJobs();
+			}
+			updateJobsForPoolUser( poolUserId, jobs, polled );
+		} catch (Exception e) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			e.printStackTrace(new PrintStream(baos));
+			logger.error("Update of db jobs from bjobs failed for pool user " + poolUserId + " (exception caught here). Class "
+					+ e.getClass() + " reports " + e.getMessage() + baos.toString());
+		} finally {
+			poolUsersInUpdate.remove(poolUserId);
+			threads.release();
+		}
+	}
+	
+	/**
+	 * Run bjobs (locally, as the glassfish user) for the given user specification, which
+	 * may be a single user, a space-separated list of users or "all".
+	 * 
+	 * @param userSpec the argument to pass to bjobs -u
+	 * @return the parsed bjobs output
+	 * @throws InternalException if bjobs fails or its output cannot be parsed
+	 */
+	private Bjobs runBjobsFor( String userSpec ) throws InternalException {
+		return Bjobs.run( commandExecutor, bjobsFormat, userSpec );
+	}
+	
+	/**
+	 * Build a bjobs command line (including finished jobs) that asks for the configured output format.
+	 * 
+	 * @param selection arguments selecting the jobs, e.g. "-u", user or a job id
+	 * @return the command line
+	 */
+	private String[] bjobsCommand( String... selection ){
+		return Bjobs.command( bjobsFormat, selection );
+	}
+	
+	/**
+	 * Build a command line to run bjobs (see bjobsCommand()) as a pool user, via ssh.
+	 * As ssh passes the command to the remote shell, each argument is quoted.
+	 * 
+	 * @param selection arguments selecting the jobs
+	 * @return the command line
+	 */
+	private String[] sshBjobsCommand( String... selection ){
+		List<String> command = new ArrayList<String>();
+		for( String arg : bjobsCommand(selection) ){
+			command.add(escaped(Collections.singletonList(arg)));
+		}
+		return command.toArray(new String[command.size()]);
+	}
+	
+	/**
+	 * Update the jobs of a single pool user from the bjobs entries for that user.
+	 * The jobs are those loaded for the whole cycle by findJobsToPoll(), so they are not managed here: a job is
+	 * only loaded again (see current()) when bjobs shows that it has changed, and then only changed if nothing else
+	 * (such as a cancel) has changed it since it was loaded.
+	 * 
+	 * @param poolUserId the pool user
+	 * @param jobs the bjobs entries for the pool user (may be empty)
+	 * @param polled the pool user's jobs that may need updating, as loaded for this cycle
+	 * @throws InternalException
+	 */
+	private void updateJobsForPoolUser( String poolUserId, Collection<Bjobs.Job> jobs, Collection<LsfJob> polled ) throws InternalException {
+		
+		// Each job that we see finish for the first time releases its slot on this pool user
+		
+		// NOTE: we are only using cleanUpJobs() to set the status of unfound jobs (to Complete)
+		// once bjobs returns no jobs at all. It's possible that some may disappear before that
+		// (but hopefully this is unlikely).
+		
+		// Changes are written when the transaction commits, batched (see eclipselink.jdbc.batch-writing)
+		
+		// A job's LSF id is the same as its own id, unless the job was queued before it was submitted to LSF
+		Map<String, LsfJob> unlisted = new HashMap<String, LsfJob>();
+		for( LsfJob job : polled ){
+			unlisted.put(job.getBatchJobId(), job);
+		}
+		for (Bjobs.Job bjob : jobs) {
+			LsfJob seen = unlisted.remove(bjob.getJobId());
+			if (seen == null) {/* Only portal jobs that may need updating */
+				continue;
+			}
+			String id = seen.getId();
+			JobStatus status = mapStatus(bjob.getStatus());
+			
+			// ExecHost not recorded in LsfJob at present
+			// String wn = bjob.getExecHost();
+			// String workerNode = wn != null ? wn.split("/")[0] : "";
+			
+			jobStatusCache.put(id, status);
+			
+			JobStatus oldJobStatus = seen.getStatus();
+			if( oldJobStatus.equals(status) ){
+				continue;
+			}
+			if( JobStatus.Cancelled.equals(oldJobStatus) && ! status.equals(JobStatus.Completed) ){
+				logger.debug("Job '" + id + "' is Cancelled, ignoring bjobs status (" + status + ")");
+				continue;
+			}
+			LsfJob job = current( seen );
+			if( job == null ){
+				continue;
+			}
+			
+			if( ! JobStatus.Cancelled.equals(oldJobStatus) ){
+				logger.debug("Updating status of job '" + id + "' from '" + oldJobStatus
+						+ "' to '" + status + "'");
+				job.setStatus(status);
+				if( isFinished(status) && ! isFinished(oldJobStatus) ){
+					logger.debug("Job '" + id + "' has finished, so releasing its slot on " + poolUserId);
+					releaseSlotOnCommit(poolUserId, false);
+				}
+			} else {
+				logger.debug("Job '" + id + "' is Cancelled, ignoring bjobs status (" + status + ")");
+			}
+			if( status.equals(JobStatus.Completed) ){
+				
+				// If the oldJobStatus is anything other than Cancelled (it can't be Completed here),
+				// we have probably spotted the job's completion for the first time, and should move
+				// the output to the glassfish job area.
+				// If the job has been Cancelled, we only want to move the output the first time
+				// that bjobs returns a status of Completed (mapped from EXIT), i.e. if no harvest
+				// has been requested yet. If the final output folder exists (for jobs that finished
+				// before harvests were recorded), assume we've already moved the output
+				
+				if( (! JobStatus.Cancelled.equals(oldJobStatus)) || (! finalOutputDirExists(job)) ){
+					// Job has 'just' finished, so have its output moved to the glassfish job area
+					logger.debug("Job '" + id + "' has (just) finished.");
+					requestHarvest( job );
+				} else {
+					// So that it is not polled again
+					job.setHarvestState(HarvestState.DONE);
+				}
+			}
+		}
+		
+		cleanUpJobs( poolUserId, unlisted.values(), jobs.isEmpty() );
+		
+		// TODO Restore pool user's files to a pristine state, in case a job has fiddled with them
+		// (which can only be done once the pool user has no uncompleted jobs)
+	}
+	
+	/**
+	 * Find the jobs of all the pool users whose status may need updating: those that have been submitted to LSF and
+	 * have not finished, and those that have been cancelled but whose output has not yet been harvested.
+	 * They are loaded with one query for the whole cycle rather than one for each pool user, and are detached, as
+	 * each pool user is updated in a transaction of its own (see updatePoolUser()).
+	 * 
+	 * @return map from pool user to its jobs that may need updating; pool users with none are left out
+	 */
+	private Map<String, List<LsfJob>> findJobsToPoll(){
+		Map<String, List<LsfJob>> jobsByPoolUser = new HashMap<String, List<LsfJob>>();
+		for( LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_TO_POLL, LsfJob.class)
+				.setParameter("statuses", UNFINISHED_STATUSES).setParameter("cancelled", JobStatus.Cancelled)
+				.getResultList() ){
+			List<LsfJob> polled = jobsByPoolUser.get(job.getBatchUsername());
+			if( polled == null ){
+				polled = new ArrayList<LsfJob>();
+				jobsByPoolUser.put(job.getBatchUsername(), polled);
+			}
+			polled.add(job);
+		}
+		// Otherwise any change made to them by the pool users' updates would be written again by this transaction
+		entityManager.clear();
+		return jobsByPoolUser;
+	}
+	
+	/**
+	 * Load again a job that was loaded for this cycle (see findJobsToPoll()), so that it can be changed.
+	 * 
+	 * @param seen the job as it was loaded for this cycle
+	 * @return the job, or null if it has been deleted or its status has changed since (in which case it is left
+	 *         until the next cycle)
+	 */
+	private LsfJob current( LsfJob seen ){
+		LsfJob job = entityManager.find(LsfJob.class, seen.getId());
+		if( job == null || ! job.getStatus().equals(seen.getStatus()) ){
+			logger.debug("Job '" + seen.getId() + "' has changed since it was polled, so leaving it until the next poll");
+			return null;
+		}
+		return job;
+	}
+	
+	/**
+	 * Whether or not the job has been submitted to LSF; it may instead be (or have been, if since cancelled)
+	 * waiting in the submission queue for a free pool user.
+	 */
+	private boolean isDispatched( LsfJob job ){
+		return job.getBatchUsername() != null;
+	}
+	
+	static String joined( Collection<String> items ){
+		StringBuilder sb = new StringBuilder();
+		for( String item : items ){
+			if( sb.length() != 0 ){
+				sb.append(" ");
+			}
+			sb.append(item);
+		}
+		return sb.toString();
+	}
+	
 	private boolean isFinished( JobStatus status ){
 		return JobStatus.Completed.equals(status) || JobStatus.Cancelled.equals(status);
 	}
@@ -264,53 +516,198 @@ public class JobManagementBean {
 		return Files.exists(jobOutputDir.resolve(job.getId()));
 	}
 
+	/**
+	 * Record that the output of a finished job is to be moved to the glassfish holding area.
+	 * The move itself is left to harvestJobOutputs(), so that polling is not held up by large outputs.
+	 * Nothing is done if a harvest has already been requested for the job.
+	 * 
+	 * @param job
+	 */
+	static void requestHarvest( LsfJob job ){
+		if( job.getHarvestState() == null ){
+			logger.debug("Queueing the output of job '" + job.getId() + "' to be moved");
+			job.setHarvestState(HarvestState.PENDING);
+			job.setHarvestDue(new Date());
+		}
+	}
+
+	/**
+	 * harvestJobOutputs() is a scheduled method (every 10 seconds) that starts moving the outputs of finished jobs
+	 * whose harvests are due (see harvestJobOutput()), up to harvest.threads at once. It does not wait for them.
+	 * As this is a scheduled method, any exceptions will be caught and (merely) logged.
+	 */
+	@Schedule(second = "*/10", minute = "*", hour = "*")
+	public void harvestJobOutputs() {
+		try {
+			int free = harvestThreads - jobsInHarvest.size();
+			if( free <= 0 ){
+				return;
+			}
+			// The asynchronous calls must go through the container, not to this instance
+			JobManagementBean self = sessionContext.getBusinessObject(JobManagementBean.class);
+			for (LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_HARVEST_DUE, LsfJob.class)
+					.setParameter("state", HarvestState.PENDING).setParameter("now", new Date())
+					.setMaxResults(harvestThreads).getResultList()) {
+				if( jobsInHarvest.size() >= harvestThreads ){
+					break;
+				}
+				String jobId = job.getId();
+				if( jobsInHarvest.add(jobId) ){
+					try {
+						self.harvestJobOutput( jobId );
+					} catch (RuntimeException e) {
+						jobsInHarvest.remove(jobId);
+						throw e;
+					}
+				}
+			}
+		} catch (Exception e) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			e.printStackTrace(new PrintStream(baos));
+			logger.error("Harvest of job outputs failed (exception caught here). Class " + e.getClass() + " reports "
+					+ e.getMessage() + baos.toString());
+		}
+	}
+
+	/**
+	 * Move the output of a single job, in its own transaction on a container thread. If the move fails it is retried
+	 * later, backing off exponentially, until harvest.maxAttempts attempts have been made; the output is then left
+	 * with the pool user, where getJobOutput() can still find it.
+	 * It is only public so that harvestJobOutputs() can call it through the container.
+	 * 
+	 * @param jobId
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void harvestJobOutput( String jobId ) {
+		try {
+			LsfJob job = entityManager.find(LsfJob.class, jobId);
+			if( job == null || job.getHarvestState() != HarvestState.PENDING ){
+				// Deleted, or harvested already
+				return;
+			}
+			int attempts = job.getHarvestAttempts() + 1;
+			job.setHarvestAttempts(attempts);
+			try {
+				long start = System.currentTimeMillis();
+				long bytes = moveJobOutput( job );
+				job.setHarvestState(HarvestState.DONE);
+				job.setHarvestedBytes(bytes);
+				logger.debug("Moved " + bytes + " bytes of output for job '" + jobId + "' in "
+						+ (System.currentTimeMillis() - start) + "ms");
+				indexJobOutput( job );
+				if( compressOutput ){
+					compressJobOutput( job );
+				}
+			} catch (Exception e) {
+				if( attempts >= harvestMaxAttempts ){
+					job.setHarvestState(HarvestState.FAILED);
+					logger.error("Giving up moving the output of job '" + jobId + "' after " + attempts + " attempts: "
+							+ e.getMessage());
+				} else {
+					long delay = Math.min(HARVEST_MAX_RETRY_MILLIS, HARVEST_RETRY_MILLIS << Math.min(attempts - 1, 20));
+					job.setHarvestDue(new Date(System.currentTimeMillis() + delay));
+					logger.warn("Attempt " + attempts + " to move the output of job '" + jobId + "' failed, retrying in "
+							+ delay + "ms: " + e.getMessage());
+				}
+			}
+		} finally {
+			jobsInHarvest.remove(jobId);
+		}
+	}
+
+	/**
+	 * Build the line indexes of the job's output in the glassfish output area (see LineIndex), while the files are
+	 * still uncompressed and likely to be in the page cache. A failure is only logged, as an index is built
+	 * when it is first needed if there is none.
+	 * 
+	 * @param job
+	 */
+	private void indexJobOutput(LsfJob job) {
+		for( OutputType outputType : OutputType.values() ){
+			Path path = getGlassfishOutputAreaFor(job).resolve(getJobFilename(job, outputType));
+			try {
+				long start = System.currentTimeMillis();
+				LineIndex index = LineIndex.update(path);
+				logger.debug("Indexed " + index.getLines() + " lines of " + path + " in "
+						+ (System.currentTimeMillis() - start) + "ms");
+			} catch (NoSuchFileException e) {
+				logger.debug("No " + outputType + " to index for job '" + job.getId() + "'");
+			} catch (IOException e) {
+				logger.warn("Unable to index " + path + ": " + e.getClass() + " reports " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Compress the files in the job's glassfish output area. A failure is only logged, as the output is still
+	 * there uncompressed.
+	 * 
+	 * @param job
+	 */
+	private void compressJobOutput(LsfJob job) {
+		try {
+			long start = System.currentTimeMillis();
+			long saved = outputCompressor.compress(getGlassfishOutputAreaFor(job));
+			logger.debug("Compressing output for job '" + job.getId() + "' saved " + saved + " bytes in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			logger.warn("Unable to compress output for job '" + job.getId() + "': " + e.getClass() + " reports " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Move any job output files from the Job's batch user to our quasi-permanent holding area,
 	 * where job outputs will be stored in a job.id subfolder.
 	 * 
-	 * This should only be called for Jobs that have status Completed (though it may also be called
-	 * for jobs that "disappear" from the LSF bjobs output, on the assumption that they have finished
-	 * without us noticing).
+	 * The batch user's files are copied, as they are owned by the batch user, who must not be able to change them
+	 * once harvested; they are only renamed or hard linked if already owned by glassfish (see OutputMover);
+	 * either way the job.id subfolder only appears once it is complete, and until the batch user's files are removed,
+	 * after that, getJobOutput() finds them there instead.
 	 * 
-	 * It should only be called once per Job.
+	 * This should only be called (by harvestJobOutput()) for Jobs that have finished. It may safely be called
+	 * again after a failure, or after the files have already been moved.
 	 * 
 	 * @param job
+	 * @return the number of bytes moved
 	 * @throws InternalException
 	 */
-	private void moveJobOutput(LsfJob job) throws InternalException {
+	private long moveJobOutput(LsfJob job) throws InternalException {
 		
 		logger.debug("Moving job output for job: " + job.getId() + " for lsf user: " + job.getBatchUsername());
 		
-		Path path = jobOutputDir.resolve(job.getId());
-		
-		// Expect to have to create this folder now.
-		if( ! Files.exists(path) ){
-			try {
-				Files.createDirectory(path);
-			} catch (IOException e) {
-				throw new InternalException("Could not create output folder for " + path.toString() );
-			}
-		}
+		Path path = getGlassfishOutputAreaFor(job);
 		
 		String batchUser = job.getBatchUsername();
 		Path batchPath = getUserJobsOutputPath( batchUser ).resolve(job.getDirectory());
 		
-		// Copy files from batchPath to path
-
-		File[] files = batchPath.toFile().listFiles();
-		if( files != null ){
-			for( File file : files ){
-				try {
-					Files.copy(file.toPath(), path.resolve(file.getName()));
-				} catch (IOException e) {
-					throw new InternalException("Could not copy output file " + file.getName() + ": " + e.getMessage() );
+		if( ! Files.isDirectory(batchPath) ){
+			logger.debug("No output folder " + batchPath + " for job " + job.getId() + ", so nothing to move");
+			return 0L;
+		}
+		
+		long bytes;
+		try {
+			if( Files.isDirectory(path) ){
+				// Output here is complete, as the folder only appears (by an atomic rename) once it is; an earlier
+				// attempt failed to remove the batch user's files, so only that is tried again
+				logger.debug("Output of job " + job.getId() + " already moved to " + path);
+				bytes = OutputMover.size(path);
+			} else {
+				OutputMover.Result result = outputMover.move(batchPath, path);
+				logger.debug("Output of job " + job.getId() + " moved by " + result.getMethod());
+				if( result.getMethod() == OutputMover.Method.RENAME ){
+					return result.getBytes();
 				}
+				bytes = result.getBytes();
 			}
+		} catch (IOException e) {
+			throw new InternalException("Could not move output of job " + job.getId() + ": " + e.getClass() + " reports " + e.getMessage() );
 		}
 		
-		// Use the batchfile owner to remove the output files.
+		// Use the batchfile owner to remove the output files (they were not renamed).
 		
-		ShellCommand sc = new ShellCommand( "ssh", "-i", getSshIdFileNameFor( batchUser ), batchUser + "@localhost", "rm", "-rf", batchPath.toString() );
+		CommandResult sc = commandExecutor.runAs(batchUser, "rm", "-rf", batchPath.toString() );
 		if( sc.isError() ){
 			throw new InternalException( "Error when trying to remove batch user output files: " + sc.getMessage() );
 		}
@@ -318,41 +715,87 @@ public class JobManagementBean {
 		// It might make sense to delete the batchfile now as well;
 		// at present, it is retained until the user explicitly deletes the job.
 		
+		return bytes;
 	}
 
 	private List<String> getActivePoolUsers() {
-		List<String> poolUsers = new ArrayList<String>();
+		// Users may be members of more than one family, but only need to be polled once
+		Set<String> poolUsers = new LinkedHashSet<String>();
 		for( List<String> members : families.values() ){
 			poolUsers.addAll( members );
 		}
-		return poolUsers;
+		return new ArrayList<String>( poolUsers );
 	}
 	
 	/**
-	 * cleanUpJobs() is called for a poolUserId when bjobs lists no jobs for that user.
-	 * It checks the set of LsfJobs for that user: if any are not known to have status Completed,
-	 * we assume that they have completed without updateJobsFromBjobs() noticing, and move any output
-	 * for them from the batch user to the glassfish output area.
-	 * Once this has been done, the batch user can be released back to the user pool.
+	 * cleanUpJobs() is called for the jobs of a poolUserId that bjobs did not list.
+	 * A Cancelled job whose output was never harvested is no longer known to LSF, so bjobs will never report it
+	 * as finished: its output is moved now, unless it was moved before harvests were recorded.
+	 * If bjobs listed no jobs at all for the user, any of its jobs not known to have finished
+	 * are assumed to have completed without updateJobsFromBjobs() noticing: their output is
+	 * moved from the batch user to the glassfish output area, and their slots are released back to the user pool.
 	 * 
 	 * @param poolUserId
+	 * @param unlisted the pool user's jobs that may need updating (as loaded for this cycle) that bjobs did not list
+	 * @param noneListed whether bjobs listed no jobs at all for the pool user
 	 * @throws InternalException
 	 */
-	private void cleanUpJobs( String poolUserId ) throws InternalException{
-		for (LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_BY_BATCHUSERNAME, LsfJob.class)
-				.setParameter("batchusername", poolUserId).getResultList()) {
-			if( ! isFinished(job.getStatus()) ){
-				logger.warn("Updating status of job '" + job.getId() + "' from '"
-						+ job.getStatus() + "' to 'Completed' as not known to bjobs");
-				job.setStatus(JobStatus.Completed);
-				moveJobOutput(job);
+	private void cleanUpJobs( String poolUserId, Collection<LsfJob> unlisted, boolean noneListed ) throws InternalException{
+		for (LsfJob seen : unlisted) {
+			boolean cancelled = JobStatus.Cancelled.equals(seen.getStatus());
+			if (!cancelled && !noneListed) {
+				continue;
 			}
+			LsfJob job = current(seen);
+			if (job == null) {
+				continue;
+			}
+			if (cancelled) {
+				if (finalOutputDirExists(job)) {
+					job.setHarvestState(HarvestState.DONE);
+				} else {
+					logger.debug("Job '" + job.getId() + "' was Cancelled and is no longer known to bjobs, so moving its output");
+					requestHarvest(job);
+				}
+				continue;
+			}
+			logger.warn("Updating status of job '" + job.getId() + "' from '"
+					+ job.getStatus() + "' to 'Completed' as not known to bjobs");
+			job.setStatus(JobStatus.Completed);
+			jobStatusCache.put(job.getId(), JobStatus.Completed);
+			releaseSlotOnCommit(poolUserId, false);
+			requestHarvest(job);
 		}
-		
-		// And free up this userid back to the pool
-		
-		logger.debug("Userid " + poolUserId + " has no uncompleted jobs, so releasing it back to the pool (in cleanUpJobs)");
-		lsfUserPool.freeUser(poolUserId);
+	}
+
+	/**
+	 * Release a slot on the given pool user once the current transaction has committed. A slot is released when a job
+	 * is recorded as finished; if that record were lost (e.g. because the flush failed) the job would be seen to finish
+	 * again, and its slot released twice.
+	 * 
+	 * @param poolUserId the pool user
+	 * @param dispatchQueued whether to then dispatch any queued jobs (in the background)
+	 */
+	private void releaseSlotOnCommit( final String poolUserId, boolean dispatchQueued ){
+		final JobManagementBean self = dispatchQueued ? sessionContext.getBusinessObject(JobManagementBean.class) : null;
+		transactionSynchronizationRegistry.registerInterposedSynchronization(new Synchronization() {
+			
+			@Override
+			public void beforeCompletion() {
+			}
+			
+			@Override
+			public void afterCompletion(int status) {
+				if( status != Status.STATUS_COMMITTED ){
+					logger.debug("Transaction not committed, so keeping the slot on " + poolUserId);
+					return;
+				}
+				lsfUserPool.releaseSlot(poolUserId);
+				if( self != null ){
+					self.dispatchQueuedJobsInBackground();
+				}
+			}
+		});
 	}
 
 	/**
@@ -374,6 +817,22 @@ public class JobManagementBean {
 	 */
 	public InputStream getJobOutput(String jobId, OutputType outputType, String sessionId, String icatUrl)
 			throws SessionException, ForbiddenException, InternalException, ParameterException {
+		return getJobOutput(jobId, outputType, false, 0L, -1L, sessionId, icatUrl).getStream();
+	}
+	
+	/**
+	 * As getJobOutput(), but for just part of the output if an offset or length is given, so that clients can fetch
+	 * only what has been added since they last looked. The size of the whole output is returned with the stream.
+	 * If the whole output has been compressed in the glassfish holding area (see harvest.compress) and the client
+	 * accepts gzip encoding, the compressed bytes are returned as they are; otherwise they are decompressed as they are read.
+	 * 
+	 * @param gzipAccepted whether the client accepts gzip encoding
+	 * @param offset the offset of the first byte wanted; if negative, that many bytes from the end of the output
+	 * @param length the number of bytes wanted, or -1 for the rest of the output
+	 * @return the stream on the requested output type, whether it is gzip compressed, and its offset and the size of the output
+	 */
+	public JobOutput getJobOutput(String jobId, OutputType outputType, boolean gzipAccepted, long offset, long length,
+			String sessionId, String icatUrl) throws SessionException, ForbiddenException, InternalException, ParameterException {
 		
 		/* 
 		 * The location of the output files depends on the (real) status of the job (which we might not know).
@@ -383,15 +842,27 @@ public class JobManagementBean {
 		 *
 		 *   1. in <poolUser>/.lsbatch/*.<jobid>.{out|err} (used during job execution, removed by LSF on completion)
 		 *   2. in <poolUser>/<jobOutputDir>/<jobid>.{log|err} (created by LSF on completion)
-		 *   3. in <glassfishArea>/<jobid>/<jobid>.{log|err} (moved by updateJobs here when it spots the job has completed)
+		 *   3. in <glassfishArea>/<jobid>/<jobid>.{log|err} (moved by harvestJobOutput() once updateJobs has spotted the job has completed)
 		 */
 		
 		logger.info("getJobOutput called with sessionId:" + sessionId + " jobId:" + jobId
-				+ " outputType:" + outputType);
+				+ " outputType:" + outputType + " offset:" + offset + " length:" + length);
 		LsfJob job = getJob(jobId, sessionId, icatUrl);
-		InputStream is;
+		
+		return openJobOutput(job, outputType, gzipAccepted, offset, length);
+	}
+	
+	private JobOutput openJobOutput(LsfJob job, OutputType outputType, boolean gzipAccepted, long offset, long length)
+			throws InternalException, ParameterException {
+		
+		String jobId = job.getId();
+		if( ! isDispatched(job) ){
+			throw new ParameterException("No output file of type " + outputType
+					+ " available at the moment: job " + jobId + " has not been submitted to LSF");
+		}
 
-		String jobFilename = job.getId() + "." + (outputType == OutputType.STANDARD_OUTPUT ? "log" : "err");
+		String batchJobId = job.getBatchJobId();
+		String jobFilename = getJobFilename(job, outputType);
 		String batchUser = job.getBatchUsername();
 		
 		logger.debug("Looking for mid-execution temporary output files first...");
@@ -404,43 +875,311 @@ public class JobManagementBean {
 
 		// use ssh <poolUser> to get the output file, if it exists - glassfish has no read access
 		
-		final String outputFilePattern =  batchFolder.toString() + File.separator + "*." + jobId + "."
+		final String outputFilePattern =  batchFolder.toString() + File.separator + "*." + batchJobId + "."
 				+ (outputType == OutputType.STANDARD_OUTPUT ? "out" : "err");
 		
-		ShellCommand sc = new ShellCommand( "ssh", "-i", getSshIdFileNameFor(batchUser), batchUser + "@localhost", "cat", outputFilePattern );
-		if( ! sc.isError() ){
-			
-			logger.debug("Temp file cat succeeded, so treat output as result");
-			return new ByteArrayInputStream(sc.getStdout().getBytes());
+		// Only the wanted part of the file is fetched, as it may be large and growing, and it is streamed
+		// from tail rather than collected in memory
+		
+		CommandResult sc = commandExecutor.runAs(batchUser, "stat", "-L", "-c", "%s", outputFilePattern );
+		long size = -1L;
+		if( ! sc.isError() ){
+			try {
+				size = Long.parseLong(sc.getStdout().trim().split("\\s+")[0]);
+			} catch (NumberFormatException e) {
+				logger.warn("Unexpected output from stat for " + outputFilePattern + ": " + sc.getStdout());
+			}
+		}
+		if( size >= 0 ){
+			long start = JobOutput.start(offset, size);
+			if( start >= size || length == 0 ){
+				return new JobOutput(new ByteArrayInputStream(new byte[0]), false, start, size, true);
+			}
+			InputStream in = commandExecutor.openAs(batchUser, "tail", "-c", "+" + (start + 1), outputFilePattern );
+			// There was something to read when the size was taken, so no output means the file has gone
+			PushbackInputStream stream = new PushbackInputStream(in);
+			int first;
+			try {
+				first = stream.read();
+				if( first >= 0 ){
+					stream.unread(first);
+				}
+			} catch (IOException e) {
+				first = -1;
+				logger.debug("Reading " + outputFilePattern + " failed: " + e.getMessage());
+			}
+			if( first >= 0 ){
+				logger.debug("Temp file read succeeded, so treat output as result");
+				// Stopping at the size that was taken, though the file may have grown since, so that it matches the output
+				long available = size - start;
+				return new JobOutput(JobOutput.limit(stream, length < 0 ? available : Math.min(length, available)),
+						false, start, size, true);
+			}
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Nothing more to read from it
+			}
+		}
+		
+		logger.debug("Temp file not found; looking for pool user output file...");
+		
+		// The pool user's file is only removed once it has been moved to the glassfish area,
+		// so if it has gone by the time we try to open it, it will be found there
+		
+		Path outputParentPath = getUserJobsOutputPath( batchUser );
+		Path path = outputParentPath.resolve(job.getDirectory()).resolve(jobFilename);
+		try {
+			logger.debug("Try to create stream for " + path.toString() );
+			JobOutput output = OutputCompressor.open(path, false, offset, length);
+			logger.debug("Returning output for " + jobId);
+			return output;
+		} catch (NoSuchFileException e) {
+			logger.debug("Pool user output file not found, so looking in glassfish area");
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " reports " + e.getMessage());
+		}
+		
+		path = getGlassfishOutputAreaFor( job ).resolve(jobFilename);
+		JobOutput output;
+		try {
+			logger.debug("Try to create stream for " + path.toString() );
+			output = OutputCompressor.open(path, gzipAccepted, offset, length);
+		} catch (NoSuchFileException e) {
+			throw new ParameterException("No output file of type " + outputType
+					+ " available at the moment");
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " reports " + e.getMessage());
+		}
+		logger.debug("Returning " + (output.isGzipped() ? "compressed " : "") + "output for " + jobId);
+		return output;
+	}
+
+	/**
+	 * tailJobOutput() implements the RESTful method tail/{jobId}.
+	 * It subscribes to the shared tail of the job's output (see LogTail), starting one if nobody is following the job,
+	 * so that however many clients watch a running job its output is read at most once per tail.pollInterval.
+	 * The subscription is only made once the caller has been checked, and is ended by LogTails when the subscriber
+	 * has had the end event or has gone.
+	 * 
+	 * @param jobId
+	 * @param subscriber where to send the events
+	 * @param sessionId
+	 * @param icatUrl
+	 * @return the tail
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws ParameterException
+	 */
+	public LogTail tailJobOutput(final String jobId, LogTail.Subscriber subscriber, String sessionId, String icatUrl)
+			throws SessionException, ForbiddenException, ParameterException {
+		logger.info("tailJobOutput called with sessionId:" + sessionId + " jobId:" + jobId);
+		getJob(jobId, sessionId, icatUrl);
+		
+		// The tail outlives this call, so it must come back through the container to read the output
+		final JobManagementBean self = sessionContext.getBusinessObject(JobManagementBean.class);
+		return LogTails.getInstance().subscribe(jobId, new LogTail.Source() {
+
+			@Override
+			public JobOutput read(OutputType outputType, long offset, long length) throws InternalException {
+				try {
+					return self.readJobOutput(jobId, outputType, offset, length);
+				} catch (ParameterException e) {
+					return null;
+				}
+			}
+
+			@Override
+			public boolean isFinished() throws InternalException {
+				return self.hasFinished(jobId);
+			}
+
+			@Override
+			public boolean isCollected() throws InternalException {
+				return self.hasOutputCollected(jobId);
+			}
+		}, subscriber);
+	}
+	
+	/**
+	 * Read part of a job's output for its tail, whose subscribers have already been checked.
+	 * It is only public so that a LogTail can call it through the container.
+	 * 
+	 * @param jobId
+	 * @param outputType
+	 * @param offset
+	 * @param length
+	 * @return the output
+	 * @throws InternalException
+	 * @throws ParameterException if the job has gone or no output can be found at the moment
+	 */
+	public JobOutput readJobOutput(String jobId, OutputType outputType, long offset, long length)
+			throws InternalException, ParameterException {
+		LsfJob job = entityManager.find(LsfJob.class, jobId);
+		if( job == null ){
+			throw new ParameterException("Job " + jobId + " has been deleted");
+		}
+		return openJobOutput(job, outputType, false, offset, length);
+	}
+	
+	/**
+	 * Whether a job has finished, as last seen by updateJobsFromBjobs(); bjobs is not run, as tails ask often.
+	 * It is only public so that a LogTail can call it through the container.
+	 * 
+	 * @param jobId
+	 * @return true if the job has finished or has gone
+	 */
+	public boolean hasFinished(String jobId) {
+		LsfJob job = entityManager.find(LsfJob.class, jobId);
+		if( job == null ){
+			return true;
+		}
+		JobStatus status = jobStatusCache.get(jobId);
+		return isFinished(status == null ? job.getStatus() : status);
+	}
+	
+	/**
+	 * Whether a job's output has been harvested (or given up on), so that no more of it will appear.
+	 * It is only public so that a LogTail can call it through the container.
+	 * 
+	 * @param jobId
+	 * @return true if the output has been harvested, the job never ran, or it has gone
+	 */
+	public boolean hasOutputCollected(String jobId) {
+		LsfJob job = entityManager.find(LsfJob.class, jobId);
+		if( job == null || ! isDispatched(job) ){
+			return true;
+		}
+		// Jobs harvested before harvests were recorded have no harvest state, so look for the output itself
+		HarvestState harvestState = job.getHarvestState();
+		return harvestState == HarvestState.DONE || harvestState == HarvestState.FAILED || finalOutputDirExists(job);
+	}
+
+	/**
+	 * As getJobOutput(), but for a range of lines of the output, which are found through its line index
+	 * (see LineIndex) so that only the bytes holding them are read. This is only possible once the output has
+	 * been harvested to the glassfish holding area; its index is built then, or when first needed.
+	 * 
+	 * @param first the number of the first line wanted, counting from 0; if negative, that many lines from the end
+	 * @param count the number of lines wanted, or -1 for the rest
+	 * @return the stream on the lines, with their offset and the size of the output
+	 * @throws ParameterException if the output has not been harvested
+	 */
+	public JobOutput getJobOutputLines(String jobId, OutputType outputType, long first, long count,
+			String sessionId, String icatUrl) throws SessionException, ForbiddenException, InternalException, ParameterException {
+		
+		logger.info("getJobOutputLines called with sessionId:" + sessionId + " jobId:" + jobId
+				+ " outputType:" + outputType + " first:" + first + " count:" + count);
+		LsfJob job = getJob(jobId, sessionId, icatUrl);
+		
+		// Jobs harvested before harvests were recorded have no harvest state, so look for the output itself
+		if( ! isDispatched(job) || ! finalOutputDirExists(job) ){
+			throw new ParameterException("Lines of output of type " + outputType
+					+ " are only available once job " + jobId + " has finished and its output has been collected");
+		}
+		
+		Path path = getGlassfishOutputAreaFor(job).resolve(getJobFilename(job, outputType));
+		try {
+			LineIndex index = LineIndex.update(path);
+			long[] offsets = index.find(first, count);
+			return OutputCompressor.open(path, false, offsets[0], offsets[1] - offsets[0]);
+		} catch (NoSuchFileException e) {
+			throw new ParameterException("No output file of type " + outputType + " available");
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " reports " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * search() implements the RESTful method search/{jobId}.
+	 * It looks for lines of the job's standard output and standard error that match a literal or regular expression,
+	 * scanning the harvested files in place (see OutputSearcher), and returns a Json object with an entry for each
+	 * output type holding the matches (line number, text and context lines) and whether the search was cut short.
+	 * At most search.maxMatches matches are returned in all, and the search stops after search.timeout.
+	 * 
+	 * @param jobId
+	 * @param query the literal or regular expression to look for
+	 * @param regex whether the query is a regular expression
+	 * @param ignoreCase whether case is ignored
+	 * @param context the number of lines wanted before and after each match
+	 * @param maxMatches the most matches wanted
+	 * @param sessionId
+	 * @param icatUrl
+	 * @return Json object mapping stdout and stderr to their matches
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws InternalException
+	 * @throws ParameterException if the query is not valid, or the output has not been harvested
+	 */
+	public String search(String jobId, String query, boolean regex, boolean ignoreCase, int context, int maxMatches,
+			String sessionId, String icatUrl) throws SessionException, ForbiddenException, InternalException,
+			ParameterException {
+		
+		logger.info("search called with sessionId:" + sessionId + " jobId:" + jobId + " query:" + query
+				+ " regex:" + regex + " ignoreCase:" + ignoreCase + " context:" + context + " maxMatches:" + maxMatches);
+		if( query == null || query.isEmpty() ){
+			throw new ParameterException("No query was specified");
 		}
+		if( context < 0 || context > MAX_SEARCH_CONTEXT ){
+			throw new ParameterException("context must be from 0 to " + MAX_SEARCH_CONTEXT);
+		}
+		if( maxMatches <= 0 ){
+			throw new ParameterException("The maximum number of matches must be positive");
+		}
+		LsfJob job = getJob(jobId, sessionId, icatUrl);
 		
-		logger.debug("Temp file not found; looking for pool user output file...");
-		
-		Path outputParentPath = getUserJobsOutputPath( batchUser );
-		Path path = outputParentPath.resolve(job.getDirectory()).resolve(jobFilename);
-
-		if (!Files.exists(path)) {
-			
-			logger.debug("Pool user output file not found, so looking in glassfish area");
-			
-			Path glassfishAreaPath = getGlassfishOutputAreaFor( job );
-			path = glassfishAreaPath.resolve(jobFilename);
+		// As for getJobOutputLines(), look for the output itself rather than the harvest state
+		if( ! isDispatched(job) || ! finalOutputDirExists(job) ){
+			throw new ParameterException("Output can only be searched once job " + jobId
+					+ " has finished and its output has been collected");
 		}
-
-		if (Files.exists(path)) {
-			logger.debug("Try to create stream for " + path.toString() );
-			try {
-				is = Files.newInputStream(path);
-			} catch (IOException e) {
-				throw new InternalException(e.getClass() + " reports " + e.getMessage());
+		
+		int remaining = Math.min(maxMatches, searchMaxMatches);
+		long deadline = System.currentTimeMillis() + searchTimeoutMillis;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator gen = Json.createGenerator(baos);
+		gen.writeStartObject();
+		for( OutputType outputType : OutputType.values() ){
+			gen.writeStartObject(outputType == OutputType.STANDARD_OUTPUT ? "stdout" : "stderr");
+			gen.writeStartArray("matches");
+			boolean truncated = true;
+			long timeout = deadline - System.currentTimeMillis();
+			if( remaining > 0 && timeout > 0 ){
+				Path path = getGlassfishOutputAreaFor(job).resolve(getJobFilename(job, outputType));
+				try {
+					OutputSearcher searcher = new OutputSearcher(query, regex, ignoreCase, context, remaining, timeout);
+					List<OutputSearcher.Match> matches = searcher.search(path);
+					for( OutputSearcher.Match match : matches ){
+						gen.writeStartObject().write("line", match.getLine()).write("text", match.getText());
+						gen.writeStartArray("before");
+						for( String line : match.getBefore() ){
+							gen.write(line);
+						}
+						gen.writeEnd().writeStartArray("after");
+						for( String line : match.getAfter() ){
+							gen.write(line);
+						}
+						gen.writeEnd().writeEnd();
+					}
+					remaining -= matches.size();
+					truncated = searcher.isTruncated();
+				} catch (PatternSyntaxException e) {
+					throw new ParameterException("Invalid regular expression: " + e.getMessage());
+				} catch (NoSuchFileException e) {
+					truncated = false;
+				} catch (IOException e) {
+					throw new InternalException(e.getClass() + " reports " + e.getMessage());
+				}
 			}
-			logger.debug("Returning output for " + jobId);
-			return is;
-
-		} else {
-			throw new ParameterException("No output file of type " + outputType
-					+ " available at the moment");
+			gen.writeEnd().write("truncated", truncated).writeEnd();
 		}
+		gen.writeEnd().close();
+		return baos.toString();
+	}
+	
+	private String getJobFilename(LsfJob job, OutputType outputType) {
+		// LSF names the files after its own id for the job
+		return job.getBatchJobId() + "." + (outputType == OutputType.STANDARD_OUTPUT ? "log" : "err");
 	}
 
 	private Path getGlassfishOutputAreaFor(LsfJob job) {
@@ -449,6 +1188,11 @@ public class JobManagementBean {
 		return jobOutputDir.resolve(job.getId());
 	}
 
+	private Path getPartialOutputAreaFor(LsfJob job) {
+		// Where the output is gathered while it is moved; job ids never start with a dot
+		return OutputMover.getStagingFolderFor(getGlassfishOutputAreaFor(job));
+	}
+
 	private Path getUserJobsOutputPath(String batchUsername) throws InternalException {
 		String userBase = lsfUserPoolBaseDir;
 		
@@ -461,7 +1205,7 @@ public class JobManagementBean {
 	}
 
 	private void createUserJobsOutputDir(String batchUsername) throws InternalException {
-		ShellCommand sc = new ShellCommand("ssh", "-i", getSshIdFileNameFor(batchUsername), batchUsername + "@localhost", "mkdir", lsfUserOutputDir);
+		CommandResult sc = commandExecutor.runAs(batchUsername, "mkdir", lsfUserOutputDir);
 		if (sc.isError()) {
 			throw new InternalException("Unable to create jobs output folder for user " + batchUsername + ": " + sc.getStderr());
 		}
@@ -471,22 +1215,24 @@ public class JobManagementBean {
 	/**
 	 * submitBatch implements the non-interactive case of the RESTful method submit.
 	 * If a free LSF pool user can be found, it is bound to the supplied (ICAT) userName, and is used to submit a non-interactive bsub job based on
-	 * the supplied exeutable and parameters.
-	 * For the submission, a dedicated subfolder is created under the LSF pool user to which bsub's standard and error output files will be
-	 * written once the job completes.
+	 * the supplied exeutable and parameters (see dispatch()).
+	 * Otherwise (or if other jobs are already waiting for the family) the job is given status Queued and added to the family's
+	 * submission queue, from which dispatchQueuedJobs() will submit it once a pool user is released; if the queue is full,
+	 * InternalException is thrown as before.
 	 * The job details are added to the persistent store for access in subsequent method requests (and the scheduled method updateJobsFromBjobs()).
 	 * 
 	 * @param userName ICAT username
 	 * @param executable name of the executable to run
 	 * @param parameters list of arguments (provided to the executable on the command line)
 	 * @param family Family from which pool users should be drawn for this job
-	 * @return String job ID returned by bsub
+	 * @param priority the job's place in the submission queue, if queued jobs are ordered by priority (higher first); may be null
+	 * @return String job ID returned by bsub, or assigned here if the job has been queued
 	 * @throws ParameterException
 	 * @throws InternalException
 	 * @throws SessionException
 	 */
 	private String submitBatch(String userName, String executable, List<String> parameters,
-			String family) throws ParameterException, InternalException, SessionException {
+			String family, Integer priority) throws ParameterException, InternalException, SessionException {
 
 		if (family == null) {
 			family = defaultFamily;
@@ -496,10 +1242,18 @@ public class JobManagementBean {
 			throw new ParameterException("Specified family " + family + " is not recognised");
 		}
 		
-		String owner = assignLsfIdFrom( family );
-		String idFileName = getSshIdFileNameFor( owner );
-		
-		String queueName = lsfDefaultQueue;
+		// Jobs already waiting for this family go first
+		String owner = null;
+		if( submissionQueue.size(family) == 0 ){
+			try {
+				owner = assignLsfIdFrom( family );
+			} catch (InternalException e) {
+				if( submissionQueue.getMaxDepth() == 0 ){
+					throw e;
+				}
+				logger.debug("No free LSF users for family " + family + ", so queueing the job");
+			}
+		}
 		
 		// For now, use the executable as the job name.  May want to improve on this later.
 		// The executable "should not" contain whitespace,
@@ -507,12 +1261,6 @@ public class JobManagementBean {
 		
 		String jobName = executable.replaceAll("\\s+","_");
 		
-		// Create a temporary directory for the (final) output files
-
-		Path userJobsOutputPath = getUserJobsOutputPath(owner);
-
-		String jobDirectoryName = createJobOutputDirectory(userJobsOutputPath, owner);
-		
 		/*
 		 * The batch script is owned by glassfish, but should be readable by the LSF users.
 		 */
@@ -528,45 +1276,177 @@ public class JobManagementBean {
 
 		createScript(batchScriptFile, jobName, executable, parameters);
 		
+		LsfJob job = new LsfJob();
+		job.setExecutable(executable);
+		job.setFamily(family);
+		job.setPriority(priority == null ? 0 : priority);
+		job.setBatchfileName(batchScriptFile.getAbsolutePath());
+		job.setUsername(userName);
+		job.setSubmitDate(new Date());
+		
+		if( owner != null ){
+			try {
+				dispatch( job, owner );
+			} catch (InternalException e) {
+				lsfUserPool.releaseSlot(owner);
+				batchScriptFile.delete();
+				throw e;
+			}
+		} else {
+			// Until the job reaches LSF it has no LSF id, so give it one of our own
+			// (which cannot clash with the numeric LSF ids)
+			String jobId;
+			do {
+				char[] pw = new char[10];
+				for (int i = 0; i < pw.length; i++) {
+					pw[i] = chars.charAt(random.nextInt(chars.length()));
+				}
+				jobId = "q" + new String(pw);
+			} while (entityManager.find(LsfJob.class, jobId) != null);
+			job.setId(jobId);
+			job.setStatus(JobStatus.Queued);
+			try {
+				submissionQueue.add(family, jobId, job.getPriority());
+			} catch (InternalException e) {
+				batchScriptFile.delete();
+				throw e;
+			}
+			jobStatusCache.put(jobId, JobStatus.Queued);
+		}
+		
+		entityManager.persist(job);
+		
+		return job.getId();
+
+	}
+	
+	/**
+	 * Submit a job (whose batch script has been written) to LSF via bsub, as the given pool user.
+	 * A dedicated subfolder is created under the LSF pool user to which bsub's standard and error output files will be
+	 * written once the job completes. The job's LSF id, pool user, output folder and initial status are set.
+	 * 
+	 * @param job
+	 * @param owner the pool user, which must already have been assigned to the job
+	 * @throws InternalException
+	 */
+	private void dispatch( LsfJob job, String owner ) throws InternalException {
+		
+		String queueName = lsfDefaultQueue;
+		String jobName = job.getExecutable().replaceAll("\\s+","_");
+		
+		// Create a temporary directory for the (final) output files
+
+		Path userJobsOutputPath = getUserJobsOutputPath(owner);
+
+		String jobDirectoryName = createJobOutputDirectory(userJobsOutputPath, owner);
+		
 		// Ask bsub to write log files to our temp directory; we need the absolute path
 		
 		String dirStr = userJobsOutputPath.toString() + File.separator + jobDirectoryName + File.separator;
 		
-		ShellCommand sc = new ShellCommand("ssh", "-i", idFileName, owner + "@localhost", "bsub", "-J", jobName, "-o", dirStr+"%J.log", "-e", dirStr+"%J.err", "-q", queueName,
-				batchScriptFile.getAbsolutePath());
+		CommandResult sc = commandExecutor.runAs(owner, "bsub", "-J", jobName, "-o", dirStr+"%J.log", "-e", dirStr+"%J.err", "-q", queueName,
+				job.getBatchfileName());
 		if (sc.isError()) {
 			throw new InternalException("Unable to submit job via bsub " + sc.getStderr());
 		}
-		String jobId = getJobId(sc.getStdout());
+		String batchJobId = getJobId(sc.getStdout());
 		
-		if( jobId == null ){
+		if( batchJobId == null ){
 			throw new InternalException("Unable to get JobId for submitted job" );
 		}
 
-		LsfJob job = new LsfJob();
-		job.setId(jobId);
-		job.setExecutable(executable);
+		// A job that did not have to wait in the submission queue is known by its LSF id
+		if( job.getId() == null ){
+			job.setId(batchJobId);
+		}
+		job.setBatchJobId(batchJobId);
 		job.setBatchUsername(owner);
-		job.setBatchfileName(batchScriptFile.getAbsolutePath());
 		job.setDirectory(jobDirectoryName);
-		job.setUsername(userName);
-		job.setSubmitDate(new Date());
 		
 		// Get the initial status of the job from LSF
-		JobStatus status = getStatus(job);
+		JobStatus status = getStatusFromBjobs(job);
+		jobStatusCache.put(job.getId(), status);
 		job.setStatus( status );
 		
 		// If the job has already Completed (which would be suspiciously quick), we need to move the job output
 		// to where getJobOutput will expect to find it.
 		
 		if( JobStatus.Completed.equals(status) ){
-			moveJobOutput(job);
+			requestHarvest(job);
 		}
-		
-		entityManager.persist(job);
-		
-		return jobId;
+	}
+	
+	/**
+	 * Submit queued jobs to LSF for as long as their families have free pool users.
+	 * This is called whenever pool users may have been released.
+	 * A job that cannot be submitted is put back in the queue, and its family is not tried again until the next call.
+	 */
+	private void dispatchQueuedJobs() {
+		for( String family : submissionQueue.getFamilies() ){
+			while( submissionQueue.size(family) > 0 ){
+				String owner;
+				try {
+					owner = assignLsfIdFrom( family );
+				} catch (InternalException e) {
+					// No free pool users in this family
+					break;
+				}
+				SubmissionQueue.Entry entry = submissionQueue.poll(family);
+				if( entry == null ){
+					lsfUserPool.releaseSlot(owner);
+					break;
+				}
+				String jobId = entry.getJobId();
+				// Lock the row until this transaction ends, so that a cancel of the job waits for the dispatch, and
+				// the dispatch for the cancel; whichever comes second sees what the first did
+				LsfJob job = entityManager.find(LsfJob.class, jobId, LockModeType.PESSIMISTIC_WRITE);
+				if( job == null ){
+					lsfUserPool.releaseSlot(owner);
+					if( System.currentTimeMillis() - entry.getEnqueued() < QUEUED_JOB_COMMIT_GRACE_MILLIS ){
+						// The submit that queued it may not have committed yet
+						submissionQueue.restore(family, jobId, entry.getPriority(), entry.getEnqueued());
+						break;
+					}
+					logger.warn("Dropping queued job " + jobId + " as it is not in the database");
+					continue;
+				}
+				if( isDispatched(job) || ! JobStatus.Queued.equals(job.getStatus()) ){
+					lsfUserPool.releaseSlot(owner);
+					continue;
+				}
+				try {
+					dispatch( job, owner );
+				} catch (InternalException e) {
+					logger.error("Unable to submit queued job " + jobId + " to LSF, will try again later: " + e.getMessage());
+					lsfUserPool.releaseSlot(owner);
+					submissionQueue.restore(family, jobId, entry.getPriority(), entry.getEnqueued());
+					break;
+				}
+				long waitMillis = System.currentTimeMillis() - entry.getEnqueued();
+				submissionQueue.recordWait(waitMillis);
+				logger.debug("Queued job " + jobId + " submitted to LSF as " + job.getBatchJobId() + " for " + owner
+						+ " after " + waitMillis + "ms");
+			}
+		}
+	}
 
+	/**
+	 * Dispatch queued jobs (see dispatchQueuedJobs()) on a container thread, in a transaction of its own, so that a
+	 * cancel or delete that releases a pool user neither waits for other users' submissions nor is rolled back by
+	 * them. Any exception is caught and (merely) logged; the poller will try again.
+	 * It is only public so that it can be called through the container.
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void dispatchQueuedJobsInBackground() {
+		try {
+			dispatchQueuedJobs();
+		} catch (Exception e) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			e.printStackTrace(new PrintStream(baos));
+			logger.error("Dispatch of queued jobs failed (exception caught here). Class " + e.getClass() + " reports "
+					+ e.getMessage() + baos.toString());
+		}
 	}
 
 	private String createJobOutputDirectory(Path userJobsOutputPath, String owner) throws InternalException {
@@ -584,7 +1464,7 @@ public class JobManagementBean {
 		
 		// Now, we have to create the folder
 		
-		ShellCommand sc = new ShellCommand("ssh", "-i", getSshIdFileNameFor(owner), owner + "@localhost", "mkdir", jobDirectory.getAbsolutePath());
+		CommandResult sc = commandExecutor.runAs(owner, "mkdir", jobDirectory.getAbsolutePath());
 		if (sc.isError()) {
 			throw new InternalException("Unable to create job output folder for user " + owner + ": " + sc.getStderr());
 		}
@@ -594,16 +1474,6 @@ public class JobManagementBean {
 		return jobDirectoryName;
 	}
 
-	private String getSshIdFileNameFor(String owner) {
-		
-		// Looks like this has to be an absolute path
-		
-		String userBase = lsfUserPoolBaseDir;
-		
-		Path sshIdPath = Paths.get(userBase).resolve("glassfish").resolve(".ssh").resolve("id_rsa_"+owner);
-		return sshIdPath.toString();
-	}
-
 	/**
 	 * Assign an LSF user ID from the given family.
 	 * Throws InternalException if there are no free user IDs available for that family.
@@ -741,40 +1611,143 @@ public class JobManagementBean {
 	}
 
 	private String getUserName(String sessionId, String icatUrl) throws SessionException, ParameterException {
-		try {
-			checkCredentials(sessionId, icatUrl);
-			ICATService service = new ICATService(new URL(new URL(icatUrl), "ICATService/ICAT?wsdl"), qName);
-			return service.getICATPort().getUserName(sessionId);
-		} catch (IcatException_Exception e) {
-			if (e.getFaultInfo().getType() == IcatExceptionType.SESSION) {
-				throw new SessionException("IcatException " + e.getFaultInfo().getType() + " " + e.getMessage());
-			} else {
-				throw new ParameterException("IcatException " + e.getFaultInfo().getType() + " " + e.getMessage());
-			}
-		} catch (MalformedURLException e) {
-			throw new ParameterException("Bad URL " + e.getMessage());
-		}
+		checkCredentials(sessionId, icatUrl);
+		return userNameCache.getUserName(icatUrl, sessionId);
+	}
+
+	/**
+	 * Check that a session is valid, for the RESTful methods that report on the service rather than on jobs
+	 * (such as poller), which are not for anonymous callers.
+	 * 
+	 * @param sessionId
+	 * @param icatUrl
+	 * @throws SessionException if the session is not valid
+	 * @throws ParameterException if either is missing
+	 */
+	public void checkSession(String sessionId, String icatUrl) throws SessionException, ParameterException {
+		logger.debug("checkSession called with sessionId:" + sessionId);
+		getUserName(sessionId, icatUrl);
 	}
 
 	/**
-	 * List the ids of those jobs owned by the session user.
+	 * List the ids of those jobs owned by the session user, newest first.
+	 * Without a limit, cursor or details, this is a Json array of all of the ids (that pass the filters), as
+	 * it has always been. Otherwise it is a page of jobs, which is found from an index however many jobs the user
+	 * has: the cursor names the submit date and id of the last job of the previous page, so the next page starts
+	 * just after it and is not upset by jobs submitted in the meantime.
 	 * 
+	 * @param statuses if not empty, only jobs last recorded with one of these statuses are listed
+	 * @param since if not null, only jobs submitted at or after this time are listed
+	 * @param until if not null, only jobs submitted before this time are listed
+	 * @param executable if not null, only jobs of this executable are listed
+	 * @param limit if not null, the most jobs to list (no more than MAX_LIST_LIMIT are listed anyway)
+	 * @param cursor if not null, the value of "next" from the previous page
+	 * @param details whether to list the status and submit date of each job with its id
 	 * @param sessionId
 	 * @param icatUrl
-	 * @return Json array of job-ids
+	 * @return Json array of job-ids, or Json object with the page of jobs in "jobs" and any cursor in "next"
 	 * @throws SessionException
 	 * @throws ParameterException
 	 * @throws InternalException
 	 */
-	public String list(String sessionId, String icatUrl) throws SessionException,
+	public String list(List<JobStatus> statuses, Date since, Date until, String executable, Integer limit,
+			String cursor, boolean details, String sessionId, String icatUrl) throws SessionException,
 			ParameterException, InternalException {
-		logger.info("listStatus called with sessionId:" + sessionId);
+		logger.info("list called with sessionId:" + sessionId + " statuses:" + statuses + " since:" + since
+				+ " until:" + until + " executable:" + executable + " limit:" + limit + " cursor:" + cursor
+				+ " details:" + details);
 
 		String username = getUserName(sessionId, icatUrl);
-		List<String> jobs = entityManager
-				.createNamedQuery(LsfJob.ID_BY_USERNAME, String.class)
-				.setParameter("username", username).getResultList();
-		return BatchJson.list(jobs);
+		if( limit != null && limit <= 0 ){
+			throw new ParameterException("limit must be positive");
+		}
+		Date cursorDate = null;
+		String cursorId = null;
+		if( cursor != null ){
+			int colon = cursor.indexOf(':');
+			try {
+				cursorDate = new Date(Long.parseLong(cursor.substring(0, colon)));
+				cursorId = cursor.substring(colon + 1);
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				throw new ParameterException("cursor is not one returned by list: " + cursor);
+			}
+		}
+		
+		// The username index is ordered by submit date and id, so a page is read from it in order
+		StringBuilder where = new StringBuilder(" FROM LsfJob j WHERE j.username = :username");
+		if( ! statuses.isEmpty() ){
+			where.append(" AND j.status IN :statuses");
+		}
+		if( since != null ){
+			where.append(" AND j.submitDate >= :since");
+		}
+		if( until != null ){
+			where.append(" AND j.submitDate < :until");
+		}
+		if( executable != null ){
+			where.append(" AND j.executable = :executable");
+		}
+		if( cursor != null ){
+			where.append(" AND (j.submitDate < :cursordate OR (j.submitDate = :cursordate AND j.id < :cursorid))");
+		}
+		where.append(" ORDER BY j.submitDate DESC, j.id DESC");
+		
+		boolean paged = limit != null || cursor != null || details;
+		TypedQuery<?> query = paged ? entityManager.createQuery("SELECT j" + where, LsfJob.class)
+				: entityManager.createQuery("SELECT j.id" + where, String.class);
+		query.setParameter("username", username);
+		if( ! statuses.isEmpty() ){
+			query.setParameter("statuses", statuses);
+		}
+		if( since != null ){
+			query.setParameter("since", since);
+		}
+		if( until != null ){
+			query.setParameter("until", until);
+		}
+		if( executable != null ){
+			query.setParameter("executable", executable);
+		}
+		if( cursor != null ){
+			query.setParameter("cursordate", cursorDate).setParameter("cursorid", cursorId);
+		}
+		if( ! paged ){
+			@SuppressWarnings("unchecked")
+			List<String> ids = (List<String>) query.getResultList();
+			return BatchJson.list(ids);
+		}
+		
+		int pageSize = limit == null ? MAX_LIST_LIMIT : Math.min(limit, MAX_LIST_LIMIT);
+		// One more is fetched than is listed, to see whether there is another page
+		@SuppressWarnings("unchecked")
+		List<LsfJob> jobs = (List<LsfJob>) query.setMaxResults(pageSize + 1).getResultList();
+		boolean more = jobs.size() > pageSize;
+		if( more ){
+			jobs = jobs.subList(0, pageSize);
+		}
+		Map<String, JobStatus> jobStatuses = details ? getStatuses( jobs ) : null;
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator gen = Json.createGenerator(baos);
+		gen.writeStartObject().writeStartArray("jobs");
+		for( LsfJob job : jobs ){
+			if( details ){
+				gen.writeStartObject().write("id", job.getId())
+						.write("status", jobStatuses.get(job.getId()).name())
+						.write("submitDate", dateFormat.format(job.getSubmitDate())).writeEnd();
+			} else {
+				gen.write(job.getId());
+			}
+		}
+		gen.writeEnd();
+		if( more ){
+			LsfJob last = jobs.get(jobs.size() - 1);
+			gen.write("next", last.getSubmitDate().getTime() + ":" + last.getId());
+		}
+		gen.writeEnd().close();
+		return baos.toString();
 	}
 
 	/**
@@ -800,10 +1773,104 @@ public class JobManagementBean {
 		return BatchJson.getStatus(status);
 	}
 	
+	/**
+	 * getStatuses(jobIds,...) implements the RESTful method status (without a jobId).
+	 * It returns a Json object mapping each of the supplied jobIds to its status; if no jobIds are supplied,
+	 * all of the session user's jobs are included. bjobs is run at most once per batch user, and only
+	 * for unfinished jobs whose status has not been seen recently by updateJobsFromBjobs().
+	 * 
+	 * @param jobIds the jobs to report on, or an empty list for all of the user's jobs
+	 * @param sessionId
+	 * @param icatUrl
+	 * @return Json object mapping job-id to status
+	 * @throws SessionException
+	 * @throws ForbiddenException if any of the jobs does not belong to the session user
+	 * @throws ParameterException
+	 * @throws InternalException
+	 */
+	public String getStatuses(List<String> jobIds, String sessionId, String icatUrl) throws SessionException,
+			ForbiddenException, ParameterException, InternalException {
+		logger.info("getStatuses called with sessionId:" + sessionId + " jobIds:" + jobIds);
+		String username = getUserName(sessionId, icatUrl);
+		
+		List<LsfJob> jobs;
+		if( jobIds == null || jobIds.isEmpty() ){
+			jobs = entityManager.createNamedQuery(LsfJob.FIND_BY_USERNAME, LsfJob.class)
+					.setParameter("username", username).getResultList();
+		} else {
+			Set<String> distinctIds = new LinkedHashSet<String>(jobIds);
+			jobs = new ArrayList<LsfJob>();
+			List<String> idList = new ArrayList<String>(distinctIds);
+			// Keep IN lists to a size that all databases accept
+			for( int from = 0; from < idList.size(); from += MAX_IN_LIST ){
+				List<String> ids = idList.subList(from, Math.min(from + MAX_IN_LIST, idList.size()));
+				jobs.addAll(entityManager.createNamedQuery(LsfJob.FIND_BY_USERNAME_AND_IDS, LsfJob.class)
+						.setParameter("username", username).setParameter("ids", ids).getResultList());
+			}
+			if( jobs.size() != distinctIds.size() ){
+				throw new ForbiddenException("Job does not belong to you");
+			}
+		}
+		
+		Map<String, JobStatus> statuses = getStatuses( jobs );
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator gen = Json.createGenerator(baos);
+		gen.writeStartObject();
+		for( LsfJob job : jobs ){
+			gen.write(job.getId(), statuses.get(job.getId()).name());
+		}
+		gen.writeEnd().close();
+		return baos.toString();
+	}
+	
+	/**
+	 * Returns the "best/last" known statuses of the given jobs, as for getStatus(LsfJob),
+	 * but running bjobs at most once for each batch user.
+	 * 
+	 * @param jobs
+	 * @return map from job-id to status
+	 * @throws InternalException
+	 */
+	private Map<String, JobStatus> getStatuses( List<LsfJob> jobs ) throws InternalException{
+		
+		Map<String, JobStatus> statuses = new HashMap<String, JobStatus>();
+		Map<String, List<LsfJob>> unknownJobsByOwner = new HashMap<String, List<LsfJob>>();
+		
+		for( LsfJob job : jobs ){
+			JobStatus status = job.getStatus();
+			if( ! isFinished(status) && isDispatched(job) ){
+				status = jobStatusCache.get(job.getId());
+			}
+			if( status != null ){
+				statuses.put(job.getId(), status);
+			} else {
+				List<LsfJob> ownerJobs = unknownJobsByOwner.get(job.getBatchUsername());
+				if( ownerJobs == null ){
+					ownerJobs = new ArrayList<LsfJob>();
+					unknownJobsByOwner.put(job.getBatchUsername(), ownerJobs);
+				}
+				ownerJobs.add(job);
+			}
+		}
+		
+		for( Map.Entry<String, List<LsfJob>> entry : unknownJobsByOwner.entrySet() ){
+			Map<String, JobStatus> ownerStatuses = getStatusesFromBjobs( entry.getKey(), entry.getValue() );
+			for( Map.Entry<String, JobStatus> ownerStatus : ownerStatuses.entrySet() ){
+				jobStatusCache.put(ownerStatus.getKey(), ownerStatus.getValue());
+			}
+			statuses.putAll(ownerStatuses);
+		}
+		
+		return statuses;
+	}
+	
 	/**
 	 * Returns the "best/last" known status of the given job. 
-	 * If bjobs has an entry for the job, it uses the returned status value
-	 * (unless the LsfJob's status is Cancelled, which takes priority). 
+	 * Jobs known to be finished (Completed or Cancelled) keep that status.
+	 * Otherwise the status last seen by updateJobsFromBjobs() is used, if it is recent enough;
+	 * failing that, bjobs is run for the job.
+	 * If bjobs has an entry for the job, it uses the returned status value.
 	 * If no bjobs entry is found, the LsfJob's current status is returned.
 	 * 
 	 * @param job
@@ -814,39 +1881,87 @@ public class JobManagementBean {
 		
 		String jobId = job.getId();
 		JobStatus oldStatus = job.getStatus();
-		String owner = job.getBatchUsername();
 		
-		JobStatus status;
+		if( isFinished(oldStatus) || ! isDispatched(job) ){
+			return oldStatus;
+		}
 		
-		logger.debug("job " + jobId + " is being run by " + owner);
-
-		String idFileName = getSshIdFileNameFor( owner );
+		JobStatus status = jobStatusCache.get(jobId);
+		if( status != null ){
+			return status;
+		}
+		
+		status = getStatusFromBjobs( job );
+		jobStatusCache.put(jobId, status);
+		return status;
+	}
+	
+	/**
+	 * Runs bjobs for the given job and returns its status.
+	 * 
+	 * @param job
+	 * @return
+	 * @throws InternalException
+	 */
+	private JobStatus getStatusFromBjobs( LsfJob job ) throws InternalException{
+		return getStatusesFromBjobs( job.getBatchUsername(), Collections.singletonList(job) ).get(job.getId());
+	}
+	
+	/**
+	 * Runs bjobs once (as the given batch user) for the given jobs and returns their statuses.
+	 * If bjobs has an entry for a job, it uses the returned status value
+	 * (unless the LsfJob's status is Cancelled, which takes priority). 
+	 * If no bjobs entry is found, the LsfJob's current status is returned.
+	 * 
+	 * @param owner the batch user running the jobs
+	 * @param jobs
+	 * @return map from job-id to status
+	 * @throws InternalException
+	 */
+	private Map<String, JobStatus> getStatusesFromBjobs( String owner, List<LsfJob> jobs ) throws InternalException{
+		
+		// bjobs needs LSF's ids for the jobs
+		String[] jobIds = new String[jobs.size()];
+		for( int i = 0; i < jobIds.length; i++ ){
+			jobIds[i] = jobs.get(i).getBatchJobId();
+		}
+		
+		logger.debug("jobs " + Arrays.toString(jobIds) + " are being run by " + owner);
 
-		ShellCommand sc = new ShellCommand("ssh", "-i", idFileName, owner + "@localhost", "bjobs", "-aw", jobId);
+		CommandResult sc = commandExecutor.runAs( owner, sshBjobsCommand(jobIds) );
 		if (sc.isError()) {
 			// Astonishingly, "No job found" counts as an error!
-			// ... as does "Job <jobId> is not found", which is what actually appears
-			String expectedMessage = "Job <" + jobId + "> is not found";
-			if( ! expectedMessage.equals(sc.getStderr().trim())){
-				throw new InternalException("Unable to query job (id " + jobId
-						+ ") via bjobs: " + sc.getStderr());
+			// ... as does "Job <jobId> is not found", which is what actually appears (once for each unknown job)
+			for( String line : sc.getStderr().trim().split("\n") ){
+				Matcher m = jobNotFoundPattern.matcher(line.trim());
+				if( ! m.matches() || ! Arrays.asList(jobIds).contains(m.group(1)) ){
+					throw new InternalException("Unable to query jobs (ids " + Arrays.toString(jobIds)
+							+ ") via bjobs: " + sc.getStderr());
+				}
 			}
 		}
 		
-		Bjobs bjobs = new Bjobs( sc.getStdout() );
-		Bjobs.Job bjob = bjobs.getJob(jobId);
-		if( bjob == null ){
-			logger.debug("Unable to find job (id " + jobId + ") in bjobs; return job's last known status (" + oldStatus + ")");
-			status = oldStatus;
-		} else {
-			status = mapStatus( bjob.getStatus() );
-			if( JobStatus.Cancelled.equals(oldStatus) ){
-				logger.debug("Job (id " + jobId + ") has status Cancelled; return this rather than bjobs' status (" + status + ")");
+		Bjobs bjobs = new Bjobs( sc.getStdout(), bjobsFormat );
+		Map<String, JobStatus> statuses = new HashMap<String, JobStatus>();
+		for( LsfJob job : jobs ){
+			String jobId = job.getId();
+			JobStatus oldStatus = job.getStatus();
+			JobStatus status;
+			Bjobs.Job bjob = bjobs.getJob(job.getBatchJobId());
+			if( bjob == null ){
+				logger.debug("Unable to find job (id " + jobId + ") in bjobs; return job's last known status (" + oldStatus + ")");
 				status = oldStatus;
+			} else {
+				status = mapStatus( bjob.getStatus() );
+				if( JobStatus.Cancelled.equals(oldStatus) ){
+					logger.debug("Job (id " + jobId + ") has status Cancelled; return this rather than bjobs' status (" + status + ")");
+					status = oldStatus;
+				}
 			}
+			statuses.put(jobId, status);
 		}
 		
-		return status;
+		return statuses;
 	}
 
 	/**
@@ -891,8 +2006,7 @@ public class JobManagementBean {
 	 * delete() implements the RESTful method delete/{jobId}.
 	 * The specified job must have completed (including by being cancelled).
 	 * It removes any job output and deletes the job from the persistent store.
-	 * We assume that the associated pool user can now be released back to the pool
-	 * (this assumes that each pool user only runs a single job at a time).
+	 * If the job had not been seen to finish before, its slot on the pool user is released back to the pool.
 	 * 
 	 * @param jobId
 	 * @param sessionId
@@ -910,23 +2024,30 @@ public class JobManagementBean {
 		String owner = job.getBatchUsername();
 		logger.debug("job " + jobId + " is being run by " + owner);
 		
-		ShellCommand sc;
+		CommandResult sc;
 		
 		// If we don't know that the Job has Completed, check the current status, if we can
 		
+		if( ! isFinished(job.getStatus()) && ! isDispatched(job) ){
+			// Still waiting in the submission queue; it must be cancelled first
+			throw new ParameterException("LsfJob " + jobId + " is " + job.getStatus());
+		}
+		
+		if( jobsInHarvest.contains(jobId) ){
+			throw new ParameterException("The output of LsfJob " + jobId + " is being moved; please try again shortly");
+		}
+		
 		if( ! isFinished(job.getStatus())){
 			// Get the status of this job.
 			
-			String idFileName = getSshIdFileNameFor( owner );
-	
-			sc = new ShellCommand("ssh", "-i", idFileName, owner + "@localhost", "bjobs", "-aw", jobId);
+			sc = commandExecutor.runAs( owner, sshBjobsCommand(job.getBatchJobId()) );
 			if (sc.isError()) {
 				throw new InternalException("Unable to query job (id " + jobId
 						+ ") via bjobs: " + sc.getStderr());
 			}
 			
-			Bjobs bjobs = new Bjobs( sc.getStdout() );
-			Bjobs.Job bjob = bjobs.getJob(jobId);
+			Bjobs bjobs = new Bjobs( sc.getStdout(), bjobsFormat );
+			Bjobs.Job bjob = bjobs.getJob(job.getBatchJobId());
 			if( bjob != null ){
 				
 				// Check whether the job has actually finished
@@ -942,35 +2063,35 @@ public class JobManagementBean {
 		}
 
 		entityManager.remove(job);
+		jobStatusCache.remove(jobId);
 		
-		// NOTE: we assume each owner has at most one current job
-		// owner may already be free, if we spot when the job completes
-		
-		lsfUserPool.freeUser(owner);
+		if( isDispatched(job) && ! isFinished(job.getStatus()) ){
+			
+			// The slot has not been released yet, as we had not spotted the job finishing
+			
+			releaseSlotOnCommit(owner, true);
+		}
 
 		try {
-			Path dir = getUserJobsOutputPath(owner).resolve(job.getDirectory());
-			
-			// And get the owner to remove everything under there - if it hasn't been removed already
+			Path dir;
 			
-			if( Files.exists(dir)) {
-				sc = new ShellCommand("ssh", "-i", getSshIdFileNameFor(owner), owner + "@localhost", "rm", "-rf", dir.toString());
-				if (sc.isError()) {
-					throw new InternalException("Unable to delete job output folder for user " + owner + ": " + sc.getStderr());
+			if( isDispatched(job) ){
+				dir = getUserJobsOutputPath(owner).resolve(job.getDirectory());
+				
+				// And get the owner to remove everything under there - if it hasn't been removed already
+				
+				if( Files.exists(dir)) {
+					sc = commandExecutor.runAs(owner, "rm", "-rf", dir.toString());
+					if (sc.isError()) {
+						throw new InternalException("Unable to delete job output folder for user " + owner + ": " + sc.getStderr());
+					}
 				}
 			}
 			
-			// Remove the job output dir in glassfish
+			// Remove the job output dir in glassfish, and any left by a failed move
 			
-			dir = getGlassfishOutputAreaFor( job );
-			File[] files = dir.toFile().listFiles();
-			if (files != null) {
-				for (File f : dir.toFile().listFiles()) {
-					Files.delete(f.toPath());
-				}
-				Files.delete(dir);
-				logger.debug("Directory " + dir + " has been deleted");
-			}
+			OutputMover.deleteFolder(getGlassfishOutputAreaFor( job ));
+			OutputMover.deleteFolder(getPartialOutputAreaFor( job ));
 			
 			// And remove the batchfile
 			// (Alternative: remove it once the job has Completed?)
@@ -987,7 +2108,8 @@ public class JobManagementBean {
 	/**
 	 * cancel() implements the RESTful method cancel/{jobId}.
 	 * It uses the Platform LSF bkill command to kill the specified job, and sets the job status to Cancelled.
-	 * It does not remove any existing job output, nor does it clean up or release the pool user;
+	 * A job that is still in the submission queue is simply removed from it.
+	 * The job's slot on the pool user is released once the change commits, but it does not remove any existing job output;
 	 * we rely on a subsequent delete request or some future scheduled run of updateJobsFromBjobs
 	 * to do that.
 	 * 
@@ -1004,15 +2126,31 @@ public class JobManagementBean {
 		
 		logger.info("cancel called with sessionId:" + sessionId + " jobId:" + jobId);
 		LsfJob job = getJob(jobId, sessionId, icatUrl);
+		// Lock the row (see dispatchQueuedJobs()) and re-read it: a dispatch of the job that has already taken it
+		// from the submission queue has then either committed, so that it is bkilled below, or not yet started
+		entityManager.refresh(job, LockModeType.PESSIMISTIC_WRITE);
+		if( ! isDispatched(job) ){
+			submissionQueue.remove(jobId);
+			if( ! JobStatus.Queued.equals(job.getStatus()) ){
+				throw new ParameterException("Unable to cancel job " + jobId + ": it is " + job.getStatus());
+			}
+			logger.debug("Job " + jobId + " removed from the submission queue; setting status to Cancelled");
+			job.setStatus(JobStatus.Cancelled);
+			jobStatusCache.put(jobId, JobStatus.Cancelled);
+			return;
+		}
 		String owner = job.getBatchUsername();
 		logger.debug("job " + jobId + " is being run by " + owner);
-		String idFileName = getSshIdFileNameFor( owner );
-		ShellCommand sc = new ShellCommand("ssh", "-i", idFileName, owner + "@localhost", "bkill", job.getId());
+		CommandResult sc = commandExecutor.runAs(owner, "bkill", job.getBatchJobId());
 		if (sc.isError() && !sc.getStderr().startsWith("Warning")) {
 			throw new ParameterException("Unable to cancel job " + job.getId() + ": " + sc.getStderr());
 		}
+		if( ! isFinished(job.getStatus()) ){
+			releaseSlotOnCommit(owner, true);
+		}
 		logger.debug("Setting status of job " + jobId + " to Cancelled");
 		job.setStatus(JobStatus.Cancelled);
+		jobStatusCache.put(jobId, JobStatus.Cancelled);
 	}
 
 	private void checkCredentials(String sessionId, String icatUrl) throws ParameterException {
@@ -1032,6 +2170,7 @@ public class JobManagementBean {
 	 * @param parameters
 	 * @param family
 	 * @param interactive
+	 * @param priority place in the submission queue if the job has to wait (higher first); may be null
 	 * @param sessionId
 	 * @param icatUrl
 	 * @return
@@ -1040,17 +2179,17 @@ public class JobManagementBean {
 	 * @throws ParameterException
 	 */
 	public String submit(String executable, List<String> parameters,
-			String family, boolean interactive, String sessionId, String icatUrl) throws InternalException, SessionException,
+			String family, boolean interactive, Integer priority, String sessionId, String icatUrl) throws InternalException, SessionException,
 			ParameterException {
 		logger.info("submit called with sessionId:" + sessionId + " executable:" + executable
 				+ " parameters:" + parameters + " family:" + family + " :" + " interactive:"
-				+ interactive);
+				+ interactive + " priority:" + priority);
 		String userName = getUserName(sessionId, icatUrl);
 		String jobId;
 		if (interactive) {
 			jobId = submitInteractive(userName, executable, parameters, family);
 		} else {
-			jobId = submitBatch(userName, executable, parameters, family);
+			jobId = submitBatch(userName, executable, parameters, family, priority);
 		}
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		JsonGenerator gen = Json.createGenerator(baos);
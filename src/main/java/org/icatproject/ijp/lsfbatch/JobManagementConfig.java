@@ -0,0 +1,464 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.icatproject.ijp.batch.JobStatus;
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.icatproject.utils.CheckedProperties;
+import org.icatproject.utils.CheckedProperties.CheckedPropertyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads lsfbatch.properties, configures the shared components (the pool users, the caches, the submission queue and
+ * the command executor) and recovers their state from the database, once, when the application starts.
+ *
+ * This used to be done by each instance of the (stateless) JobManagementBean as it was created, so that the
+ * properties were read and the pool users' jobs queried again whenever the container grew its pool of beans. Now
+ * JobManagementBean merely takes its settings from here. The recovery reads the unfinished jobs of all the pool
+ * users with one query, and checks them against one run of bjobs: a job that LSF no longer knows of is taken to
+ * have completed while lsfbatch was down, as updateJobsFromBjobs() would take it to have, so that its slot is not
+ * held.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class JobManagementConfig {
+
+	private final static Logger logger = LoggerFactory.getLogger(JobManagementConfig.class);
+
+	/**
+	 * How updateJobsFromBjobs() runs bjobs: once per pool user, once for all users, or once with an explicit list of
+	 * the pool users.
+	 */
+	public enum PollMode {
+		USER, ALL, LIST
+	}
+
+	@PersistenceContext(unitName = "lsfbatch")
+	private EntityManager entityManager;
+
+	// Reads the output of the jobs being followed by tail/{jobId}
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	private String defaultFamily;
+	private Map<String, List<String>> families = new LinkedHashMap<>();
+	private CommandExecutor commandExecutor;
+
+	private Path jobOutputDir;
+
+	private String lsfDefaultQueue;
+	private String lsfUserPoolBaseDir;
+	private String lsfUserOutputDir;
+
+	private PollMode pollMode = PollMode.USER;
+
+	private Bjobs.Format bjobsFormat = Bjobs.Format.WIDE;
+
+	// How often BjobsPoller runs updateJobsFromBjobs()
+	private long pollIntervalMillis = 60000L;
+
+	// How many pool users updateJobsFromBjobs() updates at once, and how long it may spend on them
+	private int pollThreads = 8;
+	private long pollBudgetMillis = 50000L;
+
+	// How many job outputs harvestJobOutputs() moves at once, how often it tries each, and whether it compresses them
+	private int harvestThreads = 4;
+	private int harvestMaxAttempts = 10;
+	private boolean compressOutput = false;
+
+	// The most matches search() returns, and how long it may spend
+	private int searchMaxMatches = 1000;
+	private long searchTimeoutMillis = 30000L;
+
+	@PostConstruct
+	void init() {
+
+		try {
+			CheckedProperties props = new CheckedProperties();
+			props.loadFromFile(Constants.PROPERTIES_FILEPATH);
+
+			String familiesList = props.getString("families.list");
+			for (String mnemonic : familiesList.split("\\s+")) {
+				if (defaultFamily == null) {
+					defaultFamily = mnemonic;
+				}
+				String key = "families." + mnemonic;
+				String[] members = props.getProperty(key).split("\\s+");
+				families.put(mnemonic, Collections.unmodifiableList(new ArrayList<>(Arrays.asList(members))));
+				logger.debug("Family " + mnemonic + " contains " + families.get(mnemonic));
+			}
+			if (defaultFamily == null) {
+				String msg = "No families defined";
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+			families = Collections.unmodifiableMap(families);
+
+			if (props.has("lsf.slotsPerUser")) {
+				LsfUserPool.getInstance().setSlotsPerUser(props.getPositiveInt("lsf.slotsPerUser"));
+			}
+
+			jobOutputDir = props.getPath("jobOutputDir");
+			if (!jobOutputDir.toFile().exists()) {
+				String msg = "jobOutputDir " + jobOutputDir + "does not exist";
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+			jobOutputDir = jobOutputDir.toAbsolutePath();
+
+			lsfDefaultQueue = props.getString("lsf.defaultQueue");
+
+			// TODO lsfUserPoolBaseDir could be checked as a Path, but was refactored from a String constant and left as a String for now
+
+			lsfUserPoolBaseDir = props.getString("lsf.userPoolBaseDir");
+			lsfUserOutputDir = props.getString("lsf.userOutputDir");
+
+			String executor = props.has("lsf.executor") ? props.getString("lsf.executor") : "ssh";
+			if (executor.equalsIgnoreCase("simulator")) {
+				commandExecutor = configureSimulator(props);
+			} else if (executor.equalsIgnoreCase("ssh")) {
+				commandExecutor = configureSshExecutor(props);
+			} else {
+				String msg = "lsf.executor must be one of ssh or simulator, not " + executor;
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+			logger.debug("LSF commands are run by " + commandExecutor.getClass().getSimpleName());
+
+			if (props.has("lsf.pollMode")) {
+				String pollModeString = props.getString("lsf.pollMode");
+				try {
+					pollMode = PollMode.valueOf(pollModeString.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					String msg = "lsf.pollMode must be one of user, all or list, not " + pollModeString;
+					logger.error(msg);
+					throw new IllegalStateException(msg);
+				}
+			}
+			logger.debug("Poll mode for bjobs is " + pollMode);
+
+			if (props.has("lsf.pollInterval")) {
+				pollIntervalMillis = props.getPositiveInt("lsf.pollInterval") * 1000L;
+			}
+			if (props.has("lsf.pollThreads")) {
+				pollThreads = props.getPositiveInt("lsf.pollThreads");
+			}
+			if (props.has("lsf.pollBudget")) {
+				pollBudgetMillis = props.getPositiveInt("lsf.pollBudget") * 1000L;
+			}
+			logger.debug("Pool users are updated " + pollThreads + " at a time, within " + pollBudgetMillis + "ms, every "
+					+ pollIntervalMillis + "ms");
+			if (pollBudgetMillis >= pollIntervalMillis) {
+				logger.warn("lsf.pollBudget is not less than lsf.pollInterval, so most bjobs polls will be skipped");
+			}
+
+			if (props.has("harvest.threads")) {
+				harvestThreads = props.getPositiveInt("harvest.threads");
+			}
+			if (props.has("harvest.maxAttempts")) {
+				harvestMaxAttempts = props.getPositiveInt("harvest.maxAttempts");
+			}
+			if (props.has("harvest.compress")) {
+				compressOutput = props.getBoolean("harvest.compress");
+			}
+
+			if (props.has("lsf.bjobsFormat")) {
+				String bjobsFormatString = props.getString("lsf.bjobsFormat");
+				try {
+					bjobsFormat = Bjobs.Format.valueOf(bjobsFormatString.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					String msg = "lsf.bjobsFormat must be one of wide or delimited, not " + bjobsFormatString;
+					logger.error(msg);
+					throw new IllegalStateException(msg);
+				}
+			}
+			logger.debug("Output format for bjobs is " + bjobsFormat);
+
+			long statusCacheMaxAge = JobStatusCache.DEFAULT_MAX_AGE_MILLIS;
+			if (props.has("statusCache.maxAge")) {
+				statusCacheMaxAge = props.getPositiveInt("statusCache.maxAge") * 1000L;
+			}
+			int statusCacheMaxSize = JobStatusCache.DEFAULT_MAX_SIZE;
+			if (props.has("statusCache.maxSize")) {
+				statusCacheMaxSize = props.getPositiveInt("statusCache.maxSize");
+			}
+			JobStatusCache.getInstance().configure(statusCacheMaxAge, statusCacheMaxSize);
+
+			long sessionCacheMaxAge = UserNameCache.DEFAULT_MAX_AGE_MILLIS;
+			if (props.has("sessionCache.maxAge")) {
+				sessionCacheMaxAge = props.getPositiveInt("sessionCache.maxAge") * 1000L;
+			}
+			int sessionCacheMaxSize = UserNameCache.DEFAULT_MAX_SIZE;
+			if (props.has("sessionCache.maxSize")) {
+				sessionCacheMaxSize = props.getPositiveInt("sessionCache.maxSize");
+			}
+			UserNameCache.getInstance().configure(sessionCacheMaxAge, sessionCacheMaxSize);
+
+			long tailPollMillis = LogTails.DEFAULT_POLL_MILLIS;
+			if (props.has("tail.pollInterval")) {
+				tailPollMillis = props.getPositiveInt("tail.pollInterval") * 1000L;
+			}
+			int tailMaxEvents = LogTails.DEFAULT_MAX_EVENTS;
+			if (props.has("tail.maxEvents")) {
+				tailMaxEvents = props.getPositiveInt("tail.maxEvents");
+			}
+			LogTails.getInstance().configure(tailPollMillis, tailMaxEvents, scheduler);
+
+			if (props.has("search.maxMatches")) {
+				searchMaxMatches = props.getPositiveInt("search.maxMatches");
+			}
+			if (props.has("search.timeout")) {
+				searchTimeoutMillis = props.getPositiveInt("search.timeout") * 1000L;
+			}
+
+			int submissionQueueMaxDepth = SubmissionQueue.DEFAULT_MAX_DEPTH;
+			if (props.has("submissionQueue.maxDepth")) {
+				submissionQueueMaxDepth = props.getNonNegativeInt("submissionQueue.maxDepth");
+			}
+			SubmissionQueue.Order submissionQueueOrder = SubmissionQueue.Order.FIFO;
+			if (props.has("submissionQueue.order")) {
+				String orderString = props.getString("submissionQueue.order");
+				try {
+					submissionQueueOrder = SubmissionQueue.Order.valueOf(orderString.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					String msg = "submissionQueue.order must be one of fifo or priority, not " + orderString;
+					logger.error(msg);
+					throw new IllegalStateException(msg);
+				}
+			}
+			SubmissionQueue.getInstance().configure(submissionQueueMaxDepth, submissionQueueOrder);
+
+			recoverPoolUsers();
+
+			// Jobs that were waiting for a pool user when we last stopped are still waiting
+			for (LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_QUEUED, LsfJob.class)
+					.setParameter("status", JobStatus.Queued).getResultList()) {
+				logger.debug("Restoring queued job " + job.getId() + " for family " + job.getFamily());
+				SubmissionQueue.getInstance().restore(job.getFamily(), job.getId(), job.getPriority(),
+						job.getSubmitDate().getTime());
+			}
+
+			logger.info("Set up lsfbatch with default family " + defaultFamily);
+		} catch (Exception e) {
+			String msg = e.getClass() + " reports " + e.getMessage();
+			logger.error(msg);
+			throw new IllegalStateException(msg);
+		}
+	}
+
+	/**
+	 * Add the pool users to the pool, each with a slot in use for each of its jobs that has not finished. The
+	 * unfinished jobs are read with one query, and checked against one run of bjobs for the whole pool; those that
+	 * LSF does not know of are marked Completed (and their output harvested) rather than given a slot. If bjobs
+	 * cannot be run, the jobs are left as recorded for updateJobsFromBjobs() to sort out.
+	 */
+	private void recoverPoolUsers() {
+		Map<String, List<LsfJob>> unfinishedByUser = new HashMap<>();
+		for (LsfJob job : entityManager.createNamedQuery(LsfJob.FIND_UNFINISHED, LsfJob.class)
+				.setParameter("statuses", JobManagementBean.UNFINISHED_STATUSES).getResultList()) {
+			String batchUsername = job.getBatchUsername();
+			if (batchUsername != null) {
+				List<LsfJob> jobs = unfinishedByUser.get(batchUsername);
+				if (jobs == null) {
+					jobs = new ArrayList<>();
+					unfinishedByUser.put(batchUsername, jobs);
+				}
+				jobs.add(job);
+			}
+		}
+
+		Set<String> poolUsers = new LinkedHashSet<>();
+		for (List<String> members : families.values()) {
+			poolUsers.addAll(members);
+		}
+		Set<String> knownToLsf = null;
+		if (!unfinishedByUser.isEmpty()) {
+			String userSpec = pollMode == PollMode.ALL ? "all" : JobManagementBean.joined(poolUsers);
+			try {
+				knownToLsf = Bjobs.run(commandExecutor, bjobsFormat, userSpec).getJobIds();
+			} catch (InternalException e) {
+				logger.warn("Unable to check unfinished jobs against bjobs at startup, so taking them as recorded: "
+						+ e.getMessage());
+			}
+		}
+
+		LsfUserPool lsfUserPool = LsfUserPool.getInstance();
+		for (String family : families.keySet()) {
+			for (String lsfUserId : families.get(family)) {
+				int usedSlots = 0;
+				List<LsfJob> jobs = unfinishedByUser.get(lsfUserId);
+				for (LsfJob job : jobs == null ? Collections.<LsfJob> emptyList() : jobs) {
+					if (knownToLsf == null || knownToLsf.contains(job.getBatchJobId())) {
+						usedSlots++;
+					} else {
+						logger.warn("Updating status of job '" + job.getId() + "' from '" + job.getStatus()
+								+ "' to 'Completed' as not known to bjobs at startup");
+						job.setStatus(JobStatus.Completed);
+						JobStatusCache.getInstance().put(job.getId(), JobStatus.Completed);
+						JobManagementBean.requestHarvest(job);
+					}
+				}
+				logger.debug("adding Lsf User: family '" + family + "', id '" + lsfUserId + "', used slots="
+						+ usedSlots);
+				lsfUserPool.addLsfUser(family, lsfUserId, usedSlots);
+			}
+		}
+	}
+
+	/**
+	 * Configure the executor that runs commands for real, via ssh for the pool users.
+	 */
+	private CommandExecutor configureSshExecutor(CheckedProperties props) throws CheckedPropertyException {
+		SshExecutor sshExecutor = SshExecutor.getInstance();
+		Path sshControlDir = null;
+		if (props.has("ssh.controlDir")) {
+			sshControlDir = props.getPath("ssh.controlDir").toAbsolutePath();
+			if (!Files.isDirectory(sshControlDir)) {
+				String msg = "ssh.controlDir " + sshControlDir + " does not exist";
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+		}
+		int sshIdleTimeout = SshExecutor.DEFAULT_IDLE_TIMEOUT_SECONDS;
+		if (props.has("ssh.idleTimeout")) {
+			sshIdleTimeout = props.getPositiveInt("ssh.idleTimeout");
+		}
+		int sshMaxChannels = SshExecutor.DEFAULT_MAX_CHANNELS;
+		if (props.has("ssh.maxChannels")) {
+			sshMaxChannels = props.getPositiveInt("ssh.maxChannels");
+		}
+		int sshMaxStreams = Math.min(SshExecutor.DEFAULT_MAX_STREAMS, sshMaxChannels - 1);
+		if (props.has("ssh.maxStreams")) {
+			sshMaxStreams = props.getPositiveInt("ssh.maxStreams");
+			if (sshMaxStreams >= sshMaxChannels) {
+				String msg = "ssh.maxStreams must be less than ssh.maxChannels";
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+		}
+		// The pool users' private keys are held by glassfish
+		sshExecutor.configure(Paths.get(lsfUserPoolBaseDir).resolve("glassfish").resolve(".ssh"), sshControlDir,
+				sshIdleTimeout, sshMaxChannels, sshMaxStreams);
+		return sshExecutor;
+	}
+
+	/**
+	 * Configure the in-process LSF simulator, which is only intended for testing.
+	 */
+	private CommandExecutor configureSimulator(CheckedProperties props) throws CheckedPropertyException {
+		LsfSimulator simulator = LsfSimulator.getInstance();
+		long pendMillis = LsfSimulator.DEFAULT_PEND_MILLIS;
+		if (props.has("simulator.pendMillis")) {
+			pendMillis = props.getNonNegativeInt("simulator.pendMillis");
+		}
+		long runMillis = LsfSimulator.DEFAULT_RUN_MILLIS;
+		if (props.has("simulator.runMillis")) {
+			runMillis = props.getNonNegativeInt("simulator.runMillis");
+		}
+		int maxRunning = LsfSimulator.DEFAULT_MAX_RUNNING;
+		if (props.has("simulator.maxRunning")) {
+			maxRunning = props.getPositiveInt("simulator.maxRunning");
+		}
+		long keepFinishedMillis = LsfSimulator.DEFAULT_KEEP_FINISHED_MILLIS;
+		if (props.has("simulator.keepFinishedMillis")) {
+			keepFinishedMillis = props.getNonNegativeInt("simulator.keepFinishedMillis");
+		}
+		logger.warn("Using the LSF simulator: jobs will not really be run");
+		simulator.configure(Paths.get(lsfUserPoolBaseDir), pendMillis, runMillis, maxRunning, keepFinishedMillis);
+		return simulator;
+	}
+
+	public String getDefaultFamily() {
+		return defaultFamily;
+	}
+
+	/**
+	 * @return map from family to its pool users, which may not be changed
+	 */
+	public Map<String, List<String>> getFamilies() {
+		return families;
+	}
+
+	public CommandExecutor getCommandExecutor() {
+		return commandExecutor;
+	}
+
+	public Path getJobOutputDir() {
+		return jobOutputDir;
+	}
+
+	public String getLsfDefaultQueue() {
+		return lsfDefaultQueue;
+	}
+
+	public String getLsfUserPoolBaseDir() {
+		return lsfUserPoolBaseDir;
+	}
+
+	public String getLsfUserOutputDir() {
+		return lsfUserOutputDir;
+	}
+
+	public PollMode getPollMode() {
+		return pollMode;
+	}
+
+	public Bjobs.Format getBjobsFormat() {
+		return bjobsFormat;
+	}
+
+	public long getPollIntervalMillis() {
+		return pollIntervalMillis;
+	}
+
+	public int getPollThreads() {
+		return pollThreads;
+	}
+
+	public long getPollBudgetMillis() {
+		return pollBudgetMillis;
+	}
+
+	public int getHarvestThreads() {
+		return harvestThreads;
+	}
+
+	public int getHarvestMaxAttempts() {
+		return harvestMaxAttempts;
+	}
+
+	public boolean isCompressOutput() {
+		return compressOutput;
+	}
+
+	public int getSearchMaxMatches() {
+		return searchMaxMatches;
+	}
+
+	public long getSearchTimeoutMillis() {
+		return searchTimeoutMillis;
+	}
+}
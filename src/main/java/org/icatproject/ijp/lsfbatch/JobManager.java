@@ -1,7 +1,16 @@
 package org.icatproject.ijp.lsfbatch;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
@@ -9,13 +18,19 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.icatproject.ijp.batch.JobStatus;
 import org.icatproject.ijp.batch.OutputType;
 import org.icatproject.ijp.batch.exceptions.ForbiddenException;
 import org.icatproject.ijp.batch.exceptions.InternalException;
@@ -29,6 +44,19 @@ public class JobManager {
 	@EJB
 	private JobManagementBean jobManagementBean;
 
+	@EJB
+	private BjobsPoller bjobsPoller;
+
+	// The size of the whole of a job's output, with any part of it
+	private final static String OUTPUT_SIZE = "X-Output-Size";
+	private final static String CONTENT_RANGE = "Content-Range";
+	private final static String ACCEPT_RANGES = "Accept-Ranges";
+
+	private final static String EVENT_STREAM = "text/event-stream";
+
+	private final static Pattern rangePattern = Pattern.compile("bytes\\s*=\\s*(\\d*)\\s*-\\s*(\\d*)");
+	private final static Pattern linesPattern = Pattern.compile("(\\d+)\\s*-\\s*(\\d*)");
+
 	@POST
 	@Path("cancel/{jobId}")
 	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -112,17 +140,32 @@ public class JobManager {
 	 * @param jobId as returned by the call to submit
 	 * @param sessionId the icatSession id of the submitter
 	 * @param icatUrl the url of the icat that issued the sessionId
+	 * @param offset optional: the offset of the first byte wanted; if negative, that many bytes from the end
+	 * @param length optional: the maximum number of bytes wanted
+	 * @param range optional: a single HTTP byte range, which takes precedence over offset and length; the response
+	 *        is then 206 (Partial Content) with a Content-Range header, or 416 if the range starts beyond the end
+	 * @param head optional: the number of lines wanted from the start
+	 * @param tail optional: the number of lines wanted from the end
+	 * @param lines optional: the lines wanted, as first-last (counting from 1) or first- for the rest
+	 *        (at most one of head, tail and lines may be given, and not with a byte range; lines can only be
+	 *        asked for once the job has finished and its output has been collected)
+	 * @param acceptEncoding if this includes gzip, output that is held compressed is sent as it is (unless only
+	 *        part of it is wanted, or a Range is given)
 	 * 
-	 * @return stream
+	 * @return stream, with the current size of the whole output in an X-Output-Size header
 	 * 
 	 * @throws SessionException
 	 * @throws ForbiddenException
 	 * @throws InternalException
 	 */
-	public InputStream getError(@PathParam("jobId") String jobId,
-			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl) throws SessionException, ForbiddenException,
+	public Response getError(@PathParam("jobId") String jobId,
+			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl,
+			@QueryParam("offset") Long offset, @QueryParam("length") Long length, @HeaderParam("Range") String range,
+			@QueryParam("head") Long head, @QueryParam("tail") Long tail, @QueryParam("lines") String lines,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) throws SessionException, ForbiddenException,
 			InternalException, ParameterException {
-		return jobManagementBean.getJobOutput(jobId, OutputType.ERROR_OUTPUT, sessionId, icatUrl);
+		return outputResponse(jobId, OutputType.ERROR_OUTPUT, offset, length, range, parseLines(head, tail, lines),
+				acceptEncoding, sessionId, icatUrl);
 	}
 
 	@GET
@@ -135,39 +178,411 @@ public class JobManager {
 	 * @param jobId as returned by the call to submit
 	 * @param sessionId the icatSession id of the submitter
 	 * @param icatUrl the url of the icat that issued the sessionId
+	 * @param offset optional: the offset of the first byte wanted; if negative, that many bytes from the end
+	 * @param length optional: the maximum number of bytes wanted
+	 * @param range optional: a single HTTP byte range, which takes precedence over offset and length; the response
+	 *        is then 206 (Partial Content) with a Content-Range header, or 416 if the range starts beyond the end
+	 * @param head optional: the number of lines wanted from the start
+	 * @param tail optional: the number of lines wanted from the end
+	 * @param lines optional: the lines wanted, as first-last (counting from 1) or first- for the rest
+	 *        (at most one of head, tail and lines may be given, and not with a byte range; lines can only be
+	 *        asked for once the job has finished and its output has been collected)
+	 * @param acceptEncoding if this includes gzip, output that is held compressed is sent as it is (unless only
+	 *        part of it is wanted, or a Range is given)
 	 * 
-	 * @return stream
+	 * @return stream, with the current size of the whole output in an X-Output-Size header
 	 * 
 	 * @throws SessionException
 	 * @throws ForbiddenException
 	 * @throws InternalException
 	 * @throws ParameterException
 	 */
-	public InputStream getOutput(@PathParam("jobId") String jobId,
-			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl) throws SessionException, ForbiddenException,
+	public Response getOutput(@PathParam("jobId") String jobId,
+			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl,
+			@QueryParam("offset") Long offset, @QueryParam("length") Long length, @HeaderParam("Range") String range,
+			@QueryParam("head") Long head, @QueryParam("tail") Long tail, @QueryParam("lines") String lines,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) throws SessionException, ForbiddenException,
 			InternalException, ParameterException {
-		return jobManagementBean.getJobOutput(jobId, OutputType.STANDARD_OUTPUT, sessionId, icatUrl);
+		return outputResponse(jobId, OutputType.STANDARD_OUTPUT, offset, length, range, parseLines(head, tail, lines),
+				acceptEncoding, sessionId, icatUrl);
 
 	}
 
+	private Response outputResponse(String jobId, OutputType outputType, Long offset, Long length, String range,
+			long[] lineRange, String acceptEncoding, String sessionId, String icatUrl) throws SessionException,
+			ForbiddenException, InternalException, ParameterException {
+		if (lineRange != null) {
+			if (offset != null || length != null || range != null) {
+				throw new ParameterException("Lines and bytes of output may not both be asked for");
+			}
+			JobOutput output = jobManagementBean.getJobOutputLines(jobId, outputType, lineRange[0], lineRange[1],
+					sessionId, icatUrl);
+			return Response.ok(streamed(output.getStream()), MediaType.APPLICATION_OCTET_STREAM)
+					.header(OUTPUT_SIZE, output.getSize()).build();
+		}
+		long[] byteRange = parseRange(range);
+		boolean ranged = byteRange != null;
+		if (!ranged) {
+			if (length != null && length < 0) {
+				throw new ParameterException("length must not be negative");
+			}
+			byteRange = new long[] { offset == null ? 0L : offset, length == null ? -1L : length };
+		}
+		// A Range response (even of the whole file) describes the uncompressed bytes, so cannot be sent compressed
+		boolean whole = !ranged && byteRange[0] == 0L && byteRange[1] < 0;
+		JobOutput output = jobManagementBean.getJobOutput(jobId, outputType, whole && acceptsGzip(acceptEncoding),
+				byteRange[0], byteRange[1], sessionId, icatUrl);
+
+		long size = output.getSize();
+		Response.ResponseBuilder builder;
+		if (ranged && size >= 0) {
+			long start = output.getOffset();
+			if (start >= size) {
+				try {
+					output.getStream().close();
+				} catch (IOException e) {
+					// Nothing was read from it
+				}
+				builder = Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).header(CONTENT_RANGE,
+						"bytes */" + size);
+			} else {
+				long end = byteRange[1] < 0 ? size - 1 : Math.min(size, start + byteRange[1]) - 1;
+				builder = Response.status(Response.Status.PARTIAL_CONTENT)
+						.entity(streamed(output.getStream())).type(MediaType.APPLICATION_OCTET_STREAM)
+						.header(CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+			}
+		} else {
+			builder = Response.ok(streamed(output.getStream()), MediaType.APPLICATION_OCTET_STREAM);
+		}
+		if (size >= 0) {
+			builder.header(OUTPUT_SIZE, size);
+		}
+		if (output.isGzipped()) {
+			builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		}
+		// Whether the response is compressed depends on Accept-Encoding
+		return builder.header(ACCEPT_RANGES, "bytes").header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+	}
+
+	@GET
+	@Path("search/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Search the standard output and standard error of a finished job for lines matching a literal or
+	 * regular expression, without downloading them
+	 * 
+	 * @param jobId as returned by the call to submit
+	 * @param sessionId the icatSession id of the submitter
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * @param query the literal or (if regex is true) regular expression to look for in each line
+	 * @param regex optional: true if the query is a regular expression
+	 * @param ignoreCase optional: true if case is to be ignored
+	 * @param context optional: the number of lines wanted before and after each match (default 0, at most 10)
+	 * @param max optional: the most matches wanted (default and upper limit set by the server)
+	 * 
+	 * @return Json object with stdout and stderr entries, each holding an array of matches (with line, counting from 1,
+	 *         text, and before and after arrays of context lines) and whether the search was cut short
+	 * 
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws InternalException
+	 * @throws ParameterException
+	 */
+	public String search(@PathParam("jobId") String jobId, @QueryParam("sessionId") String sessionId,
+			@QueryParam("icatUrl") String icatUrl, @QueryParam("query") String query,
+			@QueryParam("regex") Boolean regex, @QueryParam("ignoreCase") Boolean ignoreCase,
+			@QueryParam("context") Integer context, @QueryParam("max") Integer max) throws SessionException,
+			ForbiddenException, InternalException, ParameterException {
+		return jobManagementBean.search(jobId, query, regex != null && regex, ignoreCase != null && ignoreCase,
+				context == null ? 0 : context, max == null ? Integer.MAX_VALUE : max, sessionId, icatUrl);
+	}
+
+	@GET
+	@Path("tail/{jobId}")
+	@Produces(EVENT_STREAM)
+	/**
+	 * Follow the standard output and standard error of a job as Server-Sent Events until the job has finished.
+	 * Each event named stdout or stderr holds one or more new lines of that output, as a data line for each.
+	 * The stream starts with the last few lines of each output held; when the job finishes a reset event is sent
+	 * (with the output type as its data) and the final output follows, again from near its end, and then an end
+	 * event. All the clients following a job share one reader of its output.
+	 * 
+	 * @param jobId as returned by the call to submit
+	 * @param sessionId the icatSession id of the submitter
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * 
+	 * @return the event stream
+	 * 
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws ParameterException
+	 */
+	public ChunkedOutput<String> tail(@PathParam("jobId") String jobId, @QueryParam("sessionId") String sessionId,
+			@QueryParam("icatUrl") String icatUrl) throws SessionException, ForbiddenException, ParameterException {
+		// Written to by the tail's reader (see LogTails), so that no request thread waits for the job
+		final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+		jobManagementBean.tailJobOutput(jobId, new LogTail.Subscriber() {
+
+			@Override
+			public void send(List<LogTail.Event> events) throws IOException {
+				output.write(eventStream(events));
+			}
+
+			@Override
+			public void heartbeat() throws IOException {
+				output.write(":\n\n");
+			}
+
+			@Override
+			public void close() {
+				try {
+					output.close();
+				} catch (IOException e) {
+					// The client has gone
+				}
+			}
+		}, sessionId, icatUrl);
+		return output;
+	}
+
+	/**
+	 * Format the events of a tail in SSE format
+	 */
+	static String eventStream(List<LogTail.Event> events) {
+		StringBuilder sb = new StringBuilder();
+		for (LogTail.Event event : events) {
+			sb.append("event: ").append(event.getName()).append('\n');
+			for (String line : event.getData().split("\r\n|\r|\n", -1)) {
+				sb.append("data: ").append(line).append('\n');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copy a stream to the response through a small buffer, closing it however the copy ends. For the output of
+	 * a running job, the stream is that of the command reading it, so if the client goes away the command is killed.
+	 */
+	static StreamingOutput streamed(final InputStream in) {
+		return new StreamingOutput() {
+
+			@Override
+			public void write(OutputStream output) throws IOException {
+				try {
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						output.write(buffer, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Turn the head, tail and lines parameters into a range of lines
+	 * 
+	 * @return the first line (counting from 0, or negative to count from the end) and the number of lines (-1 for
+	 *         the rest), or null if no lines were asked for
+	 * @throws ParameterException
+	 *             if more than one parameter is given, or one is not valid
+	 */
+	static long[] parseLines(Long head, Long tail, String lines) throws ParameterException {
+		int given = (head == null ? 0 : 1) + (tail == null ? 0 : 1) + (lines == null ? 0 : 1);
+		if (given > 1) {
+			throw new ParameterException("Only one of head, tail and lines may be given");
+		}
+		if (head != null) {
+			if (head < 0) {
+				throw new ParameterException("head must not be negative");
+			}
+			return new long[] { 0L, head };
+		}
+		if (tail != null) {
+			if (tail < 0) {
+				throw new ParameterException("tail must not be negative");
+			}
+			return tail == 0 ? new long[] { Long.MAX_VALUE, 0L } : new long[] { -tail, -1L };
+		}
+		if (lines != null) {
+			Matcher m = linesPattern.matcher(lines.trim());
+			if (m.matches()) {
+				try {
+					long first = Long.parseLong(m.group(1));
+					if (m.group(2).isEmpty()) {
+						if (first > 0) {
+							return new long[] { first - 1, -1L };
+						}
+					} else {
+						long last = Long.parseLong(m.group(2));
+						if (first > 0 && last >= first) {
+							return new long[] { first - 1, last - first + 1 };
+						}
+					}
+				} catch (NumberFormatException e) {
+					// Reported below
+				}
+			}
+			throw new ParameterException("lines must be first-last or first-, counting from 1, not " + lines);
+		}
+		return null;
+	}
+
+	/**
+	 * Parse an HTTP Range header holding a single byte range. Anything else (including several ranges)
+	 * is ignored, as HTTP allows.
+	 * 
+	 * @param range
+	 * @return the offset (negative for a suffix range) and length (-1 for the rest) of the range, or null
+	 */
+	static long[] parseRange(String range) {
+		if (range == null) {
+			return null;
+		}
+		Matcher m = rangePattern.matcher(range.trim());
+		if (!m.matches()) {
+			return null;
+		}
+		try {
+			if (m.group(1).isEmpty()) {
+				long suffix = Long.parseLong(m.group(2));
+				return suffix == 0 ? null : new long[] { -suffix, -1L };
+			}
+			long first = Long.parseLong(m.group(1));
+			if (m.group(2).isEmpty()) {
+				return new long[] { first, -1L };
+			}
+			long last = Long.parseLong(m.group(2));
+			return last < first ? null : new long[] { first, last - first + 1 };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split("\\s*;\\s*");
+			if (parts[0].equalsIgnoreCase("gzip") || parts[0].equalsIgnoreCase("x-gzip")) {
+				// A quality of 0 means "not acceptable"
+				for (int i = 1; i < parts.length; i++) {
+					if (parts[i].replace(" ", "").matches("q=0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@GET
 	@Path("list")
 	@Produces(MediaType.APPLICATION_JSON)
 	/**
-	 * Get the list of statuses of known jobs that may be queried by the user identified by the sessionId
+	 * Get the list of known jobs that may be queried by the user identified by the sessionId, newest first
 	 * 
 	 * @param sessionId
 	 * @param icatUrl the url of the icat that issued the sessionId
+	 * @param statuses optional: only jobs last recorded with one of these statuses are listed
+	 * @param since optional: only jobs submitted at or after this time are listed, as yyyy-MM-dd or
+	 *        yyyy-MM-ddTHH:mm:ss followed by Z or an offset such as +01:00
+	 * @param until optional: only jobs submitted before this time are listed, in the same form as since
+	 * @param executable optional: only jobs of this executable are listed
+	 * @param limit optional: the most jobs to list at once
+	 * @param cursor optional: where to carry on from, as returned by the last call
+	 * @param details optional: if true, the status and submit date of each job are returned with its id
 	 * 
-	 * @return list of statuses
+	 * @return a json array of job ids; or, if any of limit, cursor and details is given, a json object holding the
+	 *         page of jobs in "jobs" and, if there are more, the cursor for the next page in "next"
 	 * 
 	 * @throws SessionException
 	 * @throws ParameterException
 	 * @throws InternalException
 	 */
-	public String list(@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl) throws SessionException,
-			ParameterException, InternalException {
-		return jobManagementBean.list(sessionId, icatUrl);
+	public String list(@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl,
+			@QueryParam("status") List<String> statuses, @QueryParam("since") String since,
+			@QueryParam("until") String until, @QueryParam("executable") String executable,
+			@QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor,
+			@QueryParam("details") Boolean details) throws SessionException, ParameterException, InternalException {
+		return jobManagementBean.list(parseStatuses(statuses), parseDate("since", since), parseDate("until", until),
+				executable, limit, cursor, details != null && details, sessionId, icatUrl);
+	}
+
+	/**
+	 * @return the statuses named, which may also be given comma-separated
+	 * @throws ParameterException
+	 *             if one is not a job status
+	 */
+	static List<JobStatus> parseStatuses(List<String> names) throws ParameterException {
+		List<JobStatus> statuses = new ArrayList<>();
+		if (names != null) {
+			for (String name : names) {
+				for (String each : name.split(",")) {
+					try {
+						statuses.add(JobStatus.valueOf(each.trim()));
+					} catch (IllegalArgumentException e) {
+						throw new ParameterException("status must be a job status, not " + each);
+					}
+				}
+			}
+		}
+		return statuses;
+	}
+
+	/**
+	 * Parse a date given as yyyy-MM-dd (taken as UTC) or as yyyy-MM-ddTHH:mm:ss with Z or an offset
+	 * 
+	 * @return the date, or null if none was given
+	 * @throws ParameterException
+	 *             if it is in neither form
+	 */
+	static Date parseDate(String name, String value) throws ParameterException {
+		if (value == null) {
+			return null;
+		}
+		for (String format : new String[] { "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd" }) {
+			// SimpleDateFormat is not thread-safe, so one is made for each use
+			SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+			dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			dateFormat.setLenient(false);
+			ParsePosition position = new ParsePosition(0);
+			Date date = dateFormat.parse(value.trim(), position);
+			if (date != null && position.getIndex() == value.trim().length()) {
+				return date;
+			}
+		}
+		throw new ParameterException(name + " must be yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss with Z or an offset, not "
+				+ value);
+	}
+
+	@GET
+	@Path("poller")
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Get the state of the poller that updates jobs from bjobs: how many cycles it has run and skipped, and how long
+	 * its cycles take and how late they start; and of the queue of jobs waiting for a pool user and the job status
+	 * cache
+	 * 
+	 * @param sessionId a valid icatSession id
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * 
+	 * @return a json object holding interval, cycles, skipped, running, lastStart, lastDuration, maxDuration, lastLag
+	 *         and maxLag, and a queue object holding queued, families (the jobs queued in each), dispatched, meanWait
+	 *         and maxWait, and a cache object holding size, hits, misses and evictions (times in milliseconds)
+	 * 
+	 * @throws SessionException
+	 * @throws ParameterException
+	 */
+	public String getPollerStatus(@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl)
+			throws SessionException, ParameterException {
+		jobManagementBean.checkSession(sessionId, icatUrl);
+		return bjobsPoller.getStatus();
 	}
 
 	@GET
@@ -193,6 +608,30 @@ public class JobManager {
 		return jobManagementBean.getStatus(jobId, sessionId, icatUrl);
 	}
 
+	@GET
+	@Path("status")
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Get the status of several jobs at once
+	 *  
+	 * @param jobIds the jobs of interest, as returned by the calls to submit. If none are given, 
+	 *        all jobs that may be queried by the user identified by the sessionId are included.
+	 * @param sessionId the icatSession id of the submitter
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * 
+	 * @return a json object mapping each job id to its status
+	 * 
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws ParameterException
+	 * @throws InternalException
+	 */
+	public String getStatuses(@QueryParam("jobId") List<String> jobIds,
+			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl) throws SessionException, ForbiddenException,
+			ParameterException, InternalException {
+		return jobManagementBean.getStatuses(jobIds, sessionId, icatUrl);
+	}
+
 	@POST
 	@Path("submit")
 	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -204,6 +643,8 @@ public class JobManager {
 	 * @param parameters the executables parameters
 	 * @param interactive true if interactive else false
 	 * @param family the name of the family. A family identifies a group of user accounts. If omitted the default family can be used.
+	 * @param priority optional: if no user account is free the job is queued, and higher priority jobs leave the queue first
+	 *        (if the server orders its queue by priority)
 	 * @param sessionId the icatSession id of the submitter
 	 * @param icatUrl the url of the icat that issued the sessionId
 	 *  
@@ -216,10 +657,11 @@ public class JobManager {
 	public String submit(@FormParam("executable") String executable,
 			@FormParam("parameter") List<String> parameters,
 			@FormParam("interactive") Boolean interactive, @FormParam("family") String family,
+			@FormParam("priority") Integer priority,
 			@FormParam("sessionId") String sessionId, @FormParam("icatUrl") String icatUrl)
 			throws InternalException, SessionException, ParameterException {
 		return jobManagementBean.submit(executable, parameters, family,
-				interactive != null && interactive, sessionId, icatUrl);
+				interactive != null && interactive, priority, sessionId, icatUrl);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream on (part of) a job's standard or error output, which may be gzip compressed
+ */
+public class JobOutput {
+
+	private final InputStream stream;
+	private final boolean gzipped;
+	private final long offset;
+	private final long size;
+	private final boolean spooled;
+
+	public JobOutput(InputStream stream, boolean gzipped) {
+		this(stream, gzipped, 0L, -1L);
+	}
+
+	/**
+	 * @param stream
+	 * @param gzipped
+	 * @param offset
+	 *            the position in the output of the first byte of the stream
+	 * @param size
+	 *            the size of the whole output (uncompressed), or -1 if it is not known
+	 */
+	public JobOutput(InputStream stream, boolean gzipped, long offset, long size) {
+		this(stream, gzipped, offset, size, false);
+	}
+
+	/**
+	 * @param stream
+	 * @param gzipped
+	 * @param offset
+	 * @param size
+	 * @param spooled
+	 *            true if the output is being read from the LSF spool file of a running job
+	 */
+	public JobOutput(InputStream stream, boolean gzipped, long offset, long size, boolean spooled) {
+		this.stream = stream;
+		this.gzipped = gzipped;
+		this.offset = offset;
+		this.size = size;
+		this.spooled = spooled;
+	}
+
+	public InputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * @return true if the stream holds the whole output gzip compressed, as the client said it would accept
+	 */
+	public boolean isGzipped() {
+		return gzipped;
+	}
+
+	/**
+	 * @return the position in the output of the first byte of the stream
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the size of the whole output (uncompressed) when it was opened, or -1 if it is not known
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return true if the output is being read from the LSF spool file of a running job, which does not hold the
+	 *         report that LSF adds to the final output, so that offsets in one do not match the other
+	 */
+	public boolean isSpooled() {
+		return spooled;
+	}
+
+	/**
+	 * Resolve a requested offset against the size of the output
+	 *
+	 * @param offset
+	 *            the requested offset; if negative, that many bytes from the end of the output
+	 * @param size
+	 *            the size of the output
+	 * @return the offset, which may be beyond the end of the output
+	 */
+	static long start(long offset, long size) {
+		return offset < 0 ? Math.max(0L, size + offset) : offset;
+	}
+
+	/**
+	 * @return a stream that ends after at most length bytes of the given one, or the stream itself if length is negative
+	 */
+	static InputStream limit(InputStream in, final long length) {
+		if (length < 0) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			private long remaining = length;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int b = super.read();
+				if (b >= 0) {
+					remaining--;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int n = super.read(b, off, (int) Math.min(len, remaining));
+				if (n > 0) {
+					remaining -= n;
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(super.available(), remaining);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+}
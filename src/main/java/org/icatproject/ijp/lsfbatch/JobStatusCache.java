@@ -0,0 +1,186 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.ijp.batch.JobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton cache of the job statuses last reported by bjobs, filled by the scheduled poller so that
+ * status requests need not run bjobs themselves.
+ *
+ * Entries older than the maximum age are treated as missing. When the cache grows beyond its maximum size,
+ * the oldest entries for finished jobs are evicted (their status is held in the database anyway); entries for
+ * unfinished jobs are only evicted if there are not enough finished ones.
+ */
+public class JobStatusCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(JobStatusCache.class);
+
+	public final static long DEFAULT_MAX_AGE_MILLIS = 120000L;
+	public final static int DEFAULT_MAX_SIZE = 100000;
+
+	private final static JobStatusCache instance = new JobStatusCache();
+
+	public static JobStatusCache getInstance() {
+		return instance;
+	}
+
+	private static class Entry {
+		final JobStatus status;
+		final long updated;
+
+		Entry(JobStatus status, long updated) {
+			this.status = status;
+			this.updated = updated;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	protected JobStatusCache() {
+		// Defeat instantiation (to some extent...)
+	}
+
+	/**
+	 * Set the staleness bound and size cap
+	 *
+	 * @param maxAgeMillis
+	 *            entries older than this are treated as missing
+	 * @param maxSize
+	 *            the number of entries above which entries are evicted
+	 */
+	public void configure(long maxAgeMillis, int maxSize) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Record the status of a job, as just seen
+	 */
+	public void put(String jobId, JobStatus status) {
+		put(jobId, status, System.currentTimeMillis());
+	}
+
+	void put(String jobId, JobStatus status, long now) {
+		entries.put(jobId, new Entry(status, now));
+		if (entries.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Get the cached status of a job
+	 *
+	 * @return the status, or null if it is not cached or is older than the maximum age
+	 */
+	public JobStatus get(String jobId) {
+		return get(jobId, System.currentTimeMillis());
+	}
+
+	JobStatus get(String jobId, long now) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || now - entry.updated > maxAgeMillis) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.status;
+	}
+
+	public void remove(String jobId) {
+		entries.remove(jobId);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/*
+	 * Bring the cache back to 90% of the maximum size, so that eviction is not needed on every put once full
+	 */
+	private synchronized void evict() {
+		int target = maxSize - maxSize / 10;
+		if (entries.size() <= target) {
+			return;
+		}
+		List<Map.Entry<String, Entry>> finished = new ArrayList<Map.Entry<String, Entry>>();
+		List<Map.Entry<String, Entry>> unfinished = new ArrayList<Map.Entry<String, Entry>>();
+		for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+			JobStatus status = mapEntry.getValue().status;
+			if (JobStatus.Completed.equals(status) || JobStatus.Cancelled.equals(status)) {
+				finished.add(mapEntry);
+			} else {
+				unfinished.add(mapEntry);
+			}
+		}
+		Comparator<Map.Entry<String, Entry>> oldestFirst = new Comparator<Map.Entry<String, Entry>>() {
+			@Override
+			public int compare(Map.Entry<String, Entry> e1, Map.Entry<String, Entry> e2) {
+				long u1 = e1.getValue().updated;
+				long u2 = e2.getValue().updated;
+				return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+			}
+		};
+		Collections.sort(finished, oldestFirst);
+		Collections.sort(unfinished, oldestFirst);
+		int excess = entries.size() - target;
+		excess -= evict(finished, excess);
+		if (excess > 0) {
+			logger.warn("Status cache holds more than " + target + " unfinished jobs; evicting the oldest " + excess);
+			evict(unfinished, excess);
+		}
+	}
+
+	private int evict(List<Map.Entry<String, Entry>> candidates, int count) {
+		int evicted = 0;
+		for (Map.Entry<String, Entry> candidate : candidates) {
+			if (evicted == count) {
+				break;
+			}
+			// Only remove the entry if it has not been updated meanwhile
+			if (entries.remove(candidate.getKey(), candidate.getValue())) {
+				evicted++;
+			}
+		}
+		evictions.addAndGet(evicted);
+		return evicted;
+	}
+
+	@Override
+	public String toString() {
+		return "JobStatusCache size " + entries.size() + ", hits " + hits.get() + ", misses " + misses.get() + ", evictions "
+				+ evictions.get();
+	}
+}
@@ -0,0 +1,253 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index of the lines of a job output file (which may have been compressed by OutputCompressor), so that
+ * a range of lines can be found without reading the file from the start.
+ *
+ * The index is kept in a sidecar file .&lt;name&gt;.idx next to the file. It records the offset of every STRIDE'th
+ * line, so it is about 8 bytes per STRIDE lines, and is memory-mapped for lookups; the offset of any other line is
+ * found by reading on from the nearest indexed line. The index also records how much of the file it covers, so
+ * that if the file has grown only the new part is read when the index is brought up to date; if it has shrunk
+ * (i.e. been replaced), the index is rebuilt.
+ *
+ * An index that already covers the whole file, as it does once the output has been harvested, is only opened for
+ * reading, so that lookups run in parallel; bringing an index up to date is done under a lock for its file.
+ */
+public class LineIndex {
+
+	private final static Logger logger = LoggerFactory.getLogger(LineIndex.class);
+
+	public final static int STRIDE = 1000;
+
+	public final static String SUFFIX = ".idx";
+
+	// Magic number, stride, size covered, newlines seen and the start of the last line, then the offsets
+	private final static int MAGIC = 0x4c494458;
+	private final static int HEADER_SIZE = 32;
+
+	private final static int BUFFER_SIZE = 1024 * 1024;
+
+	// Indexes are brought up to date under the lock for their file, of which these are shared between files by hash
+	private final static Object[] locks = new Object[64];
+
+	static {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private final Path path;
+	private final long size;
+	private final long newlines;
+	private final long lastLineStart;
+	private final MappedByteBuffer offsets;
+
+	private LineIndex(Path path, long size, long newlines, long lastLineStart, MappedByteBuffer offsets) {
+		this.path = path;
+		this.size = size;
+		this.newlines = newlines;
+		this.lastLineStart = lastLineStart;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * @return the sidecar file holding the index of the given (uncompressed) file name
+	 */
+	public static Path getIndexFor(Path path) {
+		return path.resolveSibling("." + path.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Bring the index of a file up to date, building it if there is none, and open it
+	 *
+	 * @param path
+	 *            the name of the file before any compression
+	 * @return the index
+	 * @throws NoSuchFileException
+	 *             if the file exists neither compressed nor uncompressed
+	 * @throws IOException
+	 */
+	public static LineIndex update(Path path) throws IOException {
+		Path indexPath = getIndexFor(path);
+		LineIndex index = open(path, indexPath);
+		if (index != null) {
+			return index;
+		}
+		synchronized (locks[(indexPath.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+			// It may have been brought up to date while waiting for the lock
+			index = open(path, indexPath);
+			if (index != null) {
+				return index;
+			}
+			try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				readFully(channel, header, 0L);
+				long size = 0L;
+				long newlines = 0L;
+				long lastLineStart = 0L;
+				if (!header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == STRIDE) {
+					size = header.getLong(8);
+					newlines = header.getLong(16);
+					lastLineStart = header.getLong(24);
+				}
+
+				long fileSize = OutputCompressor.size(path);
+				if (fileSize < size) {
+					logger.debug("Rebuilding index of " + path + ", which has been replaced");
+					size = 0L;
+					newlines = 0L;
+					lastLineStart = 0L;
+				}
+				if (size == 0L) {
+					channel.truncate(HEADER_SIZE);
+					writeOffset(channel, 0, 0L);
+				}
+
+				// Only what has been added since the index was last brought up to date is read
+				try (InputStream in = fileSize > size ? OutputCompressor.open(path, false, size, -1L).getStream()
+						: null) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int n;
+					while (in != null && (n = in.read(buffer)) > 0) {
+						for (int i = 0; i < n; i++) {
+							if (buffer[i] == '\n') {
+								newlines++;
+								lastLineStart = size + i + 1;
+								if (newlines % STRIDE == 0) {
+									writeOffset(channel, newlines / STRIDE, lastLineStart);
+								}
+							}
+						}
+						size += n;
+					}
+				}
+
+				// The header is written last, so that it never claims more than the offsets written
+				header.clear();
+				header.putInt(MAGIC).putInt(STRIDE).putLong(size).putLong(newlines).putLong(lastLineStart).flip();
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+				long entries = newlines / STRIDE + 1;
+				MappedByteBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, entries * 8);
+				return new LineIndex(path, size, newlines, lastLineStart, offsets);
+			}
+		}
+	}
+
+	/**
+	 * Open the index of a file for reading if it covers the whole file
+	 *
+	 * @return the index, or null if there is none or it is not up to date
+	 */
+	private static LineIndex open(Path path, Path indexPath) throws IOException {
+		long fileSize = OutputCompressor.size(path);
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0L);
+			if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != STRIDE
+					|| header.getLong(8) != fileSize) {
+				return null;
+			}
+			long newlines = header.getLong(16);
+			long entries = newlines / STRIDE + 1;
+			if (channel.size() < HEADER_SIZE + entries * 8) {
+				return null;
+			}
+			MappedByteBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, entries * 8);
+			return new LineIndex(path, fileSize, newlines, header.getLong(24), offsets);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private static void writeOffset(FileChannel channel, long entry, long offset) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(8);
+		bytes.putLong(offset).flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes, HEADER_SIZE + entry * 8 + bytes.position());
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the file covered by the index
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of lines in the file, counting a last line with no newline
+	 */
+	public long getLines() {
+		return lastLineStart < size ? newlines + 1 : newlines;
+	}
+
+	/**
+	 * Find the bytes holding a range of lines
+	 *
+	 * @param first
+	 *            the number of the first line wanted, counting from 0; if negative, that many lines from the end
+	 * @param count
+	 *            the number of lines wanted, or -1 for the rest
+	 * @return the offset of the first byte of the lines and the offset after the last
+	 * @throws IOException
+	 */
+	public long[] find(long first, long count) throws IOException {
+		long lines = getLines();
+		long start = first < 0 ? Math.max(0L, lines + first) : Math.min(first, lines);
+		long end = count < 0 ? lines : Math.min(lines, start + count);
+		long startOffset = getOffset(start);
+		return new long[] { startOffset, end == start ? startOffset : getOffset(end) };
+	}
+
+	/**
+	 * @return the offset of the start of the given line, or the size if it is beyond the last line
+	 */
+	long getOffset(long line) throws IOException {
+		if (line >= getLines()) {
+			return size;
+		}
+		long entry = line / STRIDE;
+		long offset = offsets.getLong((int) (entry * 8));
+		long skip = line - entry * STRIDE;
+		if (skip == 0) {
+			return offset;
+		}
+		JobOutput output = OutputCompressor.open(path, false, offset, size - offset);
+		try (InputStream in = output.getStream()) {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '\n' && --skip == 0) {
+						return offset + i + 1;
+					}
+				}
+				offset += n;
+			}
+		}
+		throw new IOException("Index of " + path + " does not match the file");
+	}
+}
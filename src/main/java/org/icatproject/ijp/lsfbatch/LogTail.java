@@ -0,0 +1,341 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import org.icatproject.ijp.batch.OutputType;
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows the standard and error output of one job as they grow, on behalf of any number of subscribers, so that
+ * however many clients are watching a job its output is read at most once per poll interval.
+ *
+ * A tail is read by a single task on a shared scheduler (see LogTails), which passes the events to its subscribers,
+ * so that no thread waits on behalf of a subscriber. New complete lines become events, which are held in a bounded
+ * buffer for subscribers to catch up from. A tail starts from the last INITIAL_BYTES of each output.
+ *
+ * While a job runs its output is read from the LSF spool files; once it has finished the final output files are
+ * read instead. As these are laid out differently (LSF adds a report to the final standard output), a reset event
+ * is sent and the final output is sent from near its end, as at the start. When the job has finished and its final
+ * output has been read to the end, an end event is sent; as the final output may only appear some time after the
+ * job has finished, that is only once there is some final output, or its output has been collected.
+ */
+public class LogTail {
+
+	private final static Logger logger = LoggerFactory.getLogger(LogTail.class);
+
+	public final static String STDOUT = "stdout";
+	public final static String STDERR = "stderr";
+	public final static String RESET = "reset";
+	public final static String END = "end";
+
+	/**
+	 * How much of each output is sent when a tail starts, or switches to the final output
+	 */
+	public final static int INITIAL_BYTES = 64 * 1024;
+
+	/**
+	 * The most read from each output at once; if there is more, it is read straight away
+	 */
+	public final static int MAX_READ = 1024 * 1024;
+
+	/**
+	 * Where a tail gets a job's output from
+	 */
+	public interface Source {
+
+		/**
+		 * @param outputType
+		 * @param offset
+		 *            the offset of the first byte wanted; if negative, that many bytes from the end of the output
+		 * @param length
+		 *            the most bytes wanted
+		 * @return the output, or null if there is none at the moment
+		 */
+		JobOutput read(OutputType outputType, long offset, long length) throws InternalException;
+
+		/**
+		 * @return true if the job has finished, so that its final output is complete
+		 */
+		boolean isFinished() throws InternalException;
+
+		/**
+		 * @return true if the job's output has been collected into its final place, or never will be, so that final
+		 *         output that is missing will never appear
+		 */
+		boolean isCollected() throws InternalException;
+	}
+
+	/**
+	 * Somewhere the events of a tail are sent, such as the response to a client. Its methods are called one at a
+	 * time, on the threads of the scheduler that reads the tail.
+	 */
+	public interface Subscriber {
+
+		/**
+		 * @throws IOException
+		 *             if the subscriber has gone, in which case it is closed and unsubscribed
+		 */
+		void send(List<Event> events) throws IOException;
+
+		/**
+		 * Called when nothing has been sent for a while, so that a subscriber that has gone is noticed
+		 *
+		 * @throws IOException
+		 *             if the subscriber has gone, in which case it is closed and unsubscribed
+		 */
+		void heartbeat() throws IOException;
+
+		/**
+		 * Called once the end event has been sent, or the subscriber has gone
+		 */
+		void close();
+	}
+
+	public static class Event {
+		private final long sequence;
+		private final String name;
+		private final String data;
+
+		Event(long sequence, String name, String data) {
+			this.sequence = sequence;
+			this.name = name;
+			this.data = data;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return STDOUT, STDERR, RESET or END
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return one or more lines of output (without the final newline), or the output type for a reset
+		 */
+		public String getData() {
+			return data;
+		}
+	}
+
+	private final String jobId;
+	private final Source source;
+	private final int maxEvents;
+
+	private final Deque<Event> events = new ArrayDeque<>();
+	private long sequence;
+	private boolean ended;
+	private boolean fetching;
+
+	// Per output type, only touched by the subscriber fetching
+	private final long[] offsets = new long[OutputType.values().length];
+	private final Boolean[] spooled = new Boolean[OutputType.values().length];
+	private final ByteArrayOutputStream[] partial = new ByteArrayOutputStream[OutputType.values().length];
+
+	// The task reading the tail, guarded by LogTails
+	ScheduledFuture<?> reader;
+
+	/**
+	 * @param jobId
+	 * @param source
+	 * @param maxEvents
+	 *            the most events held for subscribers to catch up from
+	 */
+	public LogTail(String jobId, Source source, int maxEvents) {
+		this.jobId = jobId;
+		this.source = source;
+		this.maxEvents = maxEvents;
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = -INITIAL_BYTES;
+			partial[i] = new ByteArrayOutputStream();
+		}
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * @return the sequence number of the latest event, to pass to eventsAfter() to get only events after it
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the events held after the given one, which are the oldest held if those after it have been dropped
+	 */
+	public synchronized List<Event> eventsAfter(long after) {
+		List<Event> result = new ArrayList<>();
+		for (Event event : events) {
+			if (event.sequence > after) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read the output now, unless it is already being read or the tail has ended
+	 *
+	 * @return true if there is more to read straight away
+	 */
+	public boolean read() {
+		synchronized (this) {
+			if (fetching || ended) {
+				return false;
+			}
+			fetching = true;
+		}
+		boolean more = false;
+		try {
+			more = fetch();
+		} catch (InternalException | IOException | RuntimeException e) {
+			logger.warn("Unable to read output of job " + jobId + ": " + e.getClass() + " " + e.getMessage());
+		} finally {
+			synchronized (this) {
+				fetching = false;
+			}
+		}
+		return more;
+	}
+
+	/**
+	 * @return true if the job has ended and its output has all been sent
+	 */
+	public synchronized boolean hasEnded() {
+		return ended;
+	}
+
+	/**
+	 * Read what has been added to each output since the last read, and make events of it
+	 *
+	 * @return true if there is more to read straight away
+	 */
+	private boolean fetch() throws InternalException, IOException {
+		// Asked first, so that all output written before the job finished is read below
+		boolean finished = source.isFinished();
+		boolean complete = finished;
+		boolean found = false;
+		boolean more = false;
+		for (OutputType outputType : OutputType.values()) {
+			int i = outputType.ordinal();
+			JobOutput output = source.read(outputType, offsets[i], MAX_READ);
+			if (output == null) {
+				// Output that is still missing once the job has finished will never appear
+				continue;
+			}
+			if (spooled[i] != null && spooled[i] && !output.isSpooled()) {
+				close(output);
+				add(RESET, outputType.name());
+				offsets[i] = -INITIAL_BYTES;
+				partial[i].reset();
+				output = source.read(outputType, offsets[i], MAX_READ);
+				if (output == null) {
+					complete = false;
+					continue;
+				}
+			}
+			if (!output.isSpooled()) {
+				found = true;
+			}
+			byte[] bytes = readAll(output.getStream());
+			int start = 0;
+			if (spooled[i] == null || offsets[i] < 0) {
+				// Starting part way through the output, so skip to the first whole line
+				if (output.getOffset() > 0) {
+					while (start < bytes.length && bytes[start++] != '\n') {
+					}
+				}
+				spooled[i] = output.isSpooled();
+			}
+			offsets[i] = output.getOffset() + bytes.length;
+			partial[i].write(bytes, start, bytes.length - start);
+			addLines(outputType, false);
+			if (bytes.length >= MAX_READ) {
+				more = true;
+			}
+			if (output.isSpooled() || offsets[i] < output.getSize()) {
+				complete = false;
+			}
+		}
+		if (complete && !found && !source.isCollected()) {
+			// The final output may not have been written yet
+			complete = false;
+		}
+		if (complete) {
+			for (OutputType outputType : OutputType.values()) {
+				addLines(outputType, true);
+			}
+			add(END, "");
+			synchronized (this) {
+				ended = true;
+			}
+		}
+		return more && !complete;
+	}
+
+	/**
+	 * Make an event of the complete lines held for the output type, or of all that is held if the output has ended
+	 */
+	private void addLines(OutputType outputType, boolean all) {
+		ByteArrayOutputStream held = partial[outputType.ordinal()];
+		byte[] bytes = held.toByteArray();
+		int end = bytes.length;
+		if (!all) {
+			while (end > 0 && bytes[end - 1] != '\n') {
+				end--;
+			}
+		}
+		if (end == 0) {
+			return;
+		}
+		int last = bytes[end - 1] == '\n' ? end - 1 : end;
+		add(outputType == OutputType.STANDARD_OUTPUT ? STDOUT : STDERR, new String(bytes, 0, last,
+				StandardCharsets.UTF_8));
+		held.reset();
+		held.write(bytes, end, bytes.length - end);
+	}
+
+	private synchronized void add(String name, String data) {
+		events.add(new Event(++sequence, name, data));
+		while (events.size() > maxEvents) {
+			events.remove();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void close(JobOutput output) {
+		try {
+			output.getStream().close();
+		} catch (IOException e) {
+			// Nothing was read from it
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton registry of the LogTails being followed, so that all the subscribers to a job share one tail.
+ *
+ * Each tail is read by one task on the scheduler, every poll interval, which sends the new events to each of its
+ * subscribers. A subscriber is dropped once it has been sent the end event, or as soon as sending to it fails; a
+ * subscriber that has been sent nothing for HEARTBEAT_MILLIS is sent a heartbeat, so that one that has gone is
+ * noticed. A tail is dropped, and its task cancelled, when its last subscriber leaves.
+ */
+public class LogTails {
+
+	private final static Logger logger = LoggerFactory.getLogger(LogTails.class);
+
+	public final static long DEFAULT_POLL_MILLIS = 2000L;
+	public final static int DEFAULT_MAX_EVENTS = 1000;
+
+	// How often a subscriber is sent a heartbeat while it is sent nothing else, so that proxies keep its stream
+	// open and a client that has gone away is noticed
+	public final static long HEARTBEAT_MILLIS = 15000L;
+
+	// The most reads of a tail in one go while there is more output to read straight away
+	private final static int MAX_READS = 10;
+
+	private final static LogTails instance = new LogTails();
+
+	public static LogTails getInstance() {
+		return instance;
+	}
+
+	private final Map<String, LogTail> tails = new HashMap<>();
+
+	// The subscriptions to each tail
+	private final Map<LogTail, List<Subscription>> subscriptions = new HashMap<>();
+
+	private volatile long pollMillis = DEFAULT_POLL_MILLIS;
+	private volatile int maxEvents = DEFAULT_MAX_EVENTS;
+	private volatile ScheduledExecutorService scheduler;
+
+	private static class Subscription {
+		private final LogTail.Subscriber subscriber;
+		private long seen;
+		private long lastSent = System.currentTimeMillis();
+		private boolean closed;
+
+		Subscription(LogTail.Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+	}
+
+	protected LogTails() {
+		// Defeat instantiation (to some extent...)
+	}
+
+	/**
+	 * Set how often tails read the output they follow, how many events they hold and what runs them; tails already
+	 * being followed are not changed
+	 *
+	 * @param pollMillis
+	 *            the least time between reads of a job's output
+	 * @param maxEvents
+	 *            the most events held for subscribers to catch up from
+	 * @param scheduler
+	 *            runs the task that reads each tail
+	 */
+	public void configure(long pollMillis, int maxEvents, ScheduledExecutorService scheduler) {
+		this.pollMillis = pollMillis;
+		this.maxEvents = maxEvents;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Subscribe to the tail of a job, starting one with the given source if it is not already being followed.
+	 * The subscriber is sent the events held (from the oldest) at once, and then new events as they come, until the
+	 * end event has been sent or it has gone; it is then closed and unsubscribed.
+	 *
+	 * @param jobId
+	 * @param source
+	 *            where to read the job's output from, if a new tail is needed
+	 * @param subscriber
+	 * @return the tail
+	 */
+	public LogTail subscribe(String jobId, LogTail.Source source, LogTail.Subscriber subscriber) {
+		final LogTail tail;
+		synchronized (this) {
+			if (scheduler == null) {
+				throw new IllegalStateException("LogTails has not been configured");
+			}
+			LogTail found = tails.get(jobId);
+			if (found == null) {
+				found = new LogTail(jobId, source, maxEvents);
+				final LogTail started = found;
+				found.reader = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+					@Override
+					public void run() {
+						read(started);
+					}
+				}, 0L, pollMillis, TimeUnit.MILLISECONDS);
+				tails.put(jobId, found);
+				subscriptions.put(found, new ArrayList<Subscription>());
+				logger.debug("Started following output of job " + jobId);
+			}
+			tail = found;
+			subscriptions.get(tail).add(new Subscription(subscriber));
+		}
+		// Catch up a subscriber to a tail that is already being read without waiting for the next read
+		try {
+			scheduler.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					send(tail);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// It will be caught up by the next read
+		}
+		return tail;
+	}
+
+	/**
+	 * Read a tail's output, and send the events to its subscribers
+	 */
+	private void read(LogTail tail) {
+		try {
+			boolean more = true;
+			for (int i = 0; more && i < MAX_READS; i++) {
+				more = tail.read();
+				send(tail);
+			}
+		} catch (RuntimeException e) {
+			// Thrown out of the task, it would stop the tail being read for good
+			logger.warn("Unable to follow output of job " + tail.getJobId() + ": " + e.getClass() + " "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Send the events they have not yet seen to the subscribers of a tail, or a heartbeat to those that have not been
+	 * sent anything for a while; close and unsubscribe those that have had the end event or have gone
+	 */
+	private void send(LogTail tail) {
+		List<Subscription> current;
+		synchronized (this) {
+			List<Subscription> list = subscriptions.get(tail);
+			if (list == null) {
+				return;
+			}
+			current = new ArrayList<>(list);
+		}
+		boolean ended = tail.hasEnded();
+		for (Subscription subscription : current) {
+			boolean done;
+			synchronized (subscription) {
+				if (subscription.closed) {
+					continue;
+				}
+				try {
+					List<LogTail.Event> events = tail.eventsAfter(subscription.seen);
+					long now = System.currentTimeMillis();
+					if (!events.isEmpty()) {
+						subscription.subscriber.send(events);
+						subscription.seen = events.get(events.size() - 1).getSequence();
+						subscription.lastSent = now;
+					} else if (now - subscription.lastSent >= HEARTBEAT_MILLIS) {
+						subscription.subscriber.heartbeat();
+						subscription.lastSent = now;
+					}
+					done = ended && subscription.seen >= tail.getSequence();
+				} catch (IOException | RuntimeException e) {
+					logger.debug("Subscriber to output of job " + tail.getJobId() + " has gone: " + e.getMessage());
+					done = true;
+				}
+				subscription.closed = done;
+			}
+			if (done) {
+				unsubscribe(tail, subscription);
+				subscription.subscriber.close();
+			}
+		}
+	}
+
+	private synchronized void unsubscribe(LogTail tail, Subscription subscription) {
+		List<Subscription> list = subscriptions.get(tail);
+		if (list == null || !list.remove(subscription)) {
+			return;
+		}
+		if (list.isEmpty()) {
+			subscriptions.remove(tail);
+			if (tails.get(tail.getJobId()) == tail) {
+				tails.remove(tail.getJobId());
+			}
+			tail.reader.cancel(false);
+			logger.debug("Stopped following output of job " + tail.getJobId());
+		}
+	}
+
+	/**
+	 * @return the number of tails being followed
+	 */
+	public synchronized int size() {
+		return tails.size();
+	}
+}
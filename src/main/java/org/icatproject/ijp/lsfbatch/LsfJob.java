@@ -7,8 +7,10 @@ import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
@@ -19,18 +21,41 @@ import org.icatproject.ijp.batch.JobStatus;
 @NamedQueries({
 	@NamedQuery(name = "LsfJob.FIND_BY_USERNAME", query = "SELECT j FROM LsfJob j WHERE j.username = :username ORDER BY j.submitDate DESC"),
 	@NamedQuery(name = "LsfJob.ID_BY_USERNAME", query = "SELECT j.id FROM LsfJob j WHERE j.username = :username ORDER BY j.submitDate DESC"),
-	@NamedQuery(name = "LsfJob.FIND_BY_BATCHUSERNAME", query = "SELECT j FROM LsfJob j WHERE j.batchUsername = :batchusername ORDER BY j.submitDate DESC") })
+	@NamedQuery(name = "LsfJob.FIND_BY_USERNAME_AND_IDS", query = "SELECT j FROM LsfJob j WHERE j.username = :username AND j.id IN :ids ORDER BY j.submitDate DESC"),
+	@NamedQuery(name = "LsfJob.FIND_BY_BATCHUSERNAME", query = "SELECT j FROM LsfJob j WHERE j.batchUsername = :batchusername ORDER BY j.submitDate DESC"),
+	@NamedQuery(name = "LsfJob.FIND_BY_BATCHJOBID", query = "SELECT j FROM LsfJob j WHERE j.batchJobId = :batchjobid"),
+	@NamedQuery(name = "LsfJob.FIND_TO_POLL", query = "SELECT j FROM LsfJob j WHERE j.batchUsername IS NOT NULL AND (j.status IN :statuses OR (j.status = :cancelled AND j.harvestState IS NULL))"),
+	@NamedQuery(name = "LsfJob.FIND_UNFINISHED", query = "SELECT j FROM LsfJob j WHERE j.status IN :statuses"),
+	@NamedQuery(name = "LsfJob.FIND_QUEUED", query = "SELECT j FROM LsfJob j WHERE j.batchUsername IS NULL AND j.status = :status ORDER BY j.submitDate"),
+	@NamedQuery(name = "LsfJob.FIND_HARVEST_DUE", query = "SELECT j FROM LsfJob j WHERE j.harvestState = :state AND j.harvestDue <= :now ORDER BY j.harvestDue") })
+// The table keeps every job ever run, so the queries above must not scan it
+@Table(indexes = {
+	@Index(name = "LSFJOB_USERNAME_SUBMITDATE_ID", columnList = "USERNAME, SUBMITDATE, ID"),
+	@Index(name = "LSFJOB_BATCHUSERNAME_STATUS", columnList = "BATCHUSERNAME, STATUS"),
+	@Index(name = "LSFJOB_STATUS", columnList = "STATUS"),
+	@Index(name = "LSFJOB_BATCHJOBID", columnList = "BATCHJOBID"),
+	@Index(name = "LSFJOB_HARVESTSTATE_HARVESTDUE", columnList = "HARVESTSTATE, HARVESTDUE") })
 public class LsfJob implements Serializable {
 
 	public final static String FIND_BY_USERNAME = "LsfJob.FIND_BY_USERNAME";
 	public final static String ID_BY_USERNAME = "LsfJob.ID_BY_USERNAME";
+	public final static String FIND_BY_USERNAME_AND_IDS = "LsfJob.FIND_BY_USERNAME_AND_IDS";
 	public final static String FIND_BY_BATCHUSERNAME = "LsfJob.FIND_BY_BATCHUSERNAME";
-
+	public final static String FIND_BY_BATCHJOBID = "LsfJob.FIND_BY_BATCHJOBID";
+	public final static String FIND_TO_POLL = "LsfJob.FIND_TO_POLL";
+	public final static String FIND_UNFINISHED = "LsfJob.FIND_UNFINISHED";
+	public final static String FIND_QUEUED = "LsfJob.FIND_QUEUED";
+	public final static String FIND_HARVEST_DUE = "LsfJob.FIND_HARVEST_DUE";
+
+	// The LSF job id; null until the job has been submitted to LSF
+	private String batchJobId;
+	// The pool user running the job; null while the job is in the submission queue
 	private String batchUsername;
 	private String batchfileName;
 
 	private String directory;
 	private String executable;
+	private String family;
 
 	@Id
 	private String id;
@@ -42,10 +67,32 @@ public class LsfJob implements Serializable {
 	
 	@Enumerated(EnumType.STRING)
 	private JobStatus status;
+	
+	private int priority;
+	
+	// Progress in moving the job's output to the glassfish area; the state is null until the job has finished
+	@Enumerated(EnumType.STRING)
+	private HarvestState harvestState;
+	
+	private int harvestAttempts;
+	
+	// When the next attempt to move the output is due
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date harvestDue;
+	
+	private long harvestedBytes;
 
 	public LsfJob() {
 	}
 
+	/**
+	 * @return the LSF job id; for a job submitted to LSF before the id was recorded (and not backfilled by the
+	 *         upgrade script), this is the job's own id, which is what LSF knew it by
+	 */
+	public String getBatchJobId() {
+		return batchJobId == null && batchUsername != null ? id : batchJobId;
+	}
+
 	public String getBatchUsername() {
 		return batchUsername;
 	}
@@ -62,6 +109,10 @@ public class LsfJob implements Serializable {
 		return executable;
 	}
 
+	public String getFamily() {
+		return family;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -77,6 +128,30 @@ public class LsfJob implements Serializable {
 	public JobStatus getStatus(){
 		return status;
 	}
+	
+	public int getPriority(){
+		return priority;
+	}
+	
+	public HarvestState getHarvestState(){
+		return harvestState;
+	}
+	
+	public int getHarvestAttempts(){
+		return harvestAttempts;
+	}
+	
+	public Date getHarvestDue(){
+		return harvestDue;
+	}
+	
+	public long getHarvestedBytes(){
+		return harvestedBytes;
+	}
+
+	public void setBatchJobId(String batchJobId) {
+		this.batchJobId = batchJobId;
+	}
 
 	public void setBatchUsername(String batchUsername) {
 		this.batchUsername = batchUsername;
@@ -94,6 +169,10 @@ public class LsfJob implements Serializable {
 		this.executable = executable;
 	}
 
+	public void setFamily(String family) {
+		this.family = family;
+	}
+
 	public void setId(String id) {
 		this.id = id;
 	}
@@ -109,4 +188,24 @@ public class LsfJob implements Serializable {
 	public void setStatus(JobStatus status){
 		this.status = status;
 	}
+	
+	public void setPriority(int priority){
+		this.priority = priority;
+	}
+	
+	public void setHarvestState(HarvestState harvestState){
+		this.harvestState = harvestState;
+	}
+	
+	public void setHarvestAttempts(int harvestAttempts){
+		this.harvestAttempts = harvestAttempts;
+	}
+	
+	public void setHarvestDue(Date harvestDue){
+		this.harvestDue = harvestDue;
+	}
+	
+	public void setHarvestedBytes(long harvestedBytes){
+		this.harvestedBytes = harvestedBytes;
+	}
 }
@@ -0,0 +1,587 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process emulation of LSF and of the pool users' shells, for tests and load tests without a cluster.
+ *
+ * It understands the commands that JobManagementBean uses: bsub, bjobs (in either output format), bkill, and mkdir,
+ * rm -rf, cat, stat -c %s and tail -c on the local file system. Each submitted job stays pending for pendMillis, then
+ * runs for runMillis once one of maxRunning execution slots is free, and then writes its output files and becomes DONE.
+ * While it runs, its output is in the pool user's .lsbatch folder, as with LSF. Finished jobs
+ * are forgotten after keepFinishedMillis, as LSF does after its CLEAN_PERIOD. Job states are brought up to date
+ * whenever a command is run, so no background thread is needed.
+ */
+public class LsfSimulator implements CommandExecutor {
+
+	private final static Logger logger = LoggerFactory.getLogger(LsfSimulator.class);
+
+	public final static long DEFAULT_PEND_MILLIS = 1000L;
+	public final static long DEFAULT_RUN_MILLIS = 10000L;
+	public final static int DEFAULT_MAX_RUNNING = 1000;
+	public final static long DEFAULT_KEEP_FINISHED_MILLIS = 3600000L;
+
+	private final static String HOST = "localhost";
+
+	// LSF's exit value for most failures
+	private final static int LSF_ERROR = 255;
+
+	private final static LsfSimulator instance = new LsfSimulator();
+
+	public static LsfSimulator getInstance() {
+		return instance;
+	}
+
+	private static class SimJob {
+		String id;
+		String user;
+		String queue;
+		String name;
+		String outFile;
+		String errFile;
+		String script;
+		String stat = "PEND";
+		long submitted;
+		long eligible;
+		long started;
+		long finished;
+		long finishAt;
+		Integer exitCode;
+	}
+
+	private final static Comparator<SimJob> byFinishAt = new Comparator<SimJob>() {
+		@Override
+		public int compare(SimJob j1, SimJob j2) {
+			return j1.finishAt < j2.finishAt ? -1 : (j1.finishAt == j2.finishAt ? 0 : 1);
+		}
+	};
+
+	private Path userBaseDir;
+	private long pendMillis = DEFAULT_PEND_MILLIS;
+	private long runMillis = DEFAULT_RUN_MILLIS;
+	private int maxRunning = DEFAULT_MAX_RUNNING;
+	private long keepFinishedMillis = DEFAULT_KEEP_FINISHED_MILLIS;
+
+	// All known jobs, in order of submission
+	private final Map<String, SimJob> jobs = new LinkedHashMap<String, SimJob>();
+	private final ArrayDeque<SimJob> pending = new ArrayDeque<SimJob>();
+	private final PriorityQueue<SimJob> running = new PriorityQueue<SimJob>(11, byFinishAt);
+	private final ArrayDeque<SimJob> finished = new ArrayDeque<SimJob>();
+	private long nextJobId = 100000;
+
+	public LsfSimulator() {
+	}
+
+	/**
+	 * @param userBaseDir
+	 *            the directory holding the pool users' home directories, against which their relative paths are resolved
+	 * @param pendMillis
+	 *            how long each job is pending before it may run
+	 * @param runMillis
+	 *            how long each job runs
+	 * @param maxRunning
+	 *            how many jobs may run at once
+	 * @param keepFinishedMillis
+	 *            how long finished jobs are still reported by bjobs
+	 */
+	public synchronized void configure(Path userBaseDir, long pendMillis, long runMillis, int maxRunning,
+			long keepFinishedMillis) {
+		this.userBaseDir = userBaseDir;
+		this.pendMillis = pendMillis;
+		this.runMillis = runMillis;
+		this.maxRunning = maxRunning;
+		this.keepFinishedMillis = keepFinishedMillis;
+	}
+
+	@Override
+	public CommandResult run(String... command) {
+		return execute(null, System.currentTimeMillis(), Arrays.asList(command));
+	}
+
+	@Override
+	public CommandResult runAs(String user, String... command) {
+		// The arguments would have been seen by a shell, so remove any quoting
+		List<String> args = new ArrayList<String>();
+		for (String arg : command) {
+			args.add(unquote(arg));
+		}
+		return execute(user, System.currentTimeMillis(), args);
+	}
+
+	@Override
+	public InputStream openAs(String user, String... command) {
+		return new ByteArrayInputStream(runAs(user, command).getStdout().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Run a command at the given time
+	 *
+	 * @param user
+	 *            the pool user, or null if run locally
+	 */
+	synchronized CommandResult execute(String user, long now, List<String> command) {
+		advance(now);
+		String name = command.isEmpty() ? "" : command.get(0);
+		List<String> args = command.subList(Math.min(1, command.size()), command.size());
+		if (name.equals("bsub")) {
+			return bsub(user, now, args);
+		} else if (name.equals("bjobs")) {
+			return bjobs(user, args);
+		} else if (name.equals("bkill")) {
+			return bkill(user, now, args);
+		} else if (name.equals("mkdir")) {
+			return mkdir(user, args);
+		} else if (name.equals("rm")) {
+			return rm(user, args);
+		} else if (name.equals("cat")) {
+			return cat(user, args);
+		} else if (name.equals("stat")) {
+			return stat(user, args);
+		} else if (name.equals("tail")) {
+			return tail(user, args);
+		}
+		return new CommandResult(127, "", name + ": command not found\n");
+	}
+
+	/**
+	 * @return the number of jobs that bjobs -a would currently report
+	 */
+	public synchronized int size() {
+		return jobs.size();
+	}
+
+	public synchronized void clear() {
+		jobs.clear();
+		pending.clear();
+		running.clear();
+		finished.clear();
+	}
+
+	/*
+	 * Bring the jobs up to date, taking the events (a job finishing or starting) in time order
+	 */
+	private void advance(long now) {
+		// The time of the last event, before which no job can start
+		long time = Long.MIN_VALUE;
+		while (true) {
+			SimJob next = running.peek();
+			long finishAt = next == null ? Long.MAX_VALUE : next.finishAt;
+			SimJob waiting = pending.peek();
+			long startAt = Long.MAX_VALUE;
+			if (waiting != null) {
+				// With no free slot, the next job can only start when a running one finishes
+				startAt = running.size() < maxRunning ? Math.max(waiting.eligible, time) : finishAt;
+			}
+			if (finishAt <= startAt && finishAt <= now) {
+				time = finishAt;
+				finish(running.poll(), "DONE", 0, finishAt);
+			} else if (startAt <= now && running.size() < maxRunning) {
+				SimJob job = pending.poll();
+				job.stat = "RUN";
+				job.started = startAt;
+				job.finishAt = startAt + runMillis;
+				running.add(job);
+				writeSpoolFiles(job);
+			} else {
+				break;
+			}
+		}
+		while (!finished.isEmpty() && finished.peek().finished + keepFinishedMillis < now) {
+			jobs.remove(finished.poll().id);
+		}
+	}
+
+	private void finish(SimJob job, String stat, int exitCode, long time) {
+		if (job.stat.equals("RUN")) {
+			deleteSpoolFiles(job);
+		}
+		job.stat = stat;
+		job.exitCode = exitCode;
+		job.finished = time;
+		finished.add(job);
+		writeOutput(job.outFile, job, "Simulated output of job " + job.id + " (" + job.script + ")\n");
+		writeOutput(job.errFile, job, "");
+	}
+
+	// The files that LSF writes while a job runs
+	private Path[] spoolFiles(SimJob job) {
+		Path spool = userBaseDir.resolve(job.user).resolve(".lsbatch");
+		String name = job.submitted / 1000 + "." + job.id;
+		return new Path[] { spool.resolve(name + ".out"), spool.resolve(name + ".err") };
+	}
+
+	private void writeSpoolFiles(SimJob job) {
+		if (userBaseDir == null || !Files.isDirectory(userBaseDir.resolve(job.user))) {
+			return;
+		}
+		try {
+			Path[] files = spoolFiles(job);
+			Files.createDirectories(files[0].getParent());
+			Files.write(files[0], ("Simulated output of job " + job.id + " (" + job.script + ")\n").getBytes(StandardCharsets.UTF_8));
+			Files.write(files[1], new byte[0]);
+		} catch (IOException e) {
+			logger.warn("Unable to write simulated spool files for job " + job.id + ": " + e.getMessage());
+		}
+	}
+
+	private void deleteSpoolFiles(SimJob job) {
+		if (userBaseDir == null) {
+			return;
+		}
+		try {
+			for (Path file : spoolFiles(job)) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to delete simulated spool files for job " + job.id + ": " + e.getMessage());
+		}
+	}
+
+	private void writeOutput(String file, SimJob job, String content) {
+		if (file == null) {
+			return;
+		}
+		Path path = resolve(job.user, file.replace("%J", job.id));
+		if (Files.isDirectory(path.getParent())) {
+			try {
+				Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				logger.warn("Unable to write simulated output " + path + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private CommandResult bsub(String user, long now, List<String> args) {
+		SimJob job = new SimJob();
+		job.user = user == null ? "glassfish" : user;
+		job.queue = "normal";
+		job.name = null;
+		Iterator<String> iter = args.iterator();
+		while (iter.hasNext()) {
+			String arg = iter.next();
+			if (arg.startsWith("-") && iter.hasNext()) {
+				String value = iter.next();
+				if (arg.equals("-J")) {
+					job.name = value;
+				} else if (arg.equals("-o")) {
+					job.outFile = value;
+				} else if (arg.equals("-e")) {
+					job.errFile = value;
+				} else if (arg.equals("-q")) {
+					job.queue = value;
+				}
+			} else {
+				job.script = arg;
+			}
+		}
+		if (job.script == null) {
+			return new CommandResult(LSF_ERROR, "", "No command specified. Job not submitted.\n");
+		}
+		if (job.name == null) {
+			job.name = job.script;
+		}
+		job.id = Long.toString(nextJobId++);
+		job.submitted = now;
+		job.eligible = now + pendMillis;
+		jobs.put(job.id, job);
+		pending.add(job);
+		return new CommandResult(0, "Job <" + job.id + "> is submitted to queue <" + job.queue + ">.\n", "");
+	}
+
+	private CommandResult bjobs(String user, List<String> args) {
+		boolean all = false;
+		boolean header = true;
+		boolean delimited = false;
+		Set<String> users = null;
+		List<String> ids = new ArrayList<String>();
+		Iterator<String> iter = args.iterator();
+		while (iter.hasNext()) {
+			String arg = iter.next();
+			if (arg.equals("-u") && iter.hasNext()) {
+				String spec = iter.next();
+				if (!spec.equals("all")) {
+					users = new HashSet<String>(Arrays.asList(spec.trim().split("\\s+")));
+				}
+			} else if (arg.equals("-o") && iter.hasNext()) {
+				// Only the format requested by JobManagementBean is supported
+				iter.next();
+				delimited = true;
+			} else if (arg.equals("-noheader")) {
+				header = false;
+			} else if (arg.startsWith("-")) {
+				if (arg.indexOf('a') > 0) {
+					all = true;
+				}
+			} else {
+				ids.add(arg);
+			}
+		}
+		if (ids.isEmpty() && users == null && user != null) {
+			users = new HashSet<String>(Arrays.asList(user));
+		}
+
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		List<SimJob> selected = new ArrayList<SimJob>();
+		if (ids.isEmpty()) {
+			for (SimJob job : jobs.values()) {
+				if ((users == null || users.contains(job.user)) && (all || !isFinished(job))) {
+					selected.add(job);
+				}
+			}
+		} else {
+			for (String id : ids) {
+				SimJob job = jobs.get(id);
+				if (job == null) {
+					err.append("Job <").append(id).append("> is not found\n");
+				} else {
+					selected.add(job);
+				}
+			}
+		}
+		if (selected.isEmpty() && err.length() == 0) {
+			return new CommandResult(LSF_ERROR, "", "No job found\n");
+		}
+
+		SimpleDateFormat wideTime = new SimpleDateFormat("MMM d HH:mm", Locale.ENGLISH);
+		SimpleDateFormat fullTime = new SimpleDateFormat("MMM d HH:mm:ss yyyy", Locale.ENGLISH);
+		if (header && !delimited && !selected.isEmpty()) {
+			out.append("JOBID   USER    STAT  QUEUE      FROM_HOST   EXEC_HOST   JOB_NAME   SUBMIT_TIME\n");
+		}
+		for (SimJob job : selected) {
+			String execHost = job.stat.equals("PEND") ? null : HOST;
+			if (delimited) {
+				char d = Bjobs.DELIMITER;
+				out.append(job.id).append(d).append(job.user).append(d).append(job.stat).append(d).append(job.queue)
+						.append(d).append(HOST).append(d).append(execHost == null ? "-" : execHost).append(d)
+						.append(fullTime.format(new Date(job.submitted))).append(d)
+						.append(execHost == null ? "-" : fullTime.format(new Date(job.started))).append(d)
+						.append(isFinished(job) ? fullTime.format(new Date(job.finished)) : "-").append(d)
+						.append(job.exitCode == null ? "-" : job.exitCode.toString()).append(d).append(job.name)
+						.append('\n');
+			} else {
+				out.append(String.format("%-7s %-7s %-5s %-10s %-11s %-11s %-10s %s\n", job.id, job.user, job.stat, job.queue,
+						HOST, execHost == null ? "" : execHost, job.name, wideTime.format(new Date(job.submitted))));
+			}
+		}
+		return new CommandResult(err.length() == 0 ? 0 : LSF_ERROR, out.toString(), err.toString());
+	}
+
+	private CommandResult bkill(String user, long now, List<String> args) {
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		for (String id : args) {
+			SimJob job = jobs.get(id);
+			if (job == null) {
+				err.append("Job <").append(id).append(">: No matching job found\n");
+			} else if (user != null && !user.equals(job.user)) {
+				err.append("Job <").append(id).append(">: User permission denied\n");
+			} else if (isFinished(job)) {
+				err.append("Job <").append(id).append(">: Job has already finished\n");
+			} else {
+				if (job.stat.equals("PEND")) {
+					pending.remove(job);
+				} else {
+					running.remove(job);
+				}
+				finish(job, "EXIT", 130, now);
+				out.append("Job <").append(id).append("> is being terminated\n");
+			}
+		}
+		return new CommandResult(err.length() == 0 ? 0 : LSF_ERROR, out.toString(), err.toString());
+	}
+
+	private CommandResult mkdir(String user, List<String> args) {
+		for (String arg : args) {
+			Path path = resolve(user, arg);
+			try {
+				Files.createDirectory(path);
+			} catch (IOException e) {
+				return new CommandResult(1, "", "mkdir: cannot create directory '" + arg + "': " + e.getMessage() + "\n");
+			}
+		}
+		return new CommandResult(0, "", "");
+	}
+
+	private CommandResult rm(String user, List<String> args) {
+		for (String arg : args) {
+			if (arg.startsWith("-")) {
+				continue;
+			}
+			Path path = resolve(user, arg);
+			if (!Files.exists(path)) {
+				continue;
+			}
+			try {
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						Files.delete(file);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+						Files.delete(dir);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				return new CommandResult(1, "", "rm: cannot remove '" + arg + "': " + e.getMessage() + "\n");
+			}
+		}
+		return new CommandResult(0, "", "");
+	}
+
+	private CommandResult cat(String user, List<String> args) {
+		StringBuilder out = new StringBuilder();
+		for (String arg : args) {
+			List<Path> files = expand(user, arg);
+			if (files.isEmpty()) {
+				return new CommandResult(1, out.toString(), "cat: " + arg + ": No such file or directory\n");
+			}
+			for (Path file : files) {
+				try {
+					out.append(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					return new CommandResult(1, out.toString(), "cat: " + arg + ": " + e.getMessage() + "\n");
+				}
+			}
+		}
+		return new CommandResult(0, out.toString(), "");
+	}
+
+	// Only "stat -L -c %s file..." is supported
+	private CommandResult stat(String user, List<String> args) {
+		StringBuilder out = new StringBuilder();
+		Iterator<String> iter = args.iterator();
+		while (iter.hasNext()) {
+			String arg = iter.next();
+			if (arg.equals("-c")) {
+				iter.next();
+			} else if (!arg.startsWith("-")) {
+				List<Path> files = expand(user, arg);
+				if (files.isEmpty()) {
+					return new CommandResult(1, out.toString(), "stat: cannot stat '" + arg + "': No such file or directory\n");
+				}
+				for (Path file : files) {
+					try {
+						out.append(Files.size(file)).append('\n');
+					} catch (IOException e) {
+						return new CommandResult(1, out.toString(), "stat: cannot stat '" + arg + "': " + e.getMessage() + "\n");
+					}
+				}
+			}
+		}
+		return new CommandResult(0, out.toString(), "");
+	}
+
+	// Only "tail -c +N file" (from byte N, counting from 1) is supported
+	private CommandResult tail(String user, List<String> args) {
+		long from = 1;
+		String arg = null;
+		Iterator<String> iter = args.iterator();
+		while (iter.hasNext()) {
+			String next = iter.next();
+			if (next.equals("-c") && iter.hasNext()) {
+				from = Long.parseLong(iter.next().replace("+", ""));
+			} else {
+				arg = next;
+			}
+		}
+		List<Path> files = arg == null ? new ArrayList<Path>() : expand(user, arg);
+		if (files.isEmpty()) {
+			return new CommandResult(1, "", "tail: cannot open '" + arg + "' for reading: No such file or directory\n");
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(files.get(0));
+			int start = (int) Math.min(bytes.length, Math.max(0, from - 1));
+			return new CommandResult(0, new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8), "");
+		} catch (IOException e) {
+			return new CommandResult(1, "", "tail: cannot open '" + arg + "' for reading: " + e.getMessage() + "\n");
+		}
+	}
+
+	// The regular files that a shell would pass for a word, which may have a wildcard in its last part
+	private List<Path> expand(String user, String arg) {
+		Path path = resolve(user, arg);
+		List<Path> files = new ArrayList<Path>();
+		String fileName = path.getFileName().toString();
+		if (fileName.contains("*") && Files.isDirectory(path.getParent())) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path.getParent(), fileName)) {
+				for (Path file : stream) {
+					files.add(file);
+				}
+			} catch (IOException e) {
+				// Treated as no match
+			}
+		} else if (Files.isRegularFile(path)) {
+			files.add(path);
+		}
+		return files;
+	}
+
+	private static boolean isFinished(SimJob job) {
+		return job.stat.equals("DONE") || job.stat.equals("EXIT");
+	}
+
+	// Relative paths are relative to the user's home directory, as they would be for commands run via ssh
+	private Path resolve(String user, String file) {
+		Path path = userBaseDir.getFileSystem().getPath(file);
+		if (path.isAbsolute() || user == null) {
+			return path;
+		}
+		return userBaseDir.resolve(user).resolve(path);
+	}
+
+	/**
+	 * Remove shell quoting ('...', "..." and backslash escapes) from a word
+	 */
+	static String unquote(String word) {
+		StringBuilder sb = new StringBuilder();
+		char quote = 0;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					sb.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '\\' && i + 1 < word.length()) {
+				sb.append(word.charAt(++i));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -1,85 +1,233 @@
 package org.icatproject.ijp.lsfbatch;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.icatproject.ijp.batch.exceptions.InternalException;
 
 /**
  * Singleton class to manage sets of free/assigned Lsf user IDs
- * 
+ *
+ * Each user has a number of slots (by default one), i.e. the number of jobs that it may run at once.
+ * The count of used slots is shared by every family the user belongs to, and slots are claimed and released atomically.
+ * Each family keeps one queue per load (number of used slots) of its users that may have that load, so that claiming
+ * the least-loaded user does not need to scan the family. An entry in a family's queue is only a hint: the user's
+ * load may since have been changed through another family, in which case the entry is moved to the right queue
+ * (or dropped, if the user is full) when it reaches the head of the queue.
+ *
  * @author br54
  *
  */
 public class LsfUserPool {
-	
-	private static LsfUserPool instance = null;
+
+	private final static LsfUserPool instance = new LsfUserPool();
+
 	protected LsfUserPool(){
 		// Defeat instantiation (to some extent...)
-		usersAssigned = new HashMap<String,Boolean>();
-		familyPools = new HashMap<String,List<String>>();
 	}
+
 	public static LsfUserPool getInstance(){
-		if( instance == null ){
-			instance = new LsfUserPool();
-		}
 		return instance;
 	}
-	
-	// Whether or not a user (name, String) is assigned
-	private Map<String,Boolean> usersAssigned;
-	
-	// Map from family-name to list of user-names
-	private Map<String,List<String>> familyPools;
-	
-	public List<String> addFamily(String family){
-		List<String> userList = new ArrayList<>();
-		familyPools.put(family, userList);
-		return userList;
+
+	private static class LsfUser {
+		final String name;
+		// The number of slots in use
+		final AtomicInteger used;
+		// The families that the user belongs to
+		final List<Family> families = new CopyOnWriteArrayList<Family>();
+
+		LsfUser(String name, int used){
+			this.name = name;
+			this.used = new AtomicInteger(used);
+		}
+	}
+
+	private static class Family {
+		final List<String> members = new CopyOnWriteArrayList<String>();
+		// free[n] holds the users that may have n slots in use
+		final ConcurrentLinkedQueue<LsfUser>[] free;
+		// Whether or not each member is in each of the free queues, so that it is never queued twice
+		final Map<String,AtomicBoolean[]> queued = new ConcurrentHashMap<String,AtomicBoolean[]>();
+
+		@SuppressWarnings("unchecked")
+		Family(int slots){
+			free = new ConcurrentLinkedQueue[slots];
+			for( int i = 0; i < slots; i++ ){
+				free[i] = new ConcurrentLinkedQueue<LsfUser>();
+			}
+		}
+
+		void addMember(LsfUser user){
+			AtomicBoolean[] flags = new AtomicBoolean[free.length];
+			for( int i = 0; i < flags.length; i++ ){
+				flags[i] = new AtomicBoolean(false);
+			}
+			queued.put(user.name, flags);
+			members.add(user.name);
+		}
+
+		void offer(LsfUser user, int load){
+			if( load < free.length && queued.get(user.name)[load].compareAndSet(false, true) ){
+				free[load].offer(user);
+			}
+		}
+	}
+
+	private volatile int slotsPerUser = 1;
+
+	// Map from user-name to user
+	private final Map<String,LsfUser> users = new ConcurrentHashMap<String,LsfUser>();
+
+	// Map from family-name to family
+	private final Map<String,Family> familyPools = new ConcurrentHashMap<String,Family>();
+
+	/**
+	 * Set the number of jobs that each user may run at once. This must be done before any users are added.
+	 *
+	 * @param slotsPerUser
+	 */
+	public synchronized void setSlotsPerUser(int slotsPerUser){
+		if( slotsPerUser != this.slotsPerUser && ! familyPools.isEmpty() ){
+			throw new IllegalStateException("Cannot change the slots per user once users have been added");
+		}
+		this.slotsPerUser = slotsPerUser;
 	}
-	
+
+	public int getSlotsPerUser(){
+		return slotsPerUser;
+	}
+
+	public synchronized List<String> addFamily(String family){
+		Family familyPool = familyPools.get(family);
+		if( familyPool == null ){
+			familyPool = new Family(slotsPerUser);
+			familyPools.put(family, familyPool);
+		}
+		return familyPool.members;
+	}
+
 	public void addLsfUser(String family, String user, boolean isAssigned){
-	    if( usersAssigned.keySet().contains(user) ){
-	        if( isAssigned ){
-	          usersAssigned.put(user,true);
-	        }
-	      } else {
-	        usersAssigned.put(user,isAssigned);
-	      }
-	      List<String> familyList = familyPools.get(family);
-	      if( familyList == null ){
-	        familyList = addFamily(family);
-	      }
-	      familyList.add(user);
+		addLsfUser(family, user, isAssigned ? 1 : 0);
+	}
+
+	/**
+	 * Add a user to a family. If the user already belongs to other families, the higher of its known and given
+	 * loads is kept.
+	 *
+	 * @param family
+	 * @param user
+	 * @param usedSlots the number of jobs that the user is already running
+	 */
+	public synchronized void addLsfUser(String family, String user, int usedSlots){
+		usedSlots = Math.min(usedSlots, slotsPerUser);
+		LsfUser lsfUser = users.get(user);
+		if( lsfUser == null ){
+			lsfUser = new LsfUser(user, usedSlots);
+			users.put(user, lsfUser);
+		} else {
+			int used;
+			while( (used = lsfUser.used.get()) < usedSlots && ! lsfUser.used.compareAndSet(used, usedSlots) ){
+				// retry
+			}
+		}
+		addFamily(family);
+		Family familyPool = familyPools.get(family);
+		if( ! familyPool.queued.containsKey(user) ){
+			familyPool.addMember(lsfUser);
+			lsfUser.families.add(familyPool);
+		}
+		familyPool.offer(lsfUser, lsfUser.used.get());
 	}
-	
+
+	/**
+	 * Claim a slot on the least-loaded user in the family that has a free slot.
+	 *
+	 * @param family
+	 * @return the user
+	 * @throws InternalException if the family is not known or none of its users has a free slot
+	 */
 	public String getUserForFamily(String family) throws InternalException{
-		List<String> familyPool = familyPools.get(family);
+		Family familyPool = familyPools.get(family);
 		if( familyPool == null ){
 			throw new InternalException("Unrecognised family " + family);
 		}
-	    String user = null;
-	    for( String familyUser : familyPool ){
-	      if( ! usersAssigned.get(familyUser) ){
-	        user = familyUser;
-	        break;
-	      }
-	    }
-	    if( user == null ){
-	      throw new InternalException( "No free LSF users at present" );
-	    }
-	    usersAssigned.put(user,true);
-		return user;
+		for( int load = 0; load < familyPool.free.length; load++ ){
+			LsfUser user;
+			while( (user = familyPool.free[load].poll()) != null ){
+				familyPool.queued.get(user.name)[load].set(false);
+				if( user.used.compareAndSet(load, load + 1) ){
+					// The user's load has changed, so requeue it (if it still has free slots) in all of its families
+					for( Family userFamily : user.families ){
+						userFamily.offer(user, load + 1);
+					}
+					return user.name;
+				}
+				// The load has changed through another family since it was queued here; move it to the right queue
+				familyPool.offer(user, user.used.get());
+			}
+		}
+		throw new InternalException( "No free LSF users at present" );
+	}
+
+	/**
+	 * Release one slot of a user, as one of its jobs has finished
+	 *
+	 * @param id
+	 */
+	public void releaseSlot( String id ){
+		LsfUser user = users.get(id);
+		if( user == null ){
+			return;
+		}
+		int used;
+		do {
+			used = user.used.get();
+			if( used == 0 ){
+				return;
+			}
+		} while( ! user.used.compareAndSet(used, used - 1) );
+		for( Family familyPool : user.families ){
+			familyPool.offer(user, used - 1);
+		}
 	}
-	
+
+	/**
+	 * Release all slots of a user, as it is known to have no unfinished jobs
+	 *
+	 * @param id
+	 */
 	public void freeUser( String id ){
-		usersAssigned.put(id, false);
+		LsfUser user = users.get(id);
+		if( user == null ){
+			return;
+		}
+		// Only a release that actually frees some slots puts the user back on the free queues
+		if( user.used.getAndSet(0) != 0 ){
+			for( Family familyPool : user.families ){
+				familyPool.offer(user, 0);
+			}
+		}
 	}
-	
-	public void clear(){
-		familyPools = new HashMap<String,List<String>>();
-		usersAssigned = new HashMap<String,Boolean>();
+
+	/**
+	 * @param id
+	 * @return the number of slots of the user that are in use
+	 */
+	public int getUsedSlots( String id ){
+		LsfUser user = users.get(id);
+		return user == null ? 0 : user.used.get();
+	}
+
+	public synchronized void clear(){
+		familyPools.clear();
+		users.clear();
+		slotsPerUser = 1;
 	}
 
 }
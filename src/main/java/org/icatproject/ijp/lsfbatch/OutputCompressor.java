@@ -0,0 +1,315 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses the files of harvested job output folders with gzip, and opens them again, compressed or not.
+ *
+ * A file &lt;name&gt; is replaced by &lt;name&gt;.gz. The compressed file is written under a temporary name and renamed
+ * before the original is removed, so that a reader always finds one or the other. Files that are too small to gain
+ * from compression, or that do not shrink, are left as they are, as are files of 4GiB or more, whose size could not be
+ * read back from the gzip trailer.
+ *
+ * So that part of a compressed file can be read without decompressing it from the start, it is written as a series
+ * of independent gzip members, each holding MEMBER_SIZE bytes of the file (which together are still a valid gzip
+ * file). If there is more than one, the offset of each member is recorded in a sidecar file .&lt;name&gt;.gzi, which
+ * is in place before the compressed file is; a read then starts at the member holding its first byte.
+ */
+public class OutputCompressor {
+
+	private final static Logger logger = LoggerFactory.getLogger(OutputCompressor.class);
+
+	public final static String SUFFIX = ".gz";
+
+	// Smaller files would still take up a block on disk
+	private final static long MIN_SIZE = 4096L;
+
+	// The gzip trailer only holds the uncompressed size modulo 4GiB
+	final static long MAX_SIZE = (1L << 32) - 1;
+
+	private final static int BUFFER_SIZE = 65536;
+
+	// The most that is decompressed and skipped to read part of a compressed file
+	final static int MEMBER_SIZE = 256 * 1024;
+
+	public final static String MEMBERS_SUFFIX = ".gzi";
+
+	/**
+	 * The offsets of the gzip members of a compressed file, which each hold MEMBER_SIZE bytes of the file
+	 */
+	private static class Members {
+		private final long size;
+		private final long[] offsets;
+
+		Members(long size, long[] offsets) {
+			this.size = size;
+			this.offsets = offsets;
+		}
+	}
+
+	/**
+	 * Counts the bytes written, and is not closed when the gzip member written to it is, so that the next can follow
+	 */
+	private static class MemberOutputStream extends FilterOutputStream {
+		private long count;
+
+		MemberOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	/**
+	 * @return the sidecar file holding the offsets of the gzip members of the given (uncompressed) file name
+	 */
+	public static Path getMembersFor(Path path) {
+		return path.resolveSibling("." + path.getFileName() + MEMBERS_SUFFIX);
+	}
+
+	/**
+	 * Compress the files in a job output folder
+	 *
+	 * @param dir
+	 * @return the number of bytes saved
+	 * @throws IOException
+	 */
+	public long compress(Path dir) throws IOException {
+		long saved = 0L;
+		File[] files = dir.toFile().listFiles();
+		if (files == null) {
+			return 0L;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || name.endsWith(SUFFIX) || name.startsWith(".") || file.length() < MIN_SIZE
+					|| file.length() > MAX_SIZE) {
+				continue;
+			}
+			Path path = file.toPath();
+			Path temp = dir.resolve("." + name + SUFFIX);
+			long size = Files.size(path);
+			List<Long> members = new ArrayList<>();
+			try (InputStream in = Files.newInputStream(path);
+					OutputStream gzFile = new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE);
+					MemberOutputStream out = new MemberOutputStream(gzFile)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long read = 0L;
+				while (read < size) {
+					members.add(out.count);
+					long end = Math.min(size, read + MEMBER_SIZE);
+					try (OutputStream gz = new GZIPOutputStream(out, BUFFER_SIZE)) {
+						int n;
+						while (read < end && (n = in.read(buffer, 0, (int) Math.min(buffer.length, end - read))) > 0) {
+							gz.write(buffer, 0, n);
+							read += n;
+						}
+					}
+					if (read < end) {
+						throw new IOException(path + " shrank while it was being compressed");
+					}
+				}
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			long compressed = Files.size(temp);
+			if (compressed >= size) {
+				Files.delete(temp);
+				continue;
+			}
+			if (members.size() > 1) {
+				writeMembers(getMembersFor(path), size, members);
+			}
+			Files.move(temp, dir.resolve(name + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+			Files.delete(path);
+			logger.debug("Compressed " + path + " from " + size + " to " + compressed + " bytes");
+			saved += size - compressed;
+		}
+		return saved;
+	}
+
+	private static void writeMembers(Path membersPath, long size, List<Long> members) throws IOException {
+		Path temp = membersPath.resolveSibling(membersPath.getFileName() + ".partial");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeLong(size);
+			for (long offset : members) {
+				out.writeLong(offset);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, membersPath, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the members of a compressed file, or null if it has only one
+	 */
+	private static Members readMembers(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(getMembersFor(path), StandardOpenOption.READ)) {
+			ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes) < 0) {
+					break;
+				}
+			}
+			bytes.flip();
+			long size = bytes.getLong();
+			long[] offsets = new long[bytes.remaining() / 8];
+			bytes.asLongBuffer().get(offsets);
+			return new Members(size, offsets);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Open a file that may have been compressed
+	 *
+	 * @param path
+	 *            the name of the file before compression
+	 * @param gzipAccepted
+	 *            whether the caller can take the gzip compressed bytes; if not, they are decompressed as they are read
+	 * @return the stream, and whether it is compressed
+	 * @throws NoSuchFileException
+	 *             if the file exists neither compressed nor uncompressed
+	 * @throws IOException
+	 */
+	public static JobOutput open(Path path, boolean gzipAccepted) throws IOException {
+		return open(path, gzipAccepted, 0L, -1L);
+	}
+
+	/**
+	 * Open part of a file that may have been compressed. Only the whole of a compressed file can be returned
+	 * compressed; for a part of it, the start of the gzip member holding the part is decompressed and skipped.
+	 *
+	 * @param path
+	 *            the name of the file before compression
+	 * @param gzipAccepted
+	 *            whether the caller can take the gzip compressed bytes; if not, they are decompressed as they are read
+	 * @param offset
+	 *            the offset in the (uncompressed) file of the first byte wanted; if negative, that many bytes from the end
+	 * @param length
+	 *            the number of bytes wanted, or -1 for the rest of the file
+	 * @return the stream, and whether it is compressed, with the offset and size of the file
+	 * @throws NoSuchFileException
+	 *             if the file exists neither compressed nor uncompressed
+	 * @throws IOException
+	 */
+	public static JobOutput open(Path path, boolean gzipAccepted, long offset, long length) throws IOException {
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			long size = channel.size();
+			long start = JobOutput.start(offset, size);
+			channel.position(start);
+			return new JobOutput(JobOutput.limit(Channels.newInputStream(channel), length), false, start, size);
+		} catch (NoSuchFileException e) {
+			// It may have been compressed since it was last looked for
+		}
+		Path gzPath = path.resolveSibling(path.getFileName() + SUFFIX);
+		Members members = readMembers(path);
+		long size = members == null ? uncompressedSize(gzPath) : members.size;
+		FileChannel channel = FileChannel.open(gzPath, StandardOpenOption.READ);
+		InputStream in = Channels.newInputStream(channel);
+		if (gzipAccepted && offset == 0L && length < 0) {
+			return new JobOutput(in, true, 0L, size);
+		}
+		try {
+			long start = JobOutput.start(offset, size);
+			long skipped = 0L;
+			if (members != null) {
+				int member = (int) Math.min(start / MEMBER_SIZE, members.offsets.length - 1);
+				channel.position(members.offsets[member]);
+				skipped = (long) member * MEMBER_SIZE;
+			}
+			InputStream gz = new GZIPInputStream(in, BUFFER_SIZE);
+			while (skipped < start) {
+				long n = gz.skip(start - skipped);
+				if (n <= 0) {
+					break;
+				}
+				skipped += n;
+			}
+			return new JobOutput(JobOutput.limit(gz, length), false, skipped, size);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param path
+	 *            the name of the file before compression
+	 * @return the (uncompressed) size of a file that may have been compressed, or -1 if it cannot be told
+	 * @throws NoSuchFileException
+	 *             if the file exists neither compressed nor uncompressed
+	 * @throws IOException
+	 */
+	public static long size(Path path) throws IOException {
+		try {
+			return Files.size(path);
+		} catch (NoSuchFileException e) {
+			// It may have been compressed since it was last looked for
+		}
+		Members members = readMembers(path);
+		return members == null ? uncompressedSize(path.resolveSibling(path.getFileName() + SUFFIX)) : members.size;
+	}
+
+	/*
+	 * The uncompressed size of a file compressed as one gzip member is in the last four bytes; it is only correct modulo 4GiB, which is why
+	 * larger files are not compressed
+	 */
+	private static long uncompressedSize(Path gzPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(gzPath, StandardOpenOption.READ)) {
+			ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			long position = channel.size() - 4;
+			while (trailer.hasRemaining() && position >= 0) {
+				if (channel.read(trailer, position + trailer.position()) < 0) {
+					break;
+				}
+			}
+			if (trailer.hasRemaining()) {
+				return -1L;
+			}
+			return trailer.getInt(0) & 0xffffffffL;
+		}
+	}
+}
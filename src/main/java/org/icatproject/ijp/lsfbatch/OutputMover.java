@@ -0,0 +1,215 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserPrincipal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the contents of a job output folder to a new folder, as cheaply as the file systems allow.
+ *
+ * Renaming the source folder, or hard linking its files, leaves them with their owner, so that would let the pool
+ * account that ran a job, and so any later job run by it, change the output once it has been harvested. So this is
+ * only done when the source folder and its files already have the same owner as the target's parent folder; if
+ * we may then change the source folder it is simply renamed, and otherwise, if both folders are on the same file
+ * system, hard links to the source files are made. Otherwise the files are copied, with FileChannel.transferTo so
+ * that the kernel can avoid copying through user space, and the size of each copy is checked.
+ * Links and copies are made in a staging folder next to the target, which is then renamed, so that the target only
+ * appears once it is complete; the source files are left for the caller to remove.
+ */
+public class OutputMover {
+
+	private final static Logger logger = LoggerFactory.getLogger(OutputMover.class);
+
+	public enum Method {
+		RENAME, LINK, COPY
+	}
+
+	public static class Result {
+		private final Method method;
+		private final long bytes;
+
+		Result(Method method, long bytes) {
+			this.method = method;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return how the files were moved
+		 */
+		public Method getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return the total size of the files moved
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * @return the staging folder used when moving to the target
+	 */
+	public static Path getStagingFolderFor(Path target) {
+		return target.resolveSibling("." + target.getFileName() + ".partial");
+	}
+
+	/**
+	 * Move the files in the source folder to the target folder, which must not exist, by the cheapest method that works
+	 *
+	 * @param source
+	 * @param target
+	 * @return how the files were moved, and their size
+	 * @throws IOException
+	 *             if even copying fails
+	 */
+	public Result move(Path source, Path target) throws IOException {
+		if (!ownedBy(source, Files.getOwner(target.getParent()))) {
+			logger.debug("Copying files in " + source + " as they are not owned by the owner of " + target.getParent());
+			return move(source, target, Method.COPY);
+		}
+		if (Files.isWritable(source)) {
+			try {
+				return move(source, target, Method.RENAME);
+			} catch (IOException e) {
+				logger.debug("Unable to rename " + source + " to " + target + ": " + e.getMessage());
+			}
+		}
+		if (Files.getFileStore(source).equals(Files.getFileStore(target.getParent()))) {
+			try {
+				return move(source, target, Method.LINK);
+			} catch (IOException e) {
+				logger.debug("Unable to link files in " + source + " from " + target + ": " + e.getMessage());
+			} catch (UnsupportedOperationException e) {
+				logger.debug("Hard links not supported for " + target + ": " + e.getMessage());
+			}
+		}
+		return move(source, target, Method.COPY);
+	}
+
+	/**
+	 * Move the files in the source folder to the target folder, which must not exist, by the given method
+	 *
+	 * @param source
+	 * @param target
+	 * @param method
+	 * @return how the files were moved, and their size
+	 * @throws IOException
+	 *             if the method fails; the source is left unchanged
+	 */
+	public Result move(Path source, Path target, Method method) throws IOException {
+		if (method == Method.RENAME) {
+			long bytes = size(source);
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+			return new Result(method, bytes);
+		}
+
+		Path staging = getStagingFolderFor(target);
+		deleteFolder(staging);
+		Files.createDirectory(staging);
+		long bytes = 0L;
+		try {
+			for (File file : listFiles(source)) {
+				Path from = file.toPath();
+				Path to = staging.resolve(file.getName());
+				if (file.isDirectory()) {
+					// As Files.copy would do
+					Files.createDirectory(to);
+				} else if (method == Method.LINK) {
+					Files.createLink(to, from);
+					bytes += Files.size(to);
+				} else {
+					bytes += copy(from, to);
+				}
+			}
+			Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			try {
+				deleteFolder(staging);
+			} catch (IOException e2) {
+				logger.warn("Unable to remove staging folder " + staging + ": " + e2.getMessage());
+			}
+			throw e;
+		}
+		return new Result(method, bytes);
+	}
+
+	private static long copy(Path from, Path to) throws IOException {
+		try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0L;
+			while (position < size) {
+				long n = in.transferTo(position, size - position, out);
+				if (n <= 0) {
+					break;
+				}
+				position += n;
+			}
+			if (position != size || out.size() != size) {
+				throw new IOException("Only " + out.size() + " of " + size + " bytes of " + from + " were copied");
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * @return whether a folder and all the files in it are owned by the given owner
+	 */
+	static boolean ownedBy(Path dir, UserPrincipal owner) throws IOException {
+		if (!Files.getOwner(dir).equals(owner)) {
+			return false;
+		}
+		for (File file : listFiles(dir)) {
+			if (!Files.getOwner(file.toPath(), LinkOption.NOFOLLOW_LINKS).equals(owner)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the total size of the files in a folder
+	 */
+	static long size(Path dir) throws IOException {
+		long bytes = 0L;
+		for (File file : listFiles(dir)) {
+			if (file.isFile()) {
+				bytes += file.length();
+			}
+		}
+		return bytes;
+	}
+
+	private static File[] listFiles(Path dir) throws IOException {
+		File[] files = dir.toFile().listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		return files;
+	}
+
+	/**
+	 * Delete a job output folder (which holds no subfolders with contents) if it exists
+	 */
+	static void deleteFolder(Path dir) throws IOException {
+		File[] files = dir.toFile().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				Files.delete(f.toPath());
+			}
+			Files.delete(dir);
+			logger.debug("Directory " + dir + " has been deleted");
+		}
+	}
+}
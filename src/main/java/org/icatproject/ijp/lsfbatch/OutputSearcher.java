@@ -0,0 +1,331 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Searches a job output file (which may have been compressed by OutputCompressor) for lines matching a literal
+ * string or a regular expression, returning them with their line numbers and some lines of context.
+ *
+ * An uncompressed file is memory-mapped a window at a time and scanned in place, so that the file is never read
+ * into the heap; only matching lines (and those held as context) are copied out. A literal is matched against the
+ * bytes of each line, so lines need not be decoded at all; a regular expression is matched against each decoded line.
+ * The number of matches, the length of the lines searched and returned and the time spent are all bounded, the last
+ * so that a pathological regular expression cannot hold a thread for long.
+ */
+public class OutputSearcher {
+
+	public final static int MAX_LINE_CHARS = 1000;
+
+	// Only the start of longer lines is searched, so that a file with no newlines is not read into the heap
+	private final static int MAX_LINE_BYTES = 1024 * 1024;
+
+	private final static long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	private final static int BUFFER_SIZE = 1024 * 1024;
+
+	public static class Match {
+		private final long line;
+		private final String text;
+		private final List<String> before;
+		private final List<String> after = new ArrayList<>();
+
+		Match(long line, String text, List<String> before) {
+			this.line = line;
+			this.text = text;
+			this.before = before;
+		}
+
+		/**
+		 * @return the number of the matching line, counting from 1
+		 */
+		public long getLine() {
+			return line;
+		}
+
+		/**
+		 * @return the matching line, cut to MAX_LINE_CHARS characters
+		 */
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * @return the lines before the matching line (fewer at the start of the file)
+		 */
+		public List<String> getBefore() {
+			return before;
+		}
+
+		/**
+		 * @return the lines after the matching line (fewer at the end of the file)
+		 */
+		public List<String> getAfter() {
+			return after;
+		}
+	}
+
+	/**
+	 * The search was stopped because it took too long
+	 */
+	public static class TimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final Pattern pattern;
+	private final byte[] literal;
+	private final int context;
+	private final int maxMatches;
+	private final long timeoutMillis;
+
+	// State of the search in progress
+	private List<Match> matches;
+	private Deque<String> previous;
+	private List<Match> awaitingContext;
+	private long lines;
+	private long deadline;
+	private boolean truncated;
+
+	/**
+	 * @param query
+	 *            the literal or regular expression to look for in each line
+	 * @param regex
+	 *            whether the query is a regular expression
+	 * @param ignoreCase
+	 *            whether case is ignored
+	 * @param context
+	 *            the number of lines to return before and after each match
+	 * @param maxMatches
+	 *            the most matches to return from a file
+	 * @param timeoutMillis
+	 *            the most time to spend searching a file
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if the regular expression is not valid
+	 */
+	public OutputSearcher(String query, boolean regex, boolean ignoreCase, int context, int maxMatches,
+			long timeoutMillis) {
+		if (regex || ignoreCase) {
+			pattern = Pattern.compile(regex ? query : Pattern.quote(query), ignoreCase ? Pattern.CASE_INSENSITIVE
+					| Pattern.UNICODE_CASE : 0);
+			literal = null;
+		} else {
+			pattern = null;
+			literal = query.getBytes(StandardCharsets.UTF_8);
+		}
+		this.context = context;
+		this.maxMatches = maxMatches;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @return whether the last search stopped before the end of the file, because it found the most matches
+	 *         allowed or ran out of time
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Search a file
+	 *
+	 * @param path
+	 *            the name of the file before any compression
+	 * @return the matches
+	 * @throws NoSuchFileException
+	 *             if the file exists neither compressed nor uncompressed
+	 * @throws IOException
+	 */
+	public List<Match> search(Path path) throws IOException {
+		matches = new ArrayList<>();
+		previous = new ArrayDeque<>();
+		awaitingContext = new ArrayList<>();
+		lines = 0L;
+		deadline = System.currentTimeMillis() + timeoutMillis;
+		truncated = false;
+		ByteArrayOutputStream carry = new ByteArrayOutputStream();
+		try {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				for (long position = 0L; position < size && !truncated; position += WINDOW_SIZE) {
+					ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(WINDOW_SIZE, size - position));
+					scan(window, carry);
+				}
+			} catch (NoSuchFileException e) {
+				// It may have been compressed
+				try (InputStream in = new GZIPInputStream(Files.newInputStream(path.resolveSibling(path.getFileName()
+						+ OutputCompressor.SUFFIX)), BUFFER_SIZE)) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int n;
+					while (!truncated && (n = in.read(buffer)) > 0) {
+						scan(ByteBuffer.wrap(buffer, 0, n), carry);
+					}
+				}
+			}
+			if (!truncated && carry.size() > 0) {
+				// A last line with no newline
+				byte[] bytes = carry.toByteArray();
+				line(ByteBuffer.wrap(bytes), 0, bytes.length);
+			}
+		} catch (TimeoutException e) {
+			truncated = true;
+		}
+		return matches;
+	}
+
+	/**
+	 * Pass each complete line in the buffer to line(), joining the part of a line carried over from the last buffer
+	 * to the first, and carrying over the part of a line at the end
+	 */
+	private void scan(ByteBuffer buffer, ByteArrayOutputStream carry) {
+		int limit = buffer.limit();
+		int start = buffer.position();
+		for (int i = start; i < limit && !truncated; i++) {
+			if (buffer.get(i) != '\n') {
+				continue;
+			}
+			if (carry.size() > 0) {
+				append(carry, buffer, start, i);
+				byte[] bytes = carry.toByteArray();
+				carry.reset();
+				line(ByteBuffer.wrap(bytes), 0, bytes.length);
+			} else {
+				line(buffer, start, i);
+			}
+			start = i + 1;
+		}
+		if (!truncated) {
+			append(carry, buffer, start, limit);
+		}
+	}
+
+	private static void append(ByteArrayOutputStream carry, ByteBuffer buffer, int start, int end) {
+		end = Math.min(end, start + MAX_LINE_BYTES - carry.size());
+		for (int i = start; i < end; i++) {
+			carry.write(buffer.get(i));
+		}
+	}
+
+	private void line(ByteBuffer buffer, int start, int end) {
+		lines++;
+		if ((lines & 0x3ff) == 0 && System.currentTimeMillis() > deadline) {
+			throw new TimeoutException();
+		}
+		String text = null;
+		if (!awaitingContext.isEmpty()) {
+			text = decode(buffer, start, end);
+			for (Match match : awaitingContext) {
+				match.after.add(text);
+			}
+			if (awaitingContext.get(0).after.size() == context) {
+				awaitingContext.remove(0);
+			}
+			if (awaitingContext.isEmpty() && matches.size() == maxMatches) {
+				truncated = true;
+				return;
+			}
+		}
+		if (matches.size() < maxMatches && matches(buffer, start, end)) {
+			if (text == null) {
+				text = decode(buffer, start, end);
+			}
+			Match match = new Match(lines, text, new ArrayList<>(previous));
+			matches.add(match);
+			if (context > 0) {
+				awaitingContext.add(match);
+			} else if (matches.size() == maxMatches) {
+				truncated = true;
+			}
+		}
+		if (context > 0) {
+			previous.add(text != null ? text : decode(buffer, start, end));
+			if (previous.size() > context) {
+				previous.remove();
+			}
+		}
+	}
+
+	private boolean matches(ByteBuffer buffer, int start, int end) {
+		end = Math.min(end, start + MAX_LINE_BYTES);
+		if (pattern != null) {
+			return pattern.matcher(new DeadlineCharSequence(decode(buffer, start, end, Integer.MAX_VALUE))).find();
+		}
+		int last = end - literal.length;
+		outer: for (int i = start; i <= last; i++) {
+			for (int j = 0; j < literal.length; j++) {
+				if (buffer.get(i + j) != literal[j]) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static String decode(ByteBuffer buffer, int start, int end) {
+		return decode(buffer, start, end, MAX_LINE_CHARS);
+	}
+
+	private static String decode(ByteBuffer buffer, int start, int end, int maxChars) {
+		if (end > start && buffer.get(end - 1) == '\r') {
+			end--;
+		}
+		// A UTF-8 character takes at most 4 bytes
+		int length = (int) Math.min(end - start, 4L * maxChars);
+		byte[] bytes = new byte[length];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(start);
+		slice.get(bytes);
+		String text = new String(bytes, StandardCharsets.UTF_8);
+		return text.length() > maxChars ? text.substring(0, maxChars) : text;
+	}
+
+	/**
+	 * Checks the deadline as the regular expression engine reads it, as backtracking on one line may take a long time
+	 */
+	private class DeadlineCharSequence implements CharSequence {
+		private final CharSequence text;
+		private int reads;
+
+		DeadlineCharSequence(CharSequence text) {
+			this.text = text;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if ((++reads & 0xffff) == 0 && System.currentTimeMillis() > deadline) {
+				throw new TimeoutException();
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new DeadlineCharSequence(text.subSequence(start, end));
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
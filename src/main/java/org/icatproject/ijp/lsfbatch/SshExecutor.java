@@ -0,0 +1,258 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.icatproject.utils.ShellCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton that runs commands for real: locally with ShellCommand, or as pool users via ssh to localhost.
+ *
+ * If a control directory is configured, ssh is asked to keep a master connection (ControlMaster) per pool user, with
+ * its socket in that directory, and to send each command over it as a new channel; the master exits after being idle
+ * for the idle timeout. This saves the key exchange and authentication for all but the first command. The number of
+ * commands running at once for each pool user is bounded, as sshd limits the channels per connection (MaxSessions).
+ * If a command exits with 255, which is how ssh reports its own failures (but which LSF commands also use), the
+ * master is checked with "ssh -O check"; only if it has gone is it stopped and the command tried once more, which
+ * starts a new master. Commands that may have taken effect before the connection was lost (bsub) are not retried.
+ *
+ * Commands whose output may be large are started with openAs(), whose output is streamed rather than collected:
+ * it is held only in the pipe from the process, and closing the stream kills the process. As a stream holds its
+ * channel for as long as the client takes to read it, streams have their own, smaller, share of each pool user's
+ * channels, so that slow downloads cannot hold up the commands that manage the pool user's jobs.
+ */
+public class SshExecutor implements CommandExecutor {
+
+	private final static Logger logger = LoggerFactory.getLogger(SshExecutor.class);
+
+	public final static int DEFAULT_IDLE_TIMEOUT_SECONDS = 600;
+	public final static int DEFAULT_MAX_CHANNELS = 8;
+	public final static int DEFAULT_MAX_STREAMS = 2;
+
+	// ssh reports its own failures (as opposed to those of the remote command) with this exit value
+	private final static int SSH_ERROR = 255;
+
+	// Commands that must not be run twice, as they may have taken effect before ssh failed
+	private final static List<String> NOT_RETRIED = Arrays.asList("bsub");
+
+	// How long to wait for a channel to a pool user before giving up
+	private final static long CHANNEL_WAIT_SECONDS = 120;
+
+	// How long to wait for a channel for a stream; a client is better told at once that the pool user is busy
+	private final static long STREAM_WAIT_SECONDS = 10;
+
+	private final static SshExecutor instance = new SshExecutor();
+
+	public static SshExecutor getInstance() {
+		return instance;
+	}
+
+	private volatile Path sshIdDir;
+	private volatile Path controlDir;
+	private volatile int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+	private volatile int maxChannels = DEFAULT_MAX_CHANNELS;
+	private volatile int maxStreams = DEFAULT_MAX_STREAMS;
+
+	// The channels to each pool user for commands, and those for streams
+	private final ConcurrentMap<String, Semaphore> channels = new ConcurrentHashMap<String, Semaphore>();
+	private final ConcurrentMap<String, Semaphore> streams = new ConcurrentHashMap<String, Semaphore>();
+
+	protected SshExecutor() {
+		// Defeat instantiation (to some extent...)
+	}
+
+	/**
+	 * @param sshIdDir
+	 *            the directory holding the private key id_rsa_&lt;user&gt; for each pool user
+	 * @param controlDir
+	 *            the directory for the master connections' sockets, or null to run a separate ssh for each command
+	 * @param idleTimeoutSeconds
+	 *            how long a master connection is kept when unused
+	 * @param maxChannels
+	 *            the maximum number of commands running at once for each pool user, including those streamed
+	 * @param maxStreams
+	 *            how many of those may be streamed; it must be less than maxChannels
+	 */
+	public void configure(Path sshIdDir, Path controlDir, int idleTimeoutSeconds, int maxChannels, int maxStreams) {
+		if (maxStreams >= maxChannels) {
+			throw new IllegalArgumentException("maxStreams (" + maxStreams + ") must be less than maxChannels ("
+					+ maxChannels + ")");
+		}
+		this.sshIdDir = sshIdDir;
+		this.controlDir = controlDir;
+		this.idleTimeoutSeconds = idleTimeoutSeconds;
+		if (maxChannels != this.maxChannels || maxStreams != this.maxStreams) {
+			this.maxChannels = maxChannels;
+			this.maxStreams = maxStreams;
+			channels.clear();
+			streams.clear();
+		}
+	}
+
+	@Override
+	public CommandResult run(String... command) {
+		return new CommandResult(new ShellCommand(command));
+	}
+
+	/**
+	 * Run a command as a pool user. As ssh passes the command to the remote shell, any arguments that the shell
+	 * should not interpret must already be quoted.
+	 *
+	 * @throws InternalException
+	 *             if no channel to the pool user becomes free in time
+	 */
+	@Override
+	public CommandResult runAs(String user, String... command) throws InternalException {
+		Semaphore semaphore = getPermits(channels, maxChannels - maxStreams, user);
+		try {
+			if (!semaphore.tryAcquire(CHANNEL_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				throw new InternalException("Timed out waiting for an ssh channel to " + user);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalException("Interrupted while waiting for an ssh channel to " + user);
+		}
+		try {
+			ShellCommand sc = new ShellCommand(sshCommand(user, command));
+			if (controlDir != null && sc.getExitValue() == SSH_ERROR && !masterCommand(user, "check")) {
+				logger.debug("ssh to " + user + " failed (" + sc.getStderr().trim() + "); restarting its master connection");
+				masterCommand(user, "exit");
+				if (command.length > 0 && NOT_RETRIED.contains(command[0].replace("'", ""))) {
+					logger.warn("ssh to " + user + " failed running " + command[0]
+							+ ", which is not run again as it may have taken effect");
+				} else {
+					sc = new ShellCommand(sshCommand(user, command));
+				}
+			}
+			return new CommandResult(sc);
+		} finally {
+			semaphore.release();
+		}
+	}
+
+	/**
+	 * Send a control command ("check" or "exit") to the pool user's master connection
+	 *
+	 * @return whether it succeeded; for "check", whether the master is running
+	 */
+	private boolean masterCommand(String user, String controlCommand) {
+		List<String> args = sshOptions(user);
+		args.addAll(Arrays.asList("-O", controlCommand, user + "@localhost"));
+		return new ShellCommand(args).getExitValue() == 0;
+	}
+
+	/**
+	 * Start a command as a pool user and stream its standard output. One of the pool user's channels for streams is
+	 * held until the stream is closed. There is no retry if ssh itself fails, as that is not known until the output
+	 * has been read.
+	 *
+	 * @throws InternalException
+	 *             if no channel for a stream to the pool user becomes free in time, or the command cannot be started
+	 */
+	@Override
+	public InputStream openAs(String user, String... command) throws InternalException {
+		Semaphore semaphore = getPermits(streams, maxStreams, user);
+		try {
+			if (!semaphore.tryAcquire(STREAM_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				throw new InternalException("Timed out waiting for an ssh channel to " + user
+						+ " to stream output; too many downloads are in progress");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalException("Interrupted while waiting for an ssh channel to " + user);
+		}
+		Process process;
+		try {
+			process = new ProcessBuilder(sshCommand(user, command)).redirectError(
+					ProcessBuilder.Redirect.appendTo(new File("/dev/null"))).start();
+			process.getOutputStream().close();
+		} catch (IOException e) {
+			semaphore.release();
+			throw new InternalException("Unable to start ssh to " + user + ": " + e.getMessage());
+		}
+		return new ProcessInputStream(process, semaphore);
+	}
+
+	/**
+	 * The standard output of a process, which is killed when the stream is closed
+	 */
+	private static class ProcessInputStream extends FilterInputStream {
+		private final Process process;
+		private final Semaphore semaphore;
+		private boolean closed;
+
+		ProcessInputStream(Process process, Semaphore semaphore) {
+			super(process.getInputStream());
+			this.process = process;
+			this.semaphore = semaphore;
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			try {
+				super.close();
+			} finally {
+				// Harmless if it has already exited
+				process.destroy();
+				semaphore.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the path of the private key used for the pool user
+	 */
+	public String getSshIdFileNameFor(String user) {
+		// Looks like this has to be an absolute path
+		return sshIdDir.resolve("id_rsa_" + user).toString();
+	}
+
+	private List<String> sshOptions(String user) {
+		List<String> args = new ArrayList<String>();
+		args.addAll(Arrays.asList("ssh", "-i", getSshIdFileNameFor(user)));
+		if (controlDir != null) {
+			// %C is a hash of the connection details, which keeps the socket path short
+			args.addAll(Arrays.asList("-o", "ControlMaster=auto", "-o", "ControlPath=" + controlDir.resolve("%C"), "-o",
+					"ControlPersist=" + idleTimeoutSeconds));
+		}
+		return args;
+	}
+
+	private List<String> sshCommand(String user, String... command) {
+		List<String> args = sshOptions(user);
+		args.add(user + "@localhost");
+		args.addAll(Arrays.asList(command));
+		return args;
+	}
+
+	private static Semaphore getPermits(ConcurrentMap<String, Semaphore> permits, int size, String user) {
+		Semaphore semaphore = permits.get(user);
+		if (semaphore == null) {
+			semaphore = new Semaphore(size);
+			Semaphore existing = permits.putIfAbsent(user, semaphore);
+			if (existing != null) {
+				semaphore = existing;
+			}
+		}
+		return semaphore;
+	}
+}
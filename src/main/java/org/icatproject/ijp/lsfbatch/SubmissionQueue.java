@@ -0,0 +1,285 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+
+/**
+ * Singleton admission queue of the jobs that are waiting for a free pool user, with one queue per family.
+ *
+ * Jobs are taken from a family's queue in order of submission, or (if so configured) in order of decreasing
+ * priority and then of submission. Each queue holds at most maxDepth jobs. The queue only holds job ids; the jobs
+ * themselves are persisted by JobManagementBean, which rebuilds the queue from them on startup.
+ */
+public class SubmissionQueue {
+
+	public final static int DEFAULT_MAX_DEPTH = 1000;
+
+	public enum Order {
+		FIFO, PRIORITY
+	}
+
+	private final static SubmissionQueue instance = new SubmissionQueue();
+
+	public static SubmissionQueue getInstance() {
+		return instance;
+	}
+
+	/**
+	 * A queued job
+	 */
+	public static class Entry {
+		private final String family;
+		private final String jobId;
+		private final int priority;
+		private final long enqueued;
+		private final long seq;
+
+		private Entry(String family, String jobId, int priority, long enqueued, long seq) {
+			this.family = family;
+			this.jobId = jobId;
+			this.priority = priority;
+			this.enqueued = enqueued;
+			this.seq = seq;
+		}
+
+		public String getFamily() {
+			return family;
+		}
+
+		public String getJobId() {
+			return jobId;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return the time (in milliseconds) at which the job was first queued
+		 */
+		public long getEnqueued() {
+			return enqueued;
+		}
+	}
+
+	private final static Comparator<Entry> fifo = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if (e1.enqueued != e2.enqueued) {
+				return e1.enqueued < e2.enqueued ? -1 : 1;
+			}
+			return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+		}
+	};
+
+	private final static Comparator<Entry> byPriority = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if (e1.priority != e2.priority) {
+				return e1.priority > e2.priority ? -1 : 1;
+			}
+			return fifo.compare(e1, e2);
+		}
+	};
+
+	// Map from family-name to its queue
+	private final Map<String, TreeSet<Entry>> queues = new HashMap<String, TreeSet<Entry>>();
+
+	// Map from job-id to its entry, to allow queued jobs to be withdrawn
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private int maxDepth = DEFAULT_MAX_DEPTH;
+	private Order order = Order.FIFO;
+	private long seq;
+
+	private long dispatched;
+	private long totalWaitMillis;
+	private long maxWaitMillis;
+
+	protected SubmissionQueue() {
+		// Defeat instantiation (to some extent...)
+	}
+
+	/**
+	 * Set the depth limit and order. Any jobs already queued are reordered.
+	 *
+	 * @param maxDepth
+	 *            the maximum number of jobs queued for each family; 0 means that jobs are never queued
+	 * @param order
+	 */
+	public synchronized void configure(int maxDepth, Order order) {
+		this.maxDepth = maxDepth;
+		this.order = order;
+		for (Map.Entry<String, TreeSet<Entry>> mapEntry : queues.entrySet()) {
+			TreeSet<Entry> queue = newQueue();
+			queue.addAll(mapEntry.getValue());
+			mapEntry.setValue(queue);
+		}
+	}
+
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Queue a newly submitted job
+	 *
+	 * @throws InternalException
+	 *             if the family's queue is full
+	 */
+	public void add(String family, String jobId, int priority) throws InternalException {
+		add(family, jobId, priority, System.currentTimeMillis());
+	}
+
+	synchronized void add(String family, String jobId, int priority, long now) throws InternalException {
+		if (size(family) >= maxDepth) {
+			throw new InternalException("No free LSF users at present, and the submission queue for family " + family
+					+ " is full");
+		}
+		restore(family, jobId, priority, now);
+	}
+
+	/**
+	 * Put a job (back) into the queue regardless of the depth limit, e.g. when it has been read back from the
+	 * database or when it could not be dispatched after all.
+	 *
+	 * @param enqueued
+	 *            the time at which the job was first queued, which determines its place in the queue
+	 */
+	public synchronized void restore(String family, String jobId, int priority, long enqueued) {
+		if (entries.containsKey(jobId)) {
+			return;
+		}
+		TreeSet<Entry> queue = queues.get(family);
+		if (queue == null) {
+			queue = newQueue();
+			queues.put(family, queue);
+		}
+		Entry entry = new Entry(family, jobId, priority, enqueued, seq++);
+		queue.add(entry);
+		entries.put(jobId, entry);
+	}
+
+	/**
+	 * Take the next job from a family's queue
+	 *
+	 * @return the entry, or null if no jobs are queued for the family
+	 */
+	public synchronized Entry poll(String family) {
+		TreeSet<Entry> queue = queues.get(family);
+		if (queue == null) {
+			return null;
+		}
+		Entry entry = queue.pollFirst();
+		if (entry != null) {
+			entries.remove(entry.jobId);
+		}
+		return entry;
+	}
+
+	/**
+	 * Withdraw a job from the queue, e.g. because it has been cancelled
+	 *
+	 * @return true if the job was queued
+	 */
+	public synchronized boolean remove(String jobId) {
+		Entry entry = entries.remove(jobId);
+		if (entry == null) {
+			return false;
+		}
+		queues.get(entry.family).remove(entry);
+		return true;
+	}
+
+	public synchronized boolean contains(String jobId) {
+		return entries.containsKey(jobId);
+	}
+
+	public synchronized int size(String family) {
+		TreeSet<Entry> queue = queues.get(family);
+		return queue == null ? 0 : queue.size();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of jobs queued in each family that has any
+	 */
+	public synchronized Map<String, Integer> getSizes() {
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		for (Map.Entry<String, TreeSet<Entry>> mapEntry : queues.entrySet()) {
+			if (!mapEntry.getValue().isEmpty()) {
+				sizes.put(mapEntry.getKey(), mapEntry.getValue().size());
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return the families that have queued jobs
+	 */
+	public synchronized List<String> getFamilies() {
+		List<String> families = new ArrayList<String>();
+		for (Map.Entry<String, TreeSet<Entry>> mapEntry : queues.entrySet()) {
+			if (!mapEntry.getValue().isEmpty()) {
+				families.add(mapEntry.getKey());
+			}
+		}
+		return families;
+	}
+
+	/**
+	 * Record that a queued job has been submitted to LSF after waiting for the given time
+	 */
+	public synchronized void recordWait(long waitMillis) {
+		dispatched++;
+		totalWaitMillis += waitMillis;
+		if (waitMillis > maxWaitMillis) {
+			maxWaitMillis = waitMillis;
+		}
+	}
+
+	public synchronized long getDispatched() {
+		return dispatched;
+	}
+
+	public synchronized long getMeanWaitMillis() {
+		return dispatched == 0 ? 0 : totalWaitMillis / dispatched;
+	}
+
+	public synchronized long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public synchronized void clear() {
+		queues.clear();
+		entries.clear();
+		dispatched = 0;
+		totalWaitMillis = 0;
+		maxWaitMillis = 0;
+	}
+
+	private TreeSet<Entry> newQueue() {
+		return new TreeSet<Entry>(order == Order.PRIORITY ? byPriority : fifo);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("SubmissionQueue");
+		for (Map.Entry<String, TreeSet<Entry>> mapEntry : queues.entrySet()) {
+			sb.append(" ").append(mapEntry.getKey()).append(":").append(mapEntry.getValue().size());
+		}
+		sb.append(", dispatched ").append(dispatched).append(", mean wait ").append(getMeanWaitMillis())
+				.append("ms, max wait ").append(maxWaitMillis).append("ms");
+		return sb.toString();
+	}
+}
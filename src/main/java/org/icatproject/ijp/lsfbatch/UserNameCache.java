@@ -0,0 +1,218 @@
+package org.icatproject.ijp.lsfbatch;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.icatproject.ijp.batch.exceptions.SessionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton cache of the usernames that ICAT returns for (icatUrl, sessionId) pairs, so that every REST call
+ * does not need its own round trip to ICAT.
+ *
+ * Entries expire after the maximum age. Concurrent requests for the same session share a single lookup; failed
+ * lookups are not cached. The lookup itself is pluggable so that the cache can be tested without an ICAT.
+ */
+public class UserNameCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(UserNameCache.class);
+
+	public final static long DEFAULT_MAX_AGE_MILLIS = 60000L;
+	public final static int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Finds the username for a session, typically by asking ICAT
+	 */
+	public interface Lookup {
+		String getUserName(String icatUrl, String sessionId) throws SessionException, ParameterException;
+	}
+
+	private final static UserNameCache instance = new UserNameCache(new IcatUserNameLookup());
+
+	public static UserNameCache getInstance() {
+		return instance;
+	}
+
+	private static class Key {
+		final String icatUrl;
+		final String sessionId;
+
+		Key(String icatUrl, String sessionId) {
+			this.icatUrl = icatUrl;
+			this.sessionId = sessionId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return icatUrl.equals(other.icatUrl) && sessionId.equals(other.sessionId);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * icatUrl.hashCode() + sessionId.hashCode();
+		}
+	}
+
+	private static class Entry {
+		final FutureTask<String> lookup;
+		final long created;
+
+		Entry(FutureTask<String> lookup, long created) {
+			this.lookup = lookup;
+			this.created = created;
+		}
+	}
+
+	private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	private final Lookup lookup;
+
+	private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	UserNameCache(Lookup lookup) {
+		this.lookup = lookup;
+	}
+
+	/**
+	 * Set the expiry time and size cap
+	 *
+	 * @param maxAgeMillis
+	 *            entries older than this are looked up again
+	 * @param maxSize
+	 *            the number of entries above which entries are evicted
+	 */
+	public void configure(long maxAgeMillis, int maxSize) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the username for a session, looking it up if it is not cached
+	 *
+	 * @param icatUrl
+	 * @param sessionId
+	 * @return the username
+	 * @throws SessionException
+	 * @throws ParameterException
+	 */
+	public String getUserName(String icatUrl, String sessionId) throws SessionException, ParameterException {
+		return getUserName(icatUrl, sessionId, System.currentTimeMillis());
+	}
+
+	String getUserName(final String icatUrl, final String sessionId, long now) throws SessionException,
+			ParameterException {
+		Key key = new Key(icatUrl, sessionId);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.lookup.isDone() && now - entry.created > maxAgeMillis) {
+			entries.remove(key, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return lookup.getUserName(icatUrl, sessionId);
+				}
+			});
+			Entry newEntry = new Entry(task, now);
+			entry = entries.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				// This thread does the lookup; any others asking meanwhile wait for it
+				misses.incrementAndGet();
+				entry = newEntry;
+				task.run();
+				if (entries.size() > maxSize) {
+					evict(now);
+				}
+			} else {
+				hits.incrementAndGet();
+			}
+		} else {
+			hits.incrementAndGet();
+		}
+
+		try {
+			return entry.lookup.get();
+		} catch (ExecutionException e) {
+			// Do not cache failures; the next request should try again
+			entries.remove(key, entry);
+			Throwable cause = e.getCause();
+			if (cause instanceof SessionException) {
+				throw (SessionException) cause;
+			} else if (cause instanceof ParameterException) {
+				throw (ParameterException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the username of session " + sessionId);
+		}
+	}
+
+	/**
+	 * Forget the username for a session, e.g. because ICAT has reported that the session is no longer valid
+	 */
+	public void remove(String icatUrl, String sessionId) {
+		entries.remove(new Key(icatUrl, sessionId));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/*
+	 * Drop expired entries and, if that is not enough, arbitrary ones until back to 90% of the maximum size
+	 */
+	private synchronized void evict(long now) {
+		int target = maxSize - maxSize / 10;
+		Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next().getValue();
+			if (entry.lookup.isDone() && now - entry.created > maxAgeMillis) {
+				iter.remove();
+			}
+		}
+		if (entries.size() > target) {
+			logger.warn("Username cache holds more than " + target + " live sessions; evicting some of them");
+			iter = entries.entrySet().iterator();
+			while (entries.size() > target && iter.hasNext()) {
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UserNameCache size " + entries.size() + ", hits " + hits.get() + ", misses " + misses.get();
+	}
+}
@@ -0,0 +1,107 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.ejb.TimerService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the scheduling of the BjobsPoller class, with a fake clock and a fake TimerService
+ */
+public class BjobsPollerTest {
+
+	// The delays of the timers set, or null for an attempt that failed
+	List<Long> timers;
+	boolean failing;
+	BjobsPoller poller;
+
+	@Before
+	public void setUp() {
+		timers = new ArrayList<>();
+		failing = false;
+		poller = new BjobsPoller();
+		poller.timerService = (TimerService) Proxy.newProxyInstance(TimerService.class.getClassLoader(),
+				new Class<?>[] { TimerService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (!method.getName().equals("createSingleActionTimer") || !(args[0] instanceof Long)) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+						if (failing) {
+							timers.add(null);
+							throw new EJBException("Timer service unavailable");
+						}
+						timers.add((Long) args[0]);
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void passed() throws Exception {
+		assertEquals("A cycle that finishes in time", 0L, BjobsPoller.passed(1000L, 60000L, 31000L));
+		assertEquals("The next is due just as it finishes", 1L, BjobsPoller.passed(1000L, 60000L, 61000L));
+		assertEquals(1L, BjobsPoller.passed(1000L, 60000L, 100000L));
+		assertEquals("Two more times have passed", 3L, BjobsPoller.passed(1000L, 60000L, 181000L));
+	}
+
+	@Test
+	public void cycles() throws Exception {
+		poller.init(60000L, 0L);
+		assertEquals(60000L, (long) timers.get(0));
+
+		assertTrue(poller.startCycle(60000L));
+		assertFalse("Cycles must not overlap", poller.startCycle(61000L));
+		assertEquals(1L, poller.getSkipped());
+		poller.endCycle(60000L, 70000L);
+		assertEquals(1L, poller.getCycles());
+		assertEquals("The next is due on the grid", 50000L, (long) timers.get(1));
+
+		assertTrue(poller.startCycle(120000L));
+		poller.endCycle(120000L, 250000L);
+		assertEquals("The time due at 180000 has passed and is skipped", 2L, poller.getSkipped());
+		assertEquals("The time due at 240000 has passed, so the next runs at once", 0L, (long) timers.get(2));
+		assertEquals(130000L, poller.getMaxDurationMillis());
+		assertEquals(3, timers.size());
+	}
+
+	@Test
+	public void scheduleRetried() throws Exception {
+		poller.init(60000L, 0L);
+		assertTrue(poller.startCycle(60000L));
+		failing = true;
+		poller.endCycle(60000L, 61000L);
+		assertNull("Setting the timer failed", timers.get(1));
+
+		poller.checkScheduled(100000L);
+		assertEquals("Tried again, and failed again", 3, timers.size());
+		failing = false;
+		poller.checkScheduled(110000L);
+		assertEquals(10000L, (long) timers.get(3));
+
+		poller.checkScheduled(115000L);
+		assertEquals("A timer is set, so there is no need to set another", 4, timers.size());
+	}
+
+	@Test
+	public void noRetryWhileRunning() throws Exception {
+		failing = true;
+		poller.init(60000L, 0L);
+		failing = false;
+		assertTrue("A cycle may still be started by an earlier timer", poller.startCycle(60000L));
+		poller.checkScheduled(61000L);
+		assertEquals("The running cycle sets the next timer", 1, timers.size());
+		poller.endCycle(60000L, 62000L);
+		assertEquals(58000L, (long) timers.get(1));
+	}
+}
@@ -7,7 +7,11 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.icatproject.ijp.lsfbatch.Bjobs;
@@ -70,6 +74,130 @@ public class BjobsTest {
 		
 	}
 	
+	@Test
+	public void jobsByUserTest() throws InternalException {
+		
+		String dummyOutput = "JOBID   USER    STAT  QUEUE      FROM_HOST   EXEC_HOST   JOB_NAME   SUBMIT_TIME\n"
+				+ "157356  scarf334 DONE  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:34\n"
+				+ "157357  scarf335 RUN   scarf      ui3.scarf.rl.ac.uk cn224.scarf.rl.ac.uk test-batchfile Aug  5 14:35\n"
+				+ "157358  scarf334 PEND  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:36\n";
+		
+		Map<String, List<Bjobs.Job>> jobsByUser = new Bjobs(dummyOutput).getJobsByUser();
+		
+		assertEquals("There should be two users", 2, jobsByUser.size());
+		assertEquals("scarf334 should have two jobs", 2, jobsByUser.get("scarf334").size());
+		assertEquals("scarf335 should have one job", 1, jobsByUser.get("scarf335").size());
+		assertEquals("scarf335's job should be 157357", "157357", jobsByUser.get("scarf335").get(0).getJobId());
+		assertNull("scarf336 should have no entry", jobsByUser.get("scarf336"));
+	}
+	
+	@Test
+	public void yearRolloverTest() throws InternalException {
+		
+		// A job submitted in December and seen in January was submitted last year
+		
+		Calendar now = Calendar.getInstance();
+		now.clear();
+		now.set(2015, Calendar.JANUARY, 2, 10, 0);
+		
+		String dummyOutput = "JOBID   USER    STAT  QUEUE      FROM_HOST   EXEC_HOST   JOB_NAME   SUBMIT_TIME\n"
+				+ "157356  scarf334 RUN   scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Dec 31 23:50\n"
+				+ "157357  scarf334 RUN   scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Jan  2 09:55\n";
+		
+		Bjobs bjobs = new Bjobs(new StringReader(dummyOutput), Bjobs.Format.WIDE, now.getTime());
+		Calendar cal = Calendar.getInstance();
+		
+		cal.setTime(bjobs.getJob("157356").getSubmitTime());
+		assertEquals("December job should be from last year", 2014, cal.get(Calendar.YEAR));
+		assertEquals("December job should be from December", Calendar.DECEMBER, cal.get(Calendar.MONTH));
+		
+		cal.setTime(bjobs.getJob("157357").getSubmitTime());
+		assertEquals("January job should be from this year", 2015, cal.get(Calendar.YEAR));
+	}
+	
+	@Test
+	public void pendingJobTest() throws InternalException {
+		
+		// Pending jobs have no EXEC_HOST
+		
+		String dummyOutput = "JOBID   USER    STAT  QUEUE      FROM_HOST   EXEC_HOST   JOB_NAME   SUBMIT_TIME\n"
+				+ "157357  scarf334 PEND  scarf      ui3.scarf.rl.ac.uk                      test-batchfile Jul 15 09:06\r\n";
+		
+		Bjobs.Job job = new Bjobs(dummyOutput).getJob("157357");
+		assertNotNull("Pending job should be found", job);
+		assertEquals("Pending job status should be PEND", "PEND", job.getStatus());
+		assertEquals("Pending job exec-host should be empty", "", job.getExecHost());
+		assertEquals("Pending job name should be test-batchfile", "test-batchfile", job.getJobName());
+	}
+	
+	@Test
+	public void largeOutputTest() throws InternalException {
+		
+		// More than one read buffer's worth, with no trailing newline
+		
+		StringBuilder sb = new StringBuilder("JOBID   USER    STAT  QUEUE      FROM_HOST   EXEC_HOST   JOB_NAME   SUBMIT_TIME\n");
+		for( int i = 0; i < 10000; i++ ){
+			sb.append(200000 + i).append("  scarf334 DONE  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:34\n");
+		}
+		sb.append("157356  scarf334 EXIT  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:34");
+		
+		Bjobs bjobs = new Bjobs(new StringReader(sb.toString()));
+		assertEquals("All jobs should be parsed", 10001, bjobs.getJobIds().size());
+		assertEquals("Last job should be EXIT", "EXIT", bjobs.getJob("157356").getStatus());
+		assertSame("Status codes should be shared", bjobs.getJob("200000").getStatus(), bjobs.getJob("209999").getStatus());
+	}
+	
+	@Test
+	public void badLineTest() throws InternalException {
+		Bjobs bjobs = new Bjobs("157356  scarf334 DONE  scarf\n"
+				+ "157357  scarf334 DONE  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Foo  5 14:34\n"
+				+ "157358  scarf334 DONE  scarf      ui3.scarf.rl.ac.uk cn223.scarf.rl.ac.uk test-batchfile Aug  5 14:34\n");
+		assertEquals("Short lines and bad months should be skipped", Collections.singleton("157358"), bjobs.getJobIds());
+	}
+	
+	@Test
+	public void delimitedTest() throws InternalException {
+		
+		// Output from bjobs -noheader -o with Bjobs.DELIMITED_OUTPUT_FORMAT
+		
+		Calendar now = Calendar.getInstance();
+		now.clear();
+		now.set(2015, Calendar.JANUARY, 2, 10, 0);
+		
+		String dummyOutput = "157356^scarf334^DONE^scarf^ui3.scarf.rl.ac.uk^cn223.scarf.rl.ac.uk^Dec 31 23:50^Jan  1 00:02^Jan  1 01:15 L^-^test batch file\n"
+				+ "157357^scarf334^EXIT^scarf^ui3.scarf.rl.ac.uk^cn224.scarf.rl.ac.uk^Jan  2 09:50:12 2015^Jan  2 09:51:00 2015^Jan  2 09:52:30 2015^3^test-batchfile\n"
+				+ "157358^scarf335^PEND^scarf^ui3.scarf.rl.ac.uk^-^Jan  2 09:55^-^Jan  2 11:55 E^-^test^batch^file\n"
+				+ "157359^scarf335^PEND^scarf\n";
+		
+		Bjobs bjobs = new Bjobs(new StringReader(dummyOutput), Bjobs.Format.DELIMITED, now.getTime());
+		assertEquals("There should be three jobs, the short line being skipped", 3, bjobs.getJobIds().size());
+		Calendar cal = Calendar.getInstance();
+		
+		Bjobs.Job job1 = bjobs.getJob("157356");
+		assertEquals("job1 name may contain whitespace", "test batch file", job1.getJobName());
+		assertEquals("job1 status should be DONE", "DONE", job1.getStatus());
+		cal.setTime(job1.getSubmitTime());
+		assertEquals("job1 was submitted last year", 2014, cal.get(Calendar.YEAR));
+		cal.setTime(job1.getFinishTime());
+		assertEquals("job1 finished this year", 2015, cal.get(Calendar.YEAR));
+		assertEquals("job1 finish hour should be 1", 1, cal.get(Calendar.HOUR_OF_DAY));
+		assertNull("job1 has no exit code", job1.getExitCode());
+		
+		Bjobs.Job job2 = bjobs.getJob("157357");
+		assertEquals("job2 exit code should be 3", Integer.valueOf(3), job2.getExitCode());
+		cal.setTime(job2.getStartTime());
+		assertEquals("job2 start second should be 0", 0, cal.get(Calendar.SECOND));
+		cal.setTime(job2.getFinishTime());
+		assertEquals("job2 finish second should be 30", 30, cal.get(Calendar.SECOND));
+		
+		Bjobs.Job job3 = bjobs.getJob("157358");
+		assertEquals("job3 status should be PEND", "PEND", job3.getStatus());
+		assertEquals("job3 exec-host should be empty", "", job3.getExecHost());
+		assertNull("job3 has not started", job3.getStartTime());
+		assertNull("job3 estimated finish time should be ignored", job3.getFinishTime());
+		assertEquals("job3 name may contain the delimiter", "test^batch^file", job3.getJobName());
+	}
+	
 	@Test
 	public void noJobsTest(){
 		
@@ -0,0 +1,116 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.icatproject.ijp.batch.JobStatus;
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the request header handling and response streaming of the JobManager class
+ */
+public class JobManagerTest {
+
+	@Test
+	public void acceptEncoding() throws Exception {
+		assertTrue(JobManager.acceptsGzip("gzip, deflate"));
+		assertTrue(JobManager.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertFalse(JobManager.acceptsGzip("gzip;q=0"));
+		assertFalse(JobManager.acceptsGzip("identity"));
+		assertFalse(JobManager.acceptsGzip(null));
+	}
+
+	@Test
+	public void range() throws Exception {
+		assertArrayEquals(new long[] { 100L, 50L }, JobManager.parseRange("bytes=100-149"));
+		assertArrayEquals(new long[] { 100L, -1L }, JobManager.parseRange("bytes=100-"));
+		assertArrayEquals(new long[] { -500L, -1L }, JobManager.parseRange("bytes=-500"));
+		assertNull(JobManager.parseRange("bytes=-0"));
+		assertNull(JobManager.parseRange("bytes=-"));
+		assertNull(JobManager.parseRange("bytes=10-5"));
+		assertNull("Several ranges are not supported", JobManager.parseRange("bytes=0-10,20-30"));
+		assertNull(JobManager.parseRange("lines=1-2"));
+		assertNull(JobManager.parseRange(null));
+	}
+
+	@Test
+	public void lines() throws Exception {
+		assertArrayEquals(new long[] { 0L, 20L }, JobManager.parseLines(20L, null, null));
+		assertArrayEquals(new long[] { -200L, -1L }, JobManager.parseLines(null, 200L, null));
+		assertArrayEquals(new long[] { 9999L, 501L }, JobManager.parseLines(null, null, "10000-10500"));
+		assertArrayEquals(new long[] { 99L, -1L }, JobManager.parseLines(null, null, "100-"));
+		assertNull(JobManager.parseLines(null, null, null));
+		for (String lines : new String[] { "0-10", "10-5", "-5", "a-b" }) {
+			try {
+				JobManager.parseLines(null, null, lines);
+				fail(lines + " should not be accepted");
+			} catch (ParameterException e) {
+				// expected
+			}
+		}
+		try {
+			JobManager.parseLines(10L, 10L, null);
+			fail("head and tail should not both be accepted");
+		} catch (ParameterException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void statuses() throws Exception {
+		assertEquals(Arrays.asList(JobStatus.Queued, JobStatus.Held, JobStatus.Completed),
+				JobManager.parseStatuses(Arrays.asList("Queued, Held", "Completed")));
+		assertTrue(JobManager.parseStatuses(null).isEmpty());
+		try {
+			JobManager.parseStatuses(Arrays.asList("Running"));
+			fail("Running is not a job status");
+		} catch (ParameterException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void dates() throws Exception {
+		assertEquals(86400000L, JobManager.parseDate("since", "1970-01-02").getTime());
+		assertEquals(3600000L, JobManager.parseDate("since", "1970-01-01T02:00:00+01:00").getTime());
+		assertEquals(1000L, JobManager.parseDate("since", "1970-01-01T00:00:01Z").getTime());
+		assertNull(JobManager.parseDate("since", null));
+		for (String date : new String[] { "1970-13-01", "1970-01-01T00:00:00", "yesterday", "1970-01-01junk" }) {
+			try {
+				JobManager.parseDate("since", date);
+				fail(date + " should not be accepted");
+			} catch (ParameterException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void streamClosedWhenClientGoes() throws Exception {
+		final boolean[] closed = new boolean[1];
+		ByteArrayInputStream in = new ByteArrayInputStream(new byte[100000]) {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		OutputStream gone = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		};
+		try {
+			JobManager.streamed(in).write(gone);
+			fail("Write should fail");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue("The stream (and any command behind it) should be closed", closed[0]);
+	}
+}
@@ -0,0 +1,76 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import org.icatproject.ijp.batch.JobStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the JobStatusCache class.
+ */
+public class JobStatusCacheTest {
+
+	JobStatusCache cache;
+
+	@Before
+	public void setUp() {
+		// Use a fresh cache rather than the singleton, so that tests do not interfere
+		cache = new JobStatusCache();
+		cache.configure(1000L, 10);
+	}
+
+	@Test
+	public void hitsAndMisses() {
+
+		assertNull("Unknown job should miss", cache.get("1", 0L));
+
+		cache.put("1", JobStatus.Executing, 0L);
+		assertEquals("Fresh entry should hit", JobStatus.Executing, cache.get("1", 500L));
+		assertEquals("Entry at max age should hit", JobStatus.Executing, cache.get("1", 1000L));
+		assertNull("Stale entry should miss", cache.get("1", 1001L));
+
+		cache.put("1", JobStatus.Completed, 1001L);
+		assertEquals("Updated entry should hit", JobStatus.Completed, cache.get("1", 1002L));
+
+		cache.remove("1");
+		assertNull("Removed entry should miss", cache.get("1", 1002L));
+
+		assertEquals("Hits", 3L, cache.getHits());
+		assertEquals("Misses", 3L, cache.getMisses());
+	}
+
+	@Test
+	public void finishedJobsAreEvictedFirst() {
+
+		// Five unfinished jobs, then enough finished ones to exceed the cap
+		for (int i = 0; i < 5; i++) {
+			cache.put("u" + i, JobStatus.Executing, i);
+		}
+		for (int i = 0; i < 6; i++) {
+			cache.put("f" + i, JobStatus.Completed, 10 + i);
+		}
+
+		// Eviction brings the cache back to 90% of its cap, oldest finished jobs first
+		assertEquals("Size after eviction", 9, cache.size());
+		assertEquals("Evictions", 2L, cache.getEvictions());
+		for (int i = 0; i < 5; i++) {
+			assertNotNull("Unfinished job u" + i + " should remain", cache.get("u" + i, 20L));
+		}
+		assertNull("Oldest finished job should be evicted", cache.get("f0", 20L));
+		assertNull("Next oldest finished job should be evicted", cache.get("f1", 20L));
+		assertNotNull("Newest finished job should remain", cache.get("f5", 20L));
+	}
+
+	@Test
+	public void unfinishedJobsAreEvictedIfNecessary() {
+
+		for (int i = 0; i < 11; i++) {
+			cache.put("u" + i, JobStatus.Queued, i);
+		}
+		assertEquals("Size after eviction", 9, cache.size());
+		assertNull("Oldest unfinished job should be evicted", cache.get("u0", 20L));
+		assertNotNull("Newest unfinished job should remain", cache.get("u10", 20L));
+	}
+
+}
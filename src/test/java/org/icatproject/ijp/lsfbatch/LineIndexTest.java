@@ -0,0 +1,110 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the LineIndex class
+ */
+public class LineIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	Path path;
+
+	@Before
+	public void setUp() throws Exception {
+		path = folder.getRoot().toPath().resolve("123.log");
+		Files.write(path, lines(0, 2500).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String lines(int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			sb.append("Line ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private String read(LineIndex index, long first, long count) throws Exception {
+		long[] offsets = index.find(first, count);
+		JobOutput output = OutputCompressor.open(path, false, offsets[0], offsets[1] - offsets[0]);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream in = output.getStream()) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, n);
+			}
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void find() throws Exception {
+		LineIndex index = LineIndex.update(path);
+		assertEquals(2500, index.getLines());
+		assertTrue(Files.size(LineIndex.getIndexFor(path)) < 100);
+		assertEquals(lines(0, 3), read(index, 0, 3));
+		assertEquals(lines(999, 1002), read(index, 999, 3));
+		assertEquals(lines(2300, 2500), read(index, -200, -1));
+		assertEquals(lines(2490, 2500), read(index, 2490, 100));
+		assertEquals("", read(index, 2500, 10));
+		assertEquals(lines(0, 2500), read(index, -3000, -1));
+	}
+
+	@Test
+	public void incremental() throws Exception {
+		LineIndex.update(path);
+		Files.write(path, (lines(2500, 3100) + "Last").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		LineIndex index = LineIndex.update(path);
+		assertEquals(3101, index.getLines());
+		assertEquals(Files.size(path), index.getSize());
+		assertEquals(lines(2999, 3001), read(index, 2999, 2));
+		assertEquals(lines(3099, 3100) + "Last", read(index, -2, -1));
+	}
+
+	@Test
+	public void upToDateIndexOnlyRead() throws Exception {
+		LineIndex.update(path);
+		Path indexPath = LineIndex.getIndexFor(path);
+		indexPath.toFile().setWritable(false);
+		long modified = Files.getLastModifiedTime(indexPath).toMillis();
+		LineIndex index = LineIndex.update(path);
+		assertEquals(2500, index.getLines());
+		assertEquals(lines(1999, 2001), read(index, 1999, 2));
+		assertEquals(modified, Files.getLastModifiedTime(indexPath).toMillis());
+	}
+
+	@Test
+	public void replaced() throws Exception {
+		LineIndex.update(path);
+		Files.write(path, lines(0, 10).getBytes(StandardCharsets.UTF_8));
+		LineIndex index = LineIndex.update(path);
+		assertEquals(10, index.getLines());
+		assertEquals(lines(9, 10), read(index, 9, 1));
+	}
+
+	@Test
+	public void compressed() throws Exception {
+		LineIndex.update(path);
+		assertTrue(new OutputCompressor().compress(folder.getRoot().toPath()) > 0);
+		assertFalse(Files.exists(path));
+		assertTrue("The index should not be compressed", Files.exists(LineIndex.getIndexFor(path)));
+		LineIndex index = LineIndex.update(path);
+		assertEquals(2500, index.getLines());
+		assertEquals(lines(1500, 1505), read(index, 1500, 5));
+	}
+}
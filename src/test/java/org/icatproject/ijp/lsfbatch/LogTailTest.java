@@ -0,0 +1,261 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ijp.batch.OutputType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the LogTail class, following a fake job
+ */
+public class LogTailTest {
+
+	static class FakeJob implements LogTail.Source {
+		volatile String stdout = "";
+		volatile String stderr = "";
+		volatile boolean running = true;
+		volatile boolean written = true;
+		volatile boolean collected;
+		int reads;
+
+		@Override
+		public synchronized JobOutput read(OutputType outputType, long offset, long length) {
+			reads++;
+			if (!running && !written) {
+				return null;
+			}
+			String text = outputType == OutputType.STANDARD_OUTPUT ? stdout : stderr;
+			if (!running && outputType == OutputType.STANDARD_OUTPUT) {
+				text = "Report from LSF\n" + text;
+			}
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			long start = Math.min(JobOutput.start(offset, bytes.length), bytes.length);
+			int end = (int) Math.min(bytes.length, start + length);
+			return new JobOutput(new ByteArrayInputStream(Arrays.copyOfRange(bytes, (int) start, end)), false, start,
+					bytes.length, running);
+		}
+
+		@Override
+		public synchronized boolean isFinished() {
+			return !running;
+		}
+
+		@Override
+		public synchronized boolean isCollected() {
+			return collected;
+		}
+	}
+
+	static class Collector implements LogTail.Subscriber {
+		private final List<LogTail.Event> received = new ArrayList<>();
+		final CountDownLatch closed = new CountDownLatch(1);
+		volatile boolean gone;
+
+		@Override
+		public synchronized void send(List<LogTail.Event> events) throws IOException {
+			if (gone) {
+				throw new IOException("Broken pipe");
+			}
+			received.addAll(events);
+			notifyAll();
+		}
+
+		@Override
+		public void heartbeat() throws IOException {
+			if (gone) {
+				throw new IOException("Broken pipe");
+			}
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+
+		synchronized List<LogTail.Event> events() {
+			return new ArrayList<>(received);
+		}
+
+		synchronized String received() {
+			return names(received);
+		}
+
+		/**
+		 * @return what has been received, once it is as expected or a second has passed
+		 */
+		synchronized String await(String expected) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 1000L;
+			long now;
+			while (!names(received).equals(expected) && (now = System.currentTimeMillis()) < deadline) {
+				wait(deadline - now);
+			}
+			return names(received);
+		}
+
+		/**
+		 * @return the events received, once there is at least one or a second has passed
+		 */
+		synchronized List<LogTail.Event> awaitAny() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 1000L;
+			long now;
+			while (received.isEmpty() && (now = System.currentTimeMillis()) < deadline) {
+				wait(deadline - now);
+			}
+			return new ArrayList<>(received);
+		}
+	}
+
+	FakeJob job;
+	ScheduledExecutorService scheduler;
+	LogTails tails;
+	Collector collector;
+
+	@Before
+	public void setUp() {
+		job = new FakeJob();
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		tails = new LogTails();
+		tails.configure(10L, 100, scheduler);
+		collector = new Collector();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	private static String names(List<LogTail.Event> events) {
+		StringBuilder sb = new StringBuilder();
+		for (LogTail.Event event : events) {
+			sb.append(event.getName()).append(':').append(event.getData()).append(';');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void lines() throws Exception {
+		job.stdout = "one\ntw";
+		tails.subscribe("1", job, collector);
+		assertEquals("stdout:one;", collector.await("stdout:one;"));
+
+		job.stdout = "one\ntwo\nthree\n";
+		assertEquals("stdout:one;stdout:two\nthree;", collector.await("stdout:one;stdout:two\nthree;"));
+
+		job.stderr = "oops\n";
+		assertEquals("stdout:one;stdout:two\nthree;stderr:oops;",
+				collector.await("stdout:one;stdout:two\nthree;stderr:oops;"));
+	}
+
+	@Test
+	public void sharedBetweenSubscribers() throws Exception {
+		tails.configure(60000L, 100, scheduler);
+		job.stdout = "hello\n";
+		Collector first = new Collector();
+		Collector second = new Collector();
+		assertSame(tails.subscribe("1", job, first), tails.subscribe("1", new FakeJob(), second));
+		assertEquals(1, tails.size());
+
+		assertEquals("stdout:hello;", first.await("stdout:hello;"));
+		assertEquals("stdout:hello;", second.await("stdout:hello;"));
+		assertEquals("Output should be read once for both", 2, job.reads);
+	}
+
+	@Test
+	public void subscribersDropped() throws Exception {
+		job.stdout = "one\n";
+		Collector staying = new Collector();
+		Collector leaving = new Collector();
+		tails.subscribe("1", job, staying);
+		tails.subscribe("1", job, leaving);
+		assertEquals("stdout:one;", leaving.await("stdout:one;"));
+
+		leaving.gone = true;
+		job.stdout = "one\ntwo\n";
+		assertTrue("A subscriber that has gone is closed", leaving.closed.await(1, TimeUnit.SECONDS));
+		assertEquals(1, tails.size());
+
+		job.running = false;
+		assertTrue("A subscriber is closed once it has had the end event", staying.closed.await(1, TimeUnit.SECONDS));
+		assertTrue(staying.received().endsWith("end:;"));
+		assertEquals("The tail is dropped with its last subscriber", 0, tails.size());
+	}
+
+	@Test
+	public void startsNearEnd() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 2 * LogTail.INITIAL_BYTES; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		job.stdout = sb.toString();
+		tails.subscribe("1", job, collector);
+		String data = collector.awaitAny().get(0).getData();
+		assertTrue(data.startsWith("line "));
+		assertTrue(data.length() < LogTail.INITIAL_BYTES);
+		assertTrue(sb.toString().endsWith(data + "\n"));
+	}
+
+	@Test
+	public void switchesToFinalOutput() throws Exception {
+		job.stdout = "one\n";
+		LogTail tail = tails.subscribe("1", job, collector);
+		assertEquals("stdout:one;", collector.await("stdout:one;"));
+
+		job.stdout = "one\ntwo";
+		job.running = false;
+		assertTrue(collector.closed.await(1, TimeUnit.SECONDS));
+		assertEquals("stdout:one;reset:STANDARD_OUTPUT;stdout:Report from LSF\none;reset:ERROR_OUTPUT;stdout:two;end:;",
+				collector.received());
+		assertTrue(tail.hasEnded());
+		assertTrue(tail.eventsAfter(tail.getSequence()).isEmpty());
+	}
+
+	@Test
+	public void waitsForFinalOutput() throws Exception {
+		job.running = false;
+		job.written = false;
+		LogTail tail = tails.subscribe("1", job, collector);
+		assertFalse("No end without any final output", collector.closed.await(200, TimeUnit.MILLISECONDS));
+		assertFalse(tail.hasEnded());
+		assertEquals("", collector.received());
+
+		job.written = true;
+		assertTrue(collector.closed.await(1, TimeUnit.SECONDS));
+		assertEquals("stdout:Report from LSF;end:;", collector.received());
+	}
+
+	@Test
+	public void endsOnceCollected() throws Exception {
+		job.running = false;
+		job.written = false;
+		tails.subscribe("1", job, collector);
+		assertFalse(collector.closed.await(100, TimeUnit.MILLISECONDS));
+
+		job.collected = true;
+		assertTrue("Output that is still missing once collected will never appear",
+				collector.closed.await(1, TimeUnit.SECONDS));
+		assertEquals("end:;", collector.received());
+	}
+
+	@Test
+	public void eventStream() throws Exception {
+		job.stderr = "a\r\nb\n";
+		job.running = false;
+		tails.subscribe("1", job, collector);
+		assertTrue(collector.closed.await(1, TimeUnit.SECONDS));
+		assertEquals("event: stdout\ndata: Report from LSF\n\nevent: stderr\ndata: a\ndata: b\n\nevent: end\ndata: \n\n",
+				JobManager.eventStream(collector.events()));
+	}
+}
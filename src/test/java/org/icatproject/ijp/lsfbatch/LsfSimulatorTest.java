@@ -0,0 +1,124 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the LsfSimulator class; bjobs output is checked by parsing it with Bjobs.
+ */
+public class LsfSimulatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	LsfSimulator lsf;
+	Path home;
+
+	@Before
+	public void setUp() throws Exception {
+		home = folder.getRoot().toPath();
+		Files.createDirectory(home.resolve("user1"));
+		lsf = new LsfSimulator();
+		// Pending for 1s, running for 10s, 2 at once, forgotten 100s after finishing
+		lsf.configure(home, 1000L, 10000L, 2, 100000L);
+	}
+
+	private String bsub(String user, long now, String dir) {
+		CommandResult result = lsf.execute(user, now, Arrays.asList("bsub", "-J", "test", "-o", dir + "/%J.log", "-e", dir
+				+ "/%J.err", "-q", "scarf", "/tmp/script.sh"));
+		assertFalse(result.getStderr(), result.isError());
+		Matcher m = Pattern.compile("Job <(\\d+)> is submitted to queue <scarf>\\.").matcher(result.getStdout().trim());
+		assertTrue(result.getStdout(), m.matches());
+		return m.group(1);
+	}
+
+	private String stat(String user, long now, String jobId, Bjobs.Format format) throws Exception {
+		CommandResult result = lsf.execute(user, now, format == Bjobs.Format.DELIMITED ? Arrays.asList("bjobs", "-a",
+				"-noheader", "-o", Bjobs.DELIMITED_OUTPUT_FORMAT, jobId) : Arrays.asList("bjobs", "-aw", jobId));
+		if (result.isError()) {
+			assertEquals("Job <" + jobId + "> is not found", result.getStderr().trim());
+			return null;
+		}
+		return new Bjobs(result.getStdout(), format).getJob(jobId).getStatus();
+	}
+
+	@Test
+	public void lifecycle() throws Exception {
+
+		assertFalse(lsf.execute("user1", 0L, Arrays.asList("mkdir", "jobs")).isError());
+		String dir = home.resolve("user1").resolve("jobs").toString();
+
+		String id1 = bsub("user1", 0L, dir);
+		String id2 = bsub("user1", 0L, dir);
+		String id3 = bsub("user1", 0L, dir);
+
+		assertEquals("PEND", stat("user1", 500L, id1, Bjobs.Format.WIDE));
+		assertEquals("RUN", stat("user1", 1000L, id1, Bjobs.Format.WIDE));
+
+		// Output is spooled while the job runs
+		String spool = home.resolve("user1").resolve(".lsbatch").toString() + "/*." + id1 + ".out";
+		String expected = "Simulated output of job " + id1 + " (/tmp/script.sh)\n";
+		CommandResult size = lsf.execute("user1", 1000L, Arrays.asList("stat", "-L", "-c", "%s", spool));
+		assertEquals(Integer.toString(expected.length()), size.getStdout().trim());
+		CommandResult tail = lsf.execute("user1", 1000L, Arrays.asList("tail", "-c", "+11", spool));
+		assertEquals(expected.substring(10), tail.getStdout());
+		assertEquals("RUN", stat("user1", 1000L, id2, Bjobs.Format.DELIMITED));
+		assertEquals("Only two jobs may run at once", "PEND", stat("user1", 1000L, id3, Bjobs.Format.DELIMITED));
+
+		assertEquals("DONE", stat("user1", 11000L, id1, Bjobs.Format.WIDE));
+		assertEquals("Third job should start when a slot is freed", "RUN", stat("user1", 11000L, id3, Bjobs.Format.WIDE));
+		assertTrue("Output should be written", Files.exists(home.resolve("user1").resolve("jobs").resolve(id1 + ".log")));
+		CommandResult cat = lsf.execute("user1", 11000L, Arrays.asList("cat", dir + "/*" + id1 + ".log"));
+		assertTrue(cat.getStdout(), cat.getStdout().startsWith("Simulated output of job " + id1));
+		assertTrue("Spooled output should be gone", lsf.execute("user1", 11000L, Arrays.asList("stat", "-L", "-c", "%s", spool))
+				.isError());
+
+		CommandResult bkill = lsf.execute("user1", 12000L, Arrays.asList("bkill", id3));
+		assertFalse(bkill.getStderr(), bkill.isError());
+		assertEquals("EXIT", stat("user1", 12000L, id3, Bjobs.Format.DELIMITED));
+		assertTrue("Killing a finished job should fail", lsf.execute("user1", 12000L, Arrays.asList("bkill", id3))
+				.isError());
+
+		assertNull("Finished jobs should be forgotten", stat("user1", 200000L, id1, Bjobs.Format.WIDE));
+		assertEquals(0, lsf.size());
+
+		assertFalse(lsf.execute("user1", 200000L, Arrays.asList("rm", "-rf", dir)).isError());
+		assertFalse(Files.exists(home.resolve("user1").resolve("jobs")));
+	}
+
+	@Test
+	public void bjobsByUser() throws Exception {
+
+		bsub("user1", 0L, "/nonexistent");
+		bsub("user2", 0L, "/nonexistent");
+		bsub("user2", 0L, "/nonexistent");
+
+		CommandResult result = lsf.execute(null, 0L, Arrays.asList("bjobs", "-aw", "-u", "all"));
+		assertEquals(2, new Bjobs(result.getStdout()).getJobsByUser().size());
+		result = lsf.execute(null, 0L, Arrays.asList("bjobs", "-aw", "-u", "user2"));
+		assertEquals(2, new Bjobs(result.getStdout()).getJobs().size());
+		result = lsf.execute(null, 0L, Arrays.asList("bjobs", "-aw", "-u", "user3"));
+		assertTrue(result.isError());
+		assertEquals("No job found", result.getStderr().trim());
+		assertEquals("Unknown command", 127, lsf.execute("user1", 0L, Arrays.asList("atq")).getExitValue());
+	}
+
+	@Test
+	public void quotedArguments() throws Exception {
+
+		assertEquals("-o", LsfSimulator.unquote("'-o'"));
+		assertEquals("it's", LsfSimulator.unquote(JobManagementBean.escaped(Arrays.asList("it's"))));
+		assertEquals(Bjobs.DELIMITED_OUTPUT_FORMAT,
+				LsfSimulator.unquote(JobManagementBean.escaped(Arrays.asList(Bjobs.DELIMITED_OUTPUT_FORMAT))));
+	}
+}
@@ -0,0 +1,190 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Multi-threaded tests for the LsfUserPool class: however claims and releases interleave, no user may be
+ * handed out twice.
+ */
+public class LsfUserPoolStressTest {
+
+	private static final int N_THREADS = 16;
+	private static final int N_ITERATIONS = 20000;
+
+	LsfUserPool userPool;
+
+	@Before
+	public void setUp(){
+		// Use a fresh pool rather than the singleton, so that tests do not interfere
+		userPool = new LsfUserPool();
+	}
+
+	@Test
+	public void noUserIsHandedOutTwice() throws Exception {
+
+		// Three families over six users; user3 and user4 are shared between families
+		final String[] families = { "family1", "family2", "family3" };
+		userPool.addLsfUser("family1", "user1", false);
+		userPool.addLsfUser("family1", "user2", false);
+		userPool.addLsfUser("family1", "user3", false);
+		userPool.addLsfUser("family2", "user3", false);
+		userPool.addLsfUser("family2", "user4", false);
+		userPool.addLsfUser("family3", "user4", false);
+		userPool.addLsfUser("family3", "user5", false);
+		userPool.addLsfUser("family3", "user6", false);
+
+		// Users currently held, mapped to the thread that holds them
+		final ConcurrentMap<String, Integer> held = new ConcurrentHashMap<String, Integer>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final AtomicInteger claims = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < N_THREADS; i++) {
+			final int threadId = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(threadId);
+					try {
+						start.await();
+						for (int j = 0; j < N_ITERATIONS; j++) {
+							String user;
+							try {
+								user = userPool.getUserForFamily(families[random.nextInt(families.length)]);
+							} catch (InternalException e) {
+								assertEquals("No free LSF users at present", e.getMessage());
+								continue;
+							}
+							claims.incrementAndGet();
+							if (held.putIfAbsent(user, threadId) != null) {
+								duplicates.incrementAndGet();
+							}
+							Thread.yield();
+							held.remove(user, threadId);
+							userPool.freeUser(user);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+		assertEquals("Users handed out twice", 0, duplicates.get());
+		assertTrue("Some claims should succeed", claims.get() > 0);
+
+		// Everything has been released, so each family should be able to claim all of its users once more
+		List<String> claimed = new ArrayList<String>();
+		for (String family : families) {
+			while (true) {
+				try {
+					claimed.add(userPool.getUserForFamily(family));
+				} catch (InternalException e) {
+					break;
+				}
+			}
+		}
+		assertEquals("All users should be free after the run", 6, claimed.size());
+		assertEquals("No user should be claimed twice", 6, new HashSet<String>(claimed).size());
+	}
+
+	@Test
+	public void noUserExceedsItsSlots() throws Exception {
+
+		final int slots = 3;
+		userPool.setSlotsPerUser(slots);
+		final String[] families = { "family1", "family2" };
+		userPool.addLsfUser("family1", "user1", 0);
+		userPool.addLsfUser("family1", "user2", 0);
+		userPool.addLsfUser("family2", "user2", 0);
+		userPool.addLsfUser("family2", "user3", 0);
+
+		// Number of slots currently held for each user
+		final ConcurrentMap<String, AtomicInteger> held = new ConcurrentHashMap<String, AtomicInteger>();
+		for (String user : new String[] { "user1", "user2", "user3" }) {
+			held.put(user, new AtomicInteger());
+		}
+		final AtomicInteger overcommits = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < N_THREADS; i++) {
+			final int threadId = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(threadId);
+					try {
+						start.await();
+						for (int j = 0; j < N_ITERATIONS; j++) {
+							String user;
+							try {
+								user = userPool.getUserForFamily(families[random.nextInt(families.length)]);
+							} catch (InternalException e) {
+								continue;
+							}
+							if (held.get(user).incrementAndGet() > slots) {
+								overcommits.incrementAndGet();
+							}
+							Thread.yield();
+							held.get(user).decrementAndGet();
+							userPool.releaseSlot(user);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+		assertEquals("Users given more jobs than slots", 0, overcommits.get());
+
+		// Everything has been released, so all nine slots should be available again
+		int claimed = 0;
+		for (String family : families) {
+			while (true) {
+				try {
+					userPool.getUserForFamily(family);
+					claimed++;
+				} catch (InternalException e) {
+					break;
+				}
+			}
+		}
+		assertEquals("All slots should be free after the run", 3 * slots, claimed);
+	}
+}
@@ -168,4 +168,50 @@ public class LsfUserPoolTest {
 		}
 	}
 
+	/**
+	 * With several slots per user, jobs should go to the least-loaded user, and releasing a slot should make
+	 * (only) that slot available again.
+	 */
+	@Test
+	public void slotsShouldBeShared() throws InternalException{
+		
+		userPool.setSlotsPerUser(2);
+		userPool.addLsfUser("family1", "user1", 1);
+		userPool.addLsfUser("family1", "user2", 0);
+		userPool.addLsfUser("family2", "user2", 0);
+		
+		assertEquals("Least-loaded user should be chosen first", "user2", userPool.getUserForFamily("family1"));
+		
+		// Both users now have one slot in use; take the remaining slots
+		String first = userPool.getUserForFamily("family1");
+		String second = userPool.getUserForFamily("family1");
+		assertTrue("Each user should have one more job", ! first.equals(second));
+		assertEquals(2, userPool.getUsedSlots("user1"));
+		assertEquals(2, userPool.getUsedSlots("user2"));
+		
+		try {
+			userPool.getUserForFamily("family2");
+			fail("family2 should have no free slots, exception expected");
+		} catch (InternalException e) {
+			assertEquals("Get user for family2 should throw expected exception", e.getMessage(), "No free LSF users at present" );
+		}
+		
+		userPool.releaseSlot("user2");
+		assertEquals(1, userPool.getUsedSlots("user2"));
+		assertEquals("Released slot should be available through the other family", "user2", userPool.getUserForFamily("family2"));
+		
+		try {
+			userPool.getUserForFamily("family1");
+			fail("family1 should have no free slots, exception expected");
+		} catch (InternalException e) {
+			assertEquals("Get user for family1 should throw expected exception", e.getMessage(), "No free LSF users at present" );
+		}
+		
+		// Freeing the user releases all of its slots
+		userPool.freeUser("user1");
+		assertEquals(0, userPool.getUsedSlots("user1"));
+		assertEquals("user1", userPool.getUserForFamily("family1"));
+		assertEquals("user1", userPool.getUserForFamily("family1"));
+	}
+
 }
@@ -0,0 +1,152 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the OutputCompressor class
+ */
+public class OutputCompressorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	Path dir;
+	String log;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("123").toPath();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("Step ").append(i).append(" done\n");
+		}
+		log = sb.toString();
+		Files.write(dir.resolve("123.log"), log.getBytes(StandardCharsets.UTF_8));
+		Files.write(dir.resolve("123.err"), "Warning\n".getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				baos.write(buffer, 0, n);
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void compress() throws Exception {
+		long saved = new OutputCompressor().compress(dir);
+		assertTrue("Saved " + saved, saved > log.length() / 2);
+		assertFalse(Files.exists(dir.resolve("123.log")));
+		assertTrue(Files.exists(dir.resolve("123.log.gz")));
+		assertTrue("Small files are left alone", Files.exists(dir.resolve("123.err")));
+		assertEquals("Nothing more to compress", 0, new OutputCompressor().compress(dir));
+		assertEquals(2, dir.toFile().list().length);
+	}
+
+	@Test
+	public void tooLarge() throws Exception {
+		// Sparse, so it takes no space and is not read
+		try (RandomAccessFile raf = new RandomAccessFile(dir.resolve("big.log").toFile(), "rw")) {
+			raf.setLength(OutputCompressor.MAX_SIZE + 1);
+		}
+		new OutputCompressor().compress(dir);
+		assertTrue("A file too large for its size to be kept in the gzip trailer is left alone",
+				Files.exists(dir.resolve("big.log")));
+		assertEquals(OutputCompressor.MAX_SIZE + 1, OutputCompressor.size(dir.resolve("big.log")));
+	}
+
+	@Test
+	public void open() throws Exception {
+		JobOutput output = OutputCompressor.open(dir.resolve("123.log"), true);
+		assertFalse(output.isGzipped());
+		assertEquals(log, read(output.getStream()));
+
+		new OutputCompressor().compress(dir);
+
+		output = OutputCompressor.open(dir.resolve("123.log"), false);
+		assertFalse(output.isGzipped());
+		assertEquals(log, read(output.getStream()));
+
+		output = OutputCompressor.open(dir.resolve("123.log"), true);
+		assertTrue(output.isGzipped());
+		assertEquals(log, read(new GZIPInputStream(output.getStream())));
+
+		output = OutputCompressor.open(dir.resolve("123.err"), true);
+		assertFalse(output.isGzipped());
+		assertEquals("Warning\n", read(output.getStream()));
+	}
+
+	@Test
+	public void members() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 3 * OutputCompressor.MEMBER_SIZE; i++) {
+			sb.append("Line ").append(i).append(" of a longer log\n");
+		}
+		String longLog = sb.toString();
+		Path path = dir.resolve("456.log");
+		Files.write(path, longLog.getBytes(StandardCharsets.UTF_8));
+		new OutputCompressor().compress(dir);
+		assertTrue(Files.exists(OutputCompressor.getMembersFor(path)));
+		assertFalse("123.log fits in one member", Files.exists(OutputCompressor.getMembersFor(dir.resolve("123.log"))));
+		assertEquals(longLog.length(), OutputCompressor.size(path));
+
+		// Starting in the first, a later and the last member, and across the boundaries between them
+		for (long offset : new long[] { 10L, OutputCompressor.MEMBER_SIZE - 20L, 2L * OutputCompressor.MEMBER_SIZE,
+				longLog.length() - 30L }) {
+			JobOutput output = OutputCompressor.open(path, false, offset, 50L);
+			assertEquals(offset, output.getOffset());
+			assertEquals(longLog.substring((int) offset, (int) Math.min(longLog.length(), offset + 50L)),
+					read(output.getStream()));
+		}
+		assertEquals(longLog, read(OutputCompressor.open(path, false).getStream()));
+		assertEquals(longLog, read(new GZIPInputStream(OutputCompressor.open(path, true).getStream())));
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void missing() throws Exception {
+		OutputCompressor.open(dir.resolve("456.log"), true);
+	}
+
+	@Test
+	public void ranges() throws Exception {
+		for (int pass = 0; pass < 2; pass++) {
+			JobOutput output = OutputCompressor.open(dir.resolve("123.log"), true, 100L, 50L);
+			assertFalse(output.isGzipped());
+			assertEquals(100L, output.getOffset());
+			assertEquals(log.length(), output.getSize());
+			assertEquals(log.substring(100, 150), read(output.getStream()));
+
+			output = OutputCompressor.open(dir.resolve("123.log"), false, -10L, -1L);
+			assertEquals(log.length() - 10, output.getOffset());
+			assertEquals(log.substring(log.length() - 10), read(output.getStream()));
+
+			output = OutputCompressor.open(dir.resolve("123.log"), false, log.length() + 5L, -1L);
+			assertEquals("", read(output.getStream()));
+
+			// And again once compressed
+			new OutputCompressor().compress(dir);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserPrincipal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the OutputMover class
+ */
+public class OutputMoverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	OutputMover mover;
+	Path source;
+	Path target;
+
+	@Before
+	public void setUp() throws Exception {
+		mover = new OutputMover();
+		source = folder.newFolder("pool").toPath();
+		Files.write(source.resolve("123.log"), "Some output\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(source.resolve("123.err"), new byte[100000]);
+		target = folder.newFolder("glassfish").toPath().resolve("123");
+	}
+
+	private void checkTarget() throws Exception {
+		assertEquals("Some output\n", new String(Files.readAllBytes(target.resolve("123.log")), StandardCharsets.UTF_8));
+		assertEquals(100000, Files.size(target.resolve("123.err")));
+		assertFalse(Files.exists(OutputMover.getStagingFolderFor(target)));
+	}
+
+	@Test
+	public void renameWhenPossible() throws Exception {
+		OutputMover.Result result = mover.move(source, target);
+		assertEquals(OutputMover.Method.RENAME, result.getMethod());
+		assertEquals(100012, result.getBytes());
+		checkTarget();
+		assertFalse(Files.exists(source));
+	}
+
+	@Test
+	public void ownerOfSourceChecked() throws Exception {
+		assertTrue(OutputMover.ownedBy(source, Files.getOwner(target.getParent())));
+		UserPrincipal nobody = source.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName("nobody");
+		assertFalse(OutputMover.ownedBy(source, nobody));
+	}
+
+	@Test
+	public void linkLeavesSource() throws Exception {
+		OutputMover.Result result = mover.move(source, target, OutputMover.Method.LINK);
+		assertEquals(100012, result.getBytes());
+		checkTarget();
+		assertTrue(Files.isSameFile(source.resolve("123.log"), target.resolve("123.log")));
+	}
+
+	@Test
+	public void copyLeavesSource() throws Exception {
+		OutputMover.Result result = mover.move(source, target, OutputMover.Method.COPY);
+		assertEquals(100012, result.getBytes());
+		checkTarget();
+		assertFalse(Files.isSameFile(source.resolve("123.log"), target.resolve("123.log")));
+		assertEquals(2, source.toFile().listFiles().length);
+	}
+
+	@Test
+	public void staleStagingIsReplaced() throws Exception {
+		Path staging = OutputMover.getStagingFolderFor(target);
+		Files.createDirectory(staging);
+		Files.write(staging.resolve("123.log"), "Partial".getBytes(StandardCharsets.UTF_8));
+		mover.move(source, target, OutputMover.Method.COPY);
+		checkTarget();
+	}
+
+	@Test
+	public void failureLeavesNoStaging() throws Exception {
+		Files.createDirectory(target);
+		Files.write(target.resolve("123.log"), "Older".getBytes(StandardCharsets.UTF_8));
+		try {
+			mover.move(source, target, OutputMover.Method.COPY);
+			fail("Should not move onto an existing folder");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(Files.exists(OutputMover.getStagingFolderFor(target)));
+		assertEquals(2, source.toFile().listFiles().length);
+	}
+}
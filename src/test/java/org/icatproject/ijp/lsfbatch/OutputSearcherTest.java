@@ -0,0 +1,100 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the OutputSearcher class
+ */
+public class OutputSearcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	Path path;
+
+	@Before
+	public void setUp() throws Exception {
+		path = folder.getRoot().toPath().resolve("123.log");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= 100000; i++) {
+			sb.append(i % 25000 == 0 ? "ERROR at step " : "Step ").append(i).append(" done\r\n");
+		}
+		sb.append("Last line, with no newline: error");
+		Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void literal() throws Exception {
+		OutputSearcher searcher = new OutputSearcher("ERROR", false, false, 0, 100, 10000L);
+		List<OutputSearcher.Match> matches = searcher.search(path);
+		assertEquals(4, matches.size());
+		assertEquals(25000, matches.get(0).getLine());
+		assertEquals("ERROR at step 25000 done", matches.get(0).getText());
+		assertFalse(searcher.isTruncated());
+	}
+
+	@Test
+	public void ignoreCaseWithContext() throws Exception {
+		OutputSearcher searcher = new OutputSearcher("error", false, true, 2, 100, 10000L);
+		List<OutputSearcher.Match> matches = searcher.search(path);
+		assertEquals(5, matches.size());
+		OutputSearcher.Match match = matches.get(1);
+		assertEquals(Arrays.asList("Step 49998 done", "Step 49999 done"), match.getBefore());
+		assertEquals(Arrays.asList("Step 50001 done", "Step 50002 done"), match.getAfter());
+		match = matches.get(4);
+		assertEquals(100001, match.getLine());
+		assertEquals("Last line, with no newline: error", match.getText());
+		assertTrue(match.getAfter().isEmpty());
+	}
+
+	@Test
+	public void regex() throws Exception {
+		OutputSearcher searcher = new OutputSearcher("^Step 9999\\d done$", true, false, 0, 100, 10000L);
+		assertEquals(10, searcher.search(path).size());
+	}
+
+	@Test
+	public void maxMatches() throws Exception {
+		OutputSearcher searcher = new OutputSearcher("ERROR", false, false, 1, 2, 10000L);
+		List<OutputSearcher.Match> matches = searcher.search(path);
+		assertEquals(2, matches.size());
+		assertEquals("Context should still be complete", 1, matches.get(1).getAfter().size());
+		assertTrue(searcher.isTruncated());
+	}
+
+	@Test
+	public void compressed() throws Exception {
+		assertTrue(new OutputCompressor().compress(folder.getRoot().toPath()) > 0);
+		OutputSearcher searcher = new OutputSearcher("ERROR", false, false, 0, 100, 10000L);
+		List<OutputSearcher.Match> matches = searcher.search(path);
+		assertEquals(4, matches.size());
+		assertEquals(100000, matches.get(3).getLine());
+	}
+
+	@Test
+	public void timeout() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 30; i++) {
+			sb.append('a');
+		}
+		sb.append('!');
+		Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+		// Backtracks exponentially
+		OutputSearcher searcher = new OutputSearcher("^((a|a?)+)\\1$", true, false, 0, 100, 200L);
+		long start = System.currentTimeMillis();
+		assertTrue(searcher.search(path).isEmpty());
+		assertTrue(searcher.isTruncated());
+		assertTrue(System.currentTimeMillis() - start < 10000L);
+	}
+}
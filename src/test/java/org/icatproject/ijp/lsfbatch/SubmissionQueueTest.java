@@ -0,0 +1,101 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the SubmissionQueue class.
+ */
+public class SubmissionQueueTest {
+
+	SubmissionQueue queue;
+
+	@Before
+	public void setUp() {
+		// Use a fresh queue rather than the singleton, so that tests do not interfere
+		queue = new SubmissionQueue();
+		queue.configure(3, SubmissionQueue.Order.FIFO);
+	}
+
+	@Test
+	public void fifoOrder() throws Exception {
+
+		queue.add("family1", "q1", 0, 100L);
+		queue.add("family1", "q2", 5, 100L);
+		queue.add("family2", "q3", 0, 50L);
+		queue.add("family1", "q4", 9, 200L);
+
+		assertEquals(new HashSet<String>(Arrays.asList("family1", "family2")), new HashSet<String>(queue.getFamilies()));
+		assertEquals("{family1=3, family2=1}", queue.getSizes().toString());
+		assertEquals("q1", queue.poll("family1").getJobId());
+		assertEquals("q2", queue.poll("family1").getJobId());
+		assertEquals("q4", queue.poll("family1").getJobId());
+		assertNull("family1 should be empty", queue.poll("family1"));
+		assertEquals("q3", queue.poll("family2").getJobId());
+		assertNull("Unknown family should be empty", queue.poll("family3"));
+		assertTrue("No families should have queued jobs", queue.getFamilies().isEmpty());
+	}
+
+	@Test
+	public void priorityOrder() throws Exception {
+
+		queue.configure(10, SubmissionQueue.Order.PRIORITY);
+		queue.add("family1", "q1", 0, 100L);
+		queue.add("family1", "q2", 5, 200L);
+		queue.add("family1", "q3", 5, 150L);
+		queue.add("family1", "q4", -1, 50L);
+
+		assertEquals("q3", queue.poll("family1").getJobId());
+		assertEquals("q2", queue.poll("family1").getJobId());
+		assertEquals("q1", queue.poll("family1").getJobId());
+		assertEquals("q4", queue.poll("family1").getJobId());
+	}
+
+	@Test
+	public void depthLimit() throws Exception {
+
+		queue.add("family1", "q1", 0, 100L);
+		queue.add("family1", "q2", 0, 100L);
+		queue.add("family1", "q3", 0, 100L);
+		try {
+			queue.add("family1", "q4", 0, 100L);
+			fail("Queue for family1 should be full");
+		} catch (InternalException e) {
+			assertTrue(e.getMessage().contains("submission queue for family family1 is full"));
+		}
+
+		// Other families have their own limit, and restore ignores the limit
+		queue.add("family2", "q5", 0, 100L);
+		queue.restore("family1", "q6", 0, 50L);
+		assertEquals(4, queue.size("family1"));
+		assertEquals("Restored job should take its original place", "q6", queue.poll("family1").getJobId());
+	}
+
+	@Test
+	public void removeAndMetrics() throws Exception {
+
+		queue.add("family1", "q1", 0, 100L);
+		queue.add("family1", "q2", 0, 200L);
+		assertTrue(queue.contains("q1"));
+		assertTrue(queue.remove("q1"));
+		assertFalse(queue.contains("q1"));
+		assertFalse("Second removal should do nothing", queue.remove("q1"));
+
+		SubmissionQueue.Entry entry = queue.poll("family1");
+		assertEquals("q2", entry.getJobId());
+		assertEquals(200L, entry.getEnqueued());
+		assertEquals(0, queue.size());
+
+		queue.recordWait(1000L);
+		queue.recordWait(3000L);
+		assertEquals(2L, queue.getDispatched());
+		assertEquals(2000L, queue.getMeanWaitMillis());
+		assertEquals(3000L, queue.getMaxWaitMillis());
+	}
+}
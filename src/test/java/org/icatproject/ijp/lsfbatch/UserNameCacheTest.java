@@ -0,0 +1,156 @@
+package org.icatproject.ijp.lsfbatch;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.icatproject.ijp.batch.exceptions.SessionException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the UserNameCache class, using a stub in place of ICAT.
+ */
+public class UserNameCacheTest {
+
+	private static final String ICAT_URL = "https://icat.example.org";
+
+	/*
+	 * Stub ICAT: knows the sessions "s1" and "s2", counts the calls made to it, and can be made to block
+	 */
+	private static class StubLookup implements UserNameCache.Lookup {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile CountDownLatch gate;
+
+		@Override
+		public String getUserName(String icatUrl, String sessionId) throws SessionException, ParameterException {
+			calls.incrementAndGet();
+			if (gate != null) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			if (sessionId.equals("s1")) {
+				return "user1";
+			} else if (sessionId.equals("s2")) {
+				return "user2";
+			}
+			throw new SessionException("IcatException SESSION Unable to find user by sessionid: " + sessionId);
+		}
+	}
+
+	StubLookup icat;
+	UserNameCache cache;
+
+	@Before
+	public void setUp() {
+		icat = new StubLookup();
+		cache = new UserNameCache(icat);
+		cache.configure(1000L, 10);
+	}
+
+	@Test
+	public void cachedUntilExpiry() throws Exception {
+
+		assertEquals("user1", cache.getUserName(ICAT_URL, "s1", 0L));
+		assertEquals("user1", cache.getUserName(ICAT_URL, "s1", 1000L));
+		assertEquals("Second call should be answered from the cache", 1, icat.calls.get());
+
+		assertEquals("user2", cache.getUserName(ICAT_URL, "s2", 1000L));
+		assertEquals("Different session should be looked up", 2, icat.calls.get());
+
+		assertEquals("user1", cache.getUserName("https://other.example.org", "s1", 1000L));
+		assertEquals("Different ICAT should be looked up", 3, icat.calls.get());
+
+		assertEquals("user1", cache.getUserName(ICAT_URL, "s1", 1001L));
+		assertEquals("Expired entry should be looked up again", 4, icat.calls.get());
+
+		cache.remove(ICAT_URL, "s1");
+		assertEquals("user1", cache.getUserName(ICAT_URL, "s1", 1002L));
+		assertEquals("Removed entry should be looked up again", 5, icat.calls.get());
+
+		assertEquals("Hits", 1L, cache.getHits());
+		assertEquals("Misses", 5L, cache.getMisses());
+	}
+
+	@Test
+	public void failuresNotCached() throws Exception {
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.getUserName(ICAT_URL, "bad", 0L);
+				fail("Expected SessionException");
+			} catch (SessionException e) {
+				// expected
+			}
+		}
+		assertEquals("Failed lookup should be retried", 2, icat.calls.get());
+		assertEquals("Failed lookup should not be held", 0, cache.size());
+	}
+
+	@Test
+	public void concurrentLookupsShared() throws Exception {
+
+		icat.gate = new CountDownLatch(1);
+		final int nThreads = 8;
+		final CountDownLatch started = new CountDownLatch(nThreads);
+		final List<String> results = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < nThreads; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						String userName = cache.getUserName(ICAT_URL, "s1");
+						synchronized (results) {
+							results.add(userName);
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		// Give the threads time to queue up behind the first lookup
+		Thread.sleep(100);
+		icat.gate.countDown();
+		for (Thread t : threads) {
+			t.join(10000);
+		}
+
+		assertEquals("All threads should get a result", nThreads, results.size());
+		for (String userName : results) {
+			assertEquals("user1", userName);
+		}
+		assertEquals("Only one call should reach ICAT", 1, icat.calls.get());
+	}
+
+	@Test
+	public void evictionKeepsSizeBounded() throws Exception {
+
+		UserNameCache.Lookup echo = new UserNameCache.Lookup() {
+			@Override
+			public String getUserName(String icatUrl, String sessionId) {
+				return "user-" + sessionId;
+			}
+		};
+		cache = new UserNameCache(echo);
+		cache.configure(1000L, 10);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals("user-" + i, cache.getUserName(ICAT_URL, Integer.toString(i), i));
+			assertTrue("Cache size " + cache.size() + " should not exceed 10", cache.size() <= 10);
+		}
+	}
+}